@@ -316,4 +316,25 @@ public abstract class AbstractState<P> implements Disposeable {
 
 		return false;
 	}
+
+	/**
+	 * handle the messages of batch which comes from
+	 * {@linkplain IController#dispatchMessages(MessageBatch, byte, byte)}. every state is visited once with the
+	 * whole batch. default call {@linkplain #handleMessage(Message)} for every message which should be delivered.
+	 * <h2>Note: if you override it, please skip the message if {@linkplain MessageBatch#shouldDeliver(int)} return
+	 * false. and call {@linkplain MessageBatch#markHandled(int)} if the message is handled.</h2>
+	 * 
+	 * @param batch
+	 *            the message batch
+	 * @see IController#dispatchMessages(MessageBatch, byte, byte)
+	 * @since 1.2.1
+	 */
+	@CalledInternal
+	public void handleMessages(MessageBatch batch) {
+		for (int i = 0, size = batch.size(); i < size; i++) {
+			if (batch.shouldDeliver(i) && handleMessage(batch.get(i))) {
+				batch.markHandled(i);
+			}
+		}
+	}
 }
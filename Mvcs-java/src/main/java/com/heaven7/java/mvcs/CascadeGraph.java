@@ -0,0 +1,133 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.heaven7.java.base.util.SparseArray;
+
+/**
+ * the compiled cascade graph of teams. the node is team, and the edge 'a -&gt; b' means a member of team a is a
+ * formal member of team b. so the cascade of team a may continue to team b. the graph is compiled in topological
+ * order and the cycles are detected.
+ * @author heaven7
+ * @since 1.2.1
+ */
+/*public*/ final class CascadeGraph {
+
+	/** the rank of the teams which are in a cycle or reachable from a cycle. */
+	static final int RANK_CYCLE = Integer.MAX_VALUE;
+
+	/** the topological rank of teams. */
+	private final IdentityHashMap<Object, Integer> mRanks;
+	/** the count of teams which are in a cycle or reachable from a cycle. */
+	private final int mCyclicCount;
+
+	private CascadeGraph(IdentityHashMap<Object, Integer> ranks, int cyclicCount) {
+		this.mRanks = ranks;
+		this.mCyclicCount = cyclicCount;
+	}
+
+	/**
+	 * compile the graph of teams by kahn's algorithm.
+	 * @param teams the teams
+	 * @return the graph
+	 */
+	static <P> CascadeGraph compile(SparseArray<StateTeamManager.Team<P>> teams) {
+		final int count = teams.size();
+		// the formal teams of controllers.
+		final IdentityHashMap<Object, List<Integer>> formalTeams = new IdentityHashMap<>();
+		Object controller;
+		List<Integer> list;
+		for (int i = 0; i < count; i++) {
+			for (StateTeamManager.Member<P> member : teams.valueAt(i).formal.snapshot().members) {
+				controller = member.getController();
+				if (controller == null) {
+					continue;
+				}
+				list = formalTeams.get(controller);
+				if (list == null) {
+					list = new ArrayList<>(2);
+					formalTeams.put(controller, list);
+				}
+				if (!list.contains(i)) {
+					list.add(i);
+				}
+			}
+		}
+		// build edges
+		final List<List<Integer>> edges = new ArrayList<>(count);
+		final int[] inDegrees = new int[count];
+		StateTeamManager.Team<P> team;
+		for (int i = 0; i < count; i++) {
+			final List<Integer> tos = new ArrayList<>(2);
+			team = teams.valueAt(i);
+			addEdges(i, team.formal.snapshot().members, formalTeams, tos, inDegrees);
+			addEdges(i, team.outer.snapshot().members, formalTeams, tos, inDegrees);
+			edges.add(tos);
+		}
+
+		final int[] queue = new int[count];
+		int head = 0;
+		int tail = 0;
+		for (int i = 0; i < count; i++) {
+			if (inDegrees[i] == 0) {
+				queue[tail++] = i;
+			}
+		}
+		final IdentityHashMap<Object, Integer> ranks = new IdentityHashMap<>(count);
+		int node;
+		while (head < tail) {
+			node = queue[head];
+			ranks.put(teams.valueAt(node), head);
+			head++;
+			for (int to : edges.get(node)) {
+				if (--inDegrees[to] == 0) {
+					queue[tail++] = to;
+				}
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (inDegrees[i] > 0) {
+				ranks.put(teams.valueAt(i), RANK_CYCLE);
+			}
+		}
+		return new CascadeGraph(ranks, count - tail);
+	}
+
+	private static <P> void addEdges(int from, StateTeamManager.Member<P>[] members,
+			IdentityHashMap<Object, List<Integer>> formalTeams, List<Integer> tos, int[] inDegrees) {
+		Object controller;
+		List<Integer> targets;
+		for (StateTeamManager.Member<P> member : members) {
+			controller = member.getController();
+			if (controller == null || (targets = formalTeams.get(controller)) == null) {
+				continue;
+			}
+			for (int to : targets) {
+				if (to != from && !tos.contains(to)) {
+					tos.add(to);
+					inDegrees[to]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * get the topological rank of team.
+	 * @param team the team
+	 * @return the rank. {@linkplain #RANK_CYCLE} if it is in a cycle or unknown.
+	 */
+	int getRank(Object team) {
+		final Integer rank = mRanks.get(team);
+		return rank != null ? rank : RANK_CYCLE;
+	}
+
+	boolean hasCycle() {
+		return mCyclicCount > 0;
+	}
+
+	int getCyclicCount() {
+		return mCyclicCount;
+	}
+}
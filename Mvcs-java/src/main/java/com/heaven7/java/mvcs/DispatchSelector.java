@@ -0,0 +1,110 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.heaven7.java.base.util.Objects;
+
+/**
+ * the precompiled dispatch target of controller for a (states, policy, scope) triple. it caches the resolved
+ * handlers of message, and resolve them again only when the state version of controller changed. so the
+ * repeated sends to the same target jump to the handlers directly.
+ * <p>Note: this class is not thread-safe. it should be used on the thread of controller.</p>
+ * @author heaven7
+ * @since 1.2.1
+ * @see IController#obtainDispatchSelector(int, byte, byte)
+ */
+public final class DispatchSelector {
+
+	private final SimpleController<?, ?> mController;
+	private final int mStates;
+	private final byte mPolicy;
+	private final byte mScope;
+
+	/** the resolved handlers. which is refilled in place when the state version changed. */
+	private final List<AbstractState<?>> mHandlers = new ArrayList<>(4);
+	private int mCurrentVersion;
+	private int mGlobalVersion;
+	private boolean mResolved;
+
+	/*public*/ DispatchSelector(SimpleController<?, ?> controller, int states, byte policy, byte scope) {
+		this.mController = controller;
+		this.mStates = states;
+		this.mPolicy = policy;
+		this.mScope = scope;
+	}
+
+	/**
+	 * dispatch the message to the target of this selector. this is same as
+	 * {@linkplain IController#dispatchMessage(Message, byte, byte)}. so the delayed and coalesced message
+	 * will be pending too.
+	 * @param msg the message
+	 * @return true if handled.
+	 * @throws IllegalStateException if message is in use.
+	 */
+	public boolean dispatchMessage(Message msg) {
+		return mController.dispatchMessage(this, msg, true);
+	}
+
+	/**
+	 * get the target states.
+	 * @return the target states. -1 means all.
+	 */
+	public int getStates() {
+		return mStates;
+	}
+
+	public byte getPolicy() {
+		return mPolicy;
+	}
+
+	public byte getScope() {
+		return mScope;
+	}
+
+	public IController<?, ?> getController() {
+		return mController;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("states", mStates)
+				.add("policy", mPolicy)
+				.add("scope", mScope)
+				.add("handlers", mHandlers.size())
+				.toString();
+	}
+
+	// ======================== start internal method =========================
+
+	/** dispatch the message for the owner. */
+	boolean dispatchMessage(Message msg, boolean owned) {
+		return mController.dispatchMessage(this, msg, owned);
+	}
+
+	/** deliver the message to the handlers now. called by controller. */
+	boolean deliver(Message msg) {
+		final int current = mController.getStateVersion(false);
+		final int global = mController.getStateVersion(true);
+		if (!mResolved || current != mCurrentVersion || global != mGlobalVersion) {
+			mHandlers.clear();
+			mController.collectHandlers(mStates, mScope, mHandlers);
+			mCurrentVersion = current;
+			mGlobalVersion = global;
+			mResolved = true;
+		}
+		final List<AbstractState<?>> handlers = this.mHandlers;
+		final boolean consume = mPolicy == IController.POLICY_CONSUME;
+		boolean handled = false;
+		// the size is read every time. a handler may send again and cause the handlers refilled.
+		for (int i = 0; i < handlers.size(); i++) {
+			final AbstractState<?> s = handlers.get(i);
+			handled |= StateGroup.deliverMessage(s, s.getId(), msg, mPolicy);
+			if (consume && handled) {
+				break;
+			}
+		}
+		return handled;
+	}
+}
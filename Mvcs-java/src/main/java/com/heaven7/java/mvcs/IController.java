@@ -111,7 +111,139 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	@Target({ElementType.PARAMETER})
 	@Retention(RetentionPolicy.SOURCE)
 	@interface ScopeFlags{		}
-	
+
+	/**
+	 * the message coalesce policy: keep the latest pending message of the same what.
+	 * @since 1.2.1
+	 */
+	byte COALESCE_KEEP_LATEST   = 1;
+	/**
+	 * the message coalesce policy: keep the first pending message of the same what.
+	 * @since 1.2.1
+	 */
+	byte COALESCE_KEEP_FIRST    = 2;
+	/**
+	 * the message coalesce policy: merge the new message to the pending message by
+	 * {@linkplain Message.MessageMerger}.
+	 * @since 1.2.1
+	 */
+	byte COALESCE_MERGE         = 3;
+
+	@IntDef({
+		COALESCE_KEEP_LATEST,
+		COALESCE_KEEP_FIRST,
+		COALESCE_MERGE,
+	})
+	@Target({ElementType.PARAMETER})
+	@Retention(RetentionPolicy.SOURCE)
+	@interface CoalescePolicy{		}
+
+	/**
+	 * the drain policy of pending messages: strict. that means the lower priority messages are only delivered
+	 * when there is no higher priority message.
+	 * @since 1.2.1
+	 */
+	byte DRAIN_STRICT           = 1;
+	/**
+	 * the drain policy of pending messages: weighted fair. that means every priority lane is drained by its weight
+	 * in turn. so lower priority messages can't be starved.
+	 * @since 1.2.1
+	 */
+	byte DRAIN_WEIGHTED_FAIR    = 2;
+
+	@IntDef({
+		DRAIN_STRICT,
+		DRAIN_WEIGHTED_FAIR,
+	})
+	@Target({ElementType.PARAMETER})
+	@Retention(RetentionPolicy.SOURCE)
+	@interface DrainPolicy{		}
+
+	/**
+	 * the overflow policy of bounded mailbox: block the producer until the mailbox has space.
+	 * and {@linkplain #offerMessage(Message, byte, byte)} never block, it is rejected instead.
+	 * @since 1.2.1
+	 */
+	byte OVERFLOW_BLOCK         = 1;
+	/**
+	 * the overflow policy of bounded mailbox: fail fast. {@linkplain #dispatchMessage(Message, byte, byte)} and
+	 * {@linkplain #dispatchMessages(MessageBatch, byte, byte)} will throw {@linkplain IllegalStateException}, and
+	 * {@linkplain #offerMessage(Message, byte, byte)} return {@linkplain #OFFER_REJECTED}. the batch stops at the
+	 * rejected message, and the remained messages of it are recycled.
+	 * @since 1.2.1
+	 */
+	byte OVERFLOW_FAIL          = 2;
+	/**
+	 * the overflow policy of bounded mailbox: drop the oldest message of mailbox.
+	 * @since 1.2.1
+	 */
+	byte OVERFLOW_DROP_OLDEST   = 3;
+	/**
+	 * the overflow policy of bounded mailbox: drop the newest message. that is the incoming message.
+	 * @since 1.2.1
+	 */
+	byte OVERFLOW_DROP_NEWEST   = 4;
+	/**
+	 * the overflow policy of bounded mailbox: replace the latest pending message of the same what. if there is no
+	 * message of the same what, drop the incoming message.
+	 * @since 1.2.1
+	 */
+	byte OVERFLOW_COALESCE      = 5;
+
+	@IntDef({
+		OVERFLOW_BLOCK,
+		OVERFLOW_FAIL,
+		OVERFLOW_DROP_OLDEST,
+		OVERFLOW_DROP_NEWEST,
+		OVERFLOW_COALESCE,
+	})
+	@Target({ElementType.PARAMETER})
+	@Retention(RetentionPolicy.SOURCE)
+	@interface OverflowPolicy{		}
+
+	/**
+	 * the result of {@linkplain #offerMessage(Message, byte, byte)}: the message is rejected and recycled.
+	 * @since 1.2.1
+	 */
+	int OFFER_REJECTED   = -1;
+	/**
+	 * the result of {@linkplain #offerMessage(Message, byte, byte)}: the message is accepted.
+	 * @since 1.2.1
+	 */
+	int OFFER_ACCEPTED   = 0;
+	/**
+	 * the result of {@linkplain #offerMessage(Message, byte, byte)}: the message replaced the pending message
+	 * of the same what.
+	 * @since 1.2.1
+	 */
+	int OFFER_COALESCED  = 1;
+
+	/**
+	 * the catch-up policy of periodic message: the missed firings of a stalled update are collapsed into one.
+	 * @since 1.2.1
+	 */
+	byte CATCH_UP_COALESCE = 1;
+	/**
+	 * the catch-up policy of periodic message: fire the all missed firings of a stalled update. but no more than
+	 * {@linkplain #MAX_CATCH_UP_FIRES} in one update.
+	 * @since 1.2.1
+	 */
+	byte CATCH_UP_FIRE_ALL = 2;
+	/**
+	 * the max firings of a periodic message in one update with {@linkplain #CATCH_UP_FIRE_ALL}. the more missed
+	 * firings are dropped.
+	 * @since 1.2.1
+	 */
+	int MAX_CATCH_UP_FIRES = 16;
+
+	@IntDef({
+		CATCH_UP_COALESCE,
+		CATCH_UP_FIRE_ALL,
+	})
+	@Target({ElementType.PARAMETER})
+	@Retention(RetentionPolicy.SOURCE)
+	@interface CatchUpPolicy{		}
+
 	/**
 	 * begin the state transaction with current states.
 	 * @return the state transaction.
@@ -476,7 +608,65 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	 * @since 1.1.6
 	 */
 	void clearMessages();
-	
+
+	/**
+	 * set the coalesce policy for the message which is indicated by what. After set, the non-delayed messages
+	 * of the what will not be dispatched right now, but pending until next {@linkplain #update(long, Object)}.
+	 * And the pending messages of the same what are collapsed into one delivery per update.
+	 * @param what the what of message
+	 * @param policy the coalesce policy. {@linkplain #COALESCE_KEEP_LATEST} or {@linkplain #COALESCE_KEEP_FIRST}.
+	 * @throws IllegalArgumentException if policy is {@linkplain #COALESCE_MERGE} or unknown.
+	 * @see #setMessageCoalescePolicy(int, byte, Message.MessageMerger)
+	 * @since 1.2.1
+	 */
+	void setMessageCoalescePolicy(int what, @CoalescePolicy byte policy);
+
+	/**
+	 * set the coalesce policy for the message which is indicated by what. After set, the non-delayed messages
+	 * of the what will not be dispatched right now, but pending until next {@linkplain #update(long, Object)}.
+	 * And the pending messages of the same what are collapsed into one delivery per update.
+	 * @param what the what of message
+	 * @param policy the coalesce policy. see {@linkplain #COALESCE_KEEP_LATEST}, {@linkplain #COALESCE_KEEP_FIRST}
+	 *          and {@linkplain #COALESCE_MERGE}.
+	 * @param merger the message merger, only used by {@linkplain #COALESCE_MERGE}.
+	 * @throws IllegalArgumentException if policy is unknown or merger is null with {@linkplain #COALESCE_MERGE}.
+	 * @since 1.2.1
+	 */
+	void setMessageCoalescePolicy(int what, @CoalescePolicy byte policy, Message.MessageMerger merger);
+
+	/**
+	 * remove the coalesce policy of the message which is indicated by what. the pending message of the what
+	 * will still be dispatched by next {@linkplain #update(long, Object)}.
+	 * @param what the what of message
+	 * @since 1.2.1
+	 */
+	void removeMessageCoalescePolicy(int what);
+
+	/**
+	 * set the delivery policy of the pending messages (delayed and coalesced) which are handled in
+	 * {@linkplain #update(long, Object)}. The pending messages are delivered by the lanes of {@linkplain Message#priority}.
+	 * default is {@linkplain #DRAIN_STRICT} with unlimited budget.
+	 * @param drainPolicy the drain policy. {@linkplain #DRAIN_STRICT} or {@linkplain #DRAIN_WEIGHTED_FAIR}.
+	 * @param budget the max count of pending messages to deliver in one update. <=0 means unlimited.
+	 *              the remained messages will be delivered in next update.
+	 * @see #setMessageDeliveryPolicy(byte, int, int[])
+	 * @since 1.2.1
+	 */
+	void setMessageDeliveryPolicy(@DrainPolicy byte drainPolicy, int budget);
+
+	/**
+	 * set the delivery policy of the pending messages (delayed and coalesced) which are handled in
+	 * {@linkplain #update(long, Object)}. The pending messages are delivered by the lanes of {@linkplain Message#priority}.
+	 * @param drainPolicy the drain policy. {@linkplain #DRAIN_STRICT} or {@linkplain #DRAIN_WEIGHTED_FAIR}.
+	 * @param budget the max count of pending messages to deliver in one update. <=0 means unlimited.
+	 *              the remained messages will be delivered in next update.
+	 * @param laneWeights the weights of lanes (high, normal, low) for {@linkplain #DRAIN_WEIGHTED_FAIR}.
+	 *              null means default weights (4, 2, 1).
+	 * @throws IllegalArgumentException if the drain policy is unknown or the lane weights are illegal.
+	 * @since 1.2.1
+	 */
+	void setMessageDeliveryPolicy(@DrainPolicy byte drainPolicy, int budget, int[] laneWeights);
+
 	/**
 	 * dispatch the target message to the target state by the target policy.
 	 * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT} | {@linkplain IController#FLAG_SCOPE_GLOBAL}.
@@ -513,6 +703,175 @@ public interface IController<S extends AbstractState<P>, P> extends Disposeable{
 	 * @since 1.1.8
 	 */
     boolean dispatchMessage(Message msg, @PolicyType byte policy);
+    /**
+     * dispatch the messages of batch to the all state by the target policy in one pass. the active states are
+     * resolved once per batch, and every state is visited once with the whole batch by
+     * {@linkplain AbstractState#handleMessages(MessageBatch)}. the delayed messages and coalesced messages of the
+     * batch will be pending like {@linkplain #dispatchMessage(Message, byte, byte)}.
+     * After that the messages are recycled in bulk and the batch is cleared. 
+     * @param batch the message batch
+     * @param policy the policy of send message. for {@linkplain #POLICY_CONSUME}, every message is consumed
+     *        by one state at most.
+     * @param scopeFlags the scope flags of this message apply to.
+     * @return the count of handled messages.
+     * @throws IllegalStateException if any message is in use, or the mailbox of actor mode is full with
+     *         {@linkplain #OVERFLOW_FAIL}.
+     * @since 1.2.1
+     */
+    int dispatchMessages(MessageBatch batch, @PolicyType byte policy, @ScopeFlags byte scopeFlags);
+
+    /**
+     * dispatch the messages of batch to the target states by the target policy in one pass.
+     * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT} | {@linkplain IController#FLAG_SCOPE_GLOBAL}.
+     * the batch is owned by caller (often is team), so the messages will not be recycled.
+     * @param states the target states to receive messages, must be active state.
+     * @param batch the message batch. which must be began by the caller.
+     * @param policy the policy of send message 
+     * @return the count of handled messages of the batch.
+     * @throws IllegalStateException if any message is in use.
+     * @since 1.2.1
+     */
+    @Hide
+    @CalledInternal
+    int dispatchMessages(int states, MessageBatch batch, @PolicyType byte policy);
+
+    /**
+     * send the request message to the all state by the target policy, and return the future of reply. 
+     * the state can reply it by {@linkplain Message#reply(Message)}, and the reply is correlated by the
+     * correlation id of request. the timeout is driven by the delayed messages which are handled in
+     * {@linkplain #update(long, Object)}, so no extra thread is used. the pending requests are cancelled on
+     * {@linkplain #dispose()}.
+     * @param msg the request message. which can't have replier.
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @param timeout the timeout in millseconds. <=0 means never timeout.
+     * @return the future of reply message.
+     * @throws IllegalArgumentException if the message already has replier.
+     * @throws IllegalStateException if message is in use.
+     * @since 1.2.1
+     */
+    MessageFuture request(Message msg, @PolicyType byte policy, @ScopeFlags byte scopeFlags, long timeout);
+
+    /**
+     * obtain the precompiled dispatch selector of the target (states, policy, scope). the handlers of selector are
+     * resolved once and cached until the states of this controller changed. so it is faster than
+     * {@linkplain #dispatchMessage(Message, byte, byte)} for the repeated messages to the same target.
+     * @param states the target states. -1 means all.
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @return the selector. which should be used on the thread of this controller.
+     * @since 1.2.1
+     */
+    DispatchSelector obtainDispatchSelector(int states, @PolicyType byte policy, @ScopeFlags byte scopeFlags);
+
+    /**
+     * set the actor mode enabled or not. In actor mode, the message which is dispatched from foreign thread
+     * is enqueued into a lock-free mailbox, and the owner thread drain it at the start of
+     * {@linkplain #update(long, Object)}. so all callbacks of states are called on the owner thread.
+     * the owner thread is the thread which enable actor mode. and disable it will close the mailbox and dispatch the
+     * remained messages of mailbox. so this should be called on the owner thread. the messages which are dispatched
+     * from foreign threads after the mailbox is closed, are pending and delivered by the next
+     * {@linkplain #update(long, Object)}.
+     * <p>Note: the messages in mailbox can't be found by {@linkplain #hasMessage(int)}, and can't be removed 
+     * by {@linkplain #removeMessage(int)}.</p>
+     * @param enable true to enable actor mode.
+     * @since 1.2.1
+     */
+    void setActorModeEnabled(boolean enable);
+
+    /**
+     * indicate the actor mode is enabled or not.
+     * @return true if actor mode is enabled.
+     * @since 1.2.1
+     * @see #setActorModeEnabled(boolean)
+     */
+    boolean isActorModeEnabled();
+
+    /**
+     * set the capacity of mailbox which is used by actor mode. default is unbounded.
+     * this must be called before {@linkplain #setActorModeEnabled(boolean)}.
+     * @param capacity the capacity. <=0 means unbounded.
+     * @param overflowPolicy the overflow policy when the mailbox is full.
+     * @throws IllegalArgumentException if the overflow policy is unknown.
+     * @throws IllegalStateException if the actor mode is enabled.
+     * @since 1.2.1
+     * @see #OVERFLOW_BLOCK
+     * @see #OVERFLOW_FAIL
+     * @see #OVERFLOW_DROP_OLDEST
+     * @see #OVERFLOW_DROP_NEWEST
+     * @see #OVERFLOW_COALESCE
+     */
+    void setMailboxCapacity(int capacity, @OverflowPolicy byte overflowPolicy);
+
+    /**
+     * offer the message to the all state by the target policy. this is the non-blocking variant of
+     * {@linkplain #dispatchMessage(Message, byte, byte)} for foreign thread. if the mailbox is full,
+     * the message is handled by the overflow policy, and never block the caller.
+     * if the actor mode is disabled or called on the owner thread, the message is dispatched directly.
+     * @param msg the message
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @return the offer result. {@linkplain #OFFER_ACCEPTED}, {@linkplain #OFFER_COALESCED} 
+     *         or {@linkplain #OFFER_REJECTED}.
+     * @throws IllegalStateException if message is in use.
+     * @since 1.2.1
+     */
+    int offerMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scopeFlags);
+
+    /**
+     * get the count of delayed messages which are waiting for their time. include the timeouts of pending requests.
+     * @return the count of delayed messages.
+     * @since 1.2.1
+     */
+    int getDelayedMessageCount();
+
+    /**
+     * get the count of pending messages in the mailbox of actor mode.
+     * @return the depth of mailbox. 0 if actor mode is disabled.
+     * @since 1.2.1
+     */
+    int getMailboxDepth();
+
+    /**
+     * get the count of dropped or rejected messages of the mailbox since actor mode is enabled.
+     * @return the drop count. 0 if actor mode is disabled.
+     * @since 1.2.1
+     */
+    long getMailboxDropCount();
+
+    /**
+     * schedule the periodic message of the target what. which is broadcast to the current states with
+     * {@linkplain #CATCH_UP_COALESCE}.
+     * @param what the what of message
+     * @param initialDelay the delay of first firing in millseconds.
+     * @param period the period in millseconds.
+     * @return the handle of schedule. which can be cancelled.
+     * @throws IllegalArgumentException if initialDelay is negative or period is not positive.
+     * @see #scheduleAtFixedRate(Message, long, long, byte, byte, byte)
+     * @since 1.2.1
+     */
+    ScheduledMessage scheduleAtFixedRate(int what, long initialDelay, long period);
+
+    /**
+     * schedule the periodic message at fixed rate. the message is fired in {@linkplain #update(long, Object)}
+     * and reused in place for every firing, so the states shouldn't keep or recycle it. the message is
+     * recycled when the schedule is cancelled or this controller is disposed.
+     * @param msg the message. which is owned by this controller after this.
+     * @param initialDelay the delay of first firing in millseconds.
+     * @param period the period in millseconds.
+     * @param policy the policy of send message
+     * @param scopeFlags the scope flags of this message apply to.
+     * @param catchUp the catch-up policy when update is stalled more than one period.
+     * @return the handle of schedule. which can be cancelled.
+     * @throws IllegalArgumentException if initialDelay is negative or period is not positive.
+     * @throws IllegalStateException if message is in use.
+     * @see #CATCH_UP_COALESCE
+     * @see #CATCH_UP_FIRE_ALL
+     * @since 1.2.1
+     */
+    ScheduledMessage scheduleAtFixedRate(Message msg, long initialDelay, long period, @PolicyType byte policy,
+            @ScopeFlags byte scopeFlags, @CatchUpPolicy byte catchUp);
+
     /**
      * send the target message to the all state by the target policy.
      * And the default scope is {@linkplain IController#FLAG_SCOPE_CURRENT}.
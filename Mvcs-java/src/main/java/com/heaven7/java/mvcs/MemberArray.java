@@ -0,0 +1,242 @@
+package com.heaven7.java.mvcs;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import com.heaven7.java.base.util.Throwables;
+import com.heaven7.java.mvcs.StateTeamManager.Member;
+
+/**
+ * the copy-on-write members of team. the members and their states are stored as plain arrays, and the whole
+ * {@linkplain Snapshot} is replaced when changed. so the iteration is index-based and allocation-free, and the change
+ * of members during a dispatch is safe: the dispatch reads a stable snapshot.
+ * @author heaven7
+ *
+ * @param <P> the parameter type
+ * @since 1.2.1
+ */
+/*public*/ final class MemberArray<P> extends AbstractList<Member<P>> implements RandomAccess {
+
+	/** the shared empty snapshot. which has no member, so it is safe for any parameter type. */
+	private static final Snapshot<?> EMPTY = new Snapshot<Object>(MemberArray.<Object>newMembers(0), new int[0]);
+
+	private volatile Snapshot<P> mSnapshot;
+
+	MemberArray(Collection<Member<P>> members) {
+		if (members == null || members.isEmpty()) {
+			mSnapshot = emptySnapshot();
+			return;
+		}
+		final Member<P>[] array = members.toArray(MemberArray.<P>newMembers(members.size()));
+		final int[] masks = new int[array.length];
+		for (int i = 0; i < array.length; i++) {
+			Throwables.checkNull(array[i]);
+			masks[i] = array[i].states;
+		}
+		mSnapshot = new Snapshot<P>(array, masks);
+	}
+
+	/**
+	 * get the current snapshot. which is never changed.
+	 * @return the snapshot.
+	 */
+	Snapshot<P> snapshot() {
+		return mSnapshot;
+	}
+
+	@Override
+	public Member<P> get(int index) {
+		return mSnapshot.members[index];
+	}
+
+	@Override
+	public int size() {
+		return mSnapshot.members.length;
+	}
+
+	/** the iterator of current snapshot. which doesn't support remove. */
+	@Override
+	public Iterator<Member<P>> iterator() {
+		return Arrays.asList(mSnapshot.members).iterator();
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		final Member<P>[] members = mSnapshot.members;
+		for (int i = 0; i < members.length; i++) {
+			if (members[i].equals(o)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+
+	@Override
+	public synchronized boolean add(Member<P> member) {
+		add(mSnapshot.members.length, member);
+		return true;
+	}
+
+	@Override
+	public synchronized void add(int index, Member<P> member) {
+		Throwables.checkNull(member);
+		final Snapshot<P> old = mSnapshot;
+		final int length = old.members.length;
+		if (index < 0 || index > length) {
+			throw new IndexOutOfBoundsException("index = " + index + ", size = " + length);
+		}
+		final Member<P>[] members = Arrays.copyOf(old.members, length + 1);
+		final int[] masks = Arrays.copyOf(old.masks, length + 1);
+		System.arraycopy(members, index, members, index + 1, length - index);
+		System.arraycopy(masks, index, masks, index + 1, length - index);
+		members[index] = member;
+		masks[index] = member.states;
+		mSnapshot = new Snapshot<P>(members, masks);
+	}
+
+	@Override
+	public synchronized Member<P> set(int index, Member<P> member) {
+		Throwables.checkNull(member);
+		final Snapshot<P> old = mSnapshot;
+		final Member<P> result = old.members[index];
+		final Member<P>[] members = old.members.clone();
+		final int[] masks = old.masks.clone();
+		members[index] = member;
+		masks[index] = member.states;
+		mSnapshot = new Snapshot<P>(members, masks);
+		return result;
+	}
+
+	@Override
+	public synchronized Member<P> remove(int index) {
+		final Snapshot<P> old = mSnapshot;
+		final int length = old.members.length;
+		final Member<P> result = old.members[index];
+		final Member<P>[] members = Arrays.copyOf(old.members, length - 1);
+		final int[] masks = Arrays.copyOf(old.masks, length - 1);
+		System.arraycopy(old.members, index + 1, members, index, length - index - 1);
+		System.arraycopy(old.masks, index + 1, masks, index, length - index - 1);
+		mSnapshot = new Snapshot<P>(members, masks);
+		return result;
+	}
+
+	@Override
+	public synchronized boolean remove(Object o) {
+		final int index = indexOf(o);
+		if (index < 0) {
+			return false;
+		}
+		remove(index);
+		return true;
+	}
+
+	@Override
+	public synchronized void clear() {
+		mSnapshot = emptySnapshot();
+	}
+
+	// ======================== start internal method =========================
+
+	@SuppressWarnings("unchecked")
+	private static <P> Snapshot<P> emptySnapshot() {
+		return (Snapshot<P>) EMPTY;
+	}
+
+	/** create the array of members. which can't be created with the type parameter directly. */
+	@SuppressWarnings("unchecked")
+	private static <P> Member<P>[] newMembers(int length) {
+		return (Member<P>[]) new Member<?>[length];
+	}
+
+	/**
+	 * get the index of member by identity.
+	 * @return the index. -1 if not found.
+	 */
+	int indexOfIdentity(Member<?> member) {
+		final Member<P>[] members = mSnapshot.members;
+		for (int i = 0; i < members.length; i++) {
+			if (members[i] == member) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * remove the member by identity.
+	 * @return true if removed.
+	 */
+	synchronized boolean removeIdentity(Member<P> member) {
+		final int index = indexOfIdentity(member);
+		if (index < 0) {
+			return false;
+		}
+		remove(index);
+		return true;
+	}
+
+	/**
+	 * set the states of member. the masks are copied on write.
+	 * @return true if the member is in this array.
+	 */
+	synchronized boolean setStates(Member<P> member, int states) {
+		final int index = indexOfIdentity(member);
+		if (index < 0) {
+			return false;
+		}
+		member.states = states;
+		final Snapshot<P> old = mSnapshot;
+		final int[] masks = old.masks.clone();
+		masks[index] = states;
+		mSnapshot = new Snapshot<P>(old.members, masks);
+		return true;
+	}
+
+	/**
+	 * remove the dead members and the members whose controller is collected.
+	 * @return the count of removed members.
+	 */
+	synchronized int purge(Set<Member<?>> dead) {
+		final Snapshot<P> old = mSnapshot;
+		final int length = old.members.length;
+		final Member<P>[] members = old.members.clone();
+		final int[] masks = new int[length];
+		int count = 0;
+		Member<P> member;
+		for (int i = 0; i < length; i++) {
+			member = old.members[i];
+			if (dead.contains(member) || member.getController() == null) {
+				continue;
+			}
+			members[count] = member;
+			masks[count++] = old.masks[i];
+		}
+		if (count == length) {
+			return 0;
+		}
+		mSnapshot = new Snapshot<P>(Arrays.copyOf(members, count), Arrays.copyOf(masks, count));
+		return length - count;
+	}
+
+	/**
+	 * the immutable snapshot of members. the mask is the states of member at the index.
+	 */
+	/*public*/ static final class Snapshot<P> {
+		final Member<P>[] members;
+		final int[] masks;
+
+		Snapshot(Member<P>[] members, int[] masks) {
+			this.members = members;
+			this.masks = masks;
+		}
+	}
+}
@@ -9,6 +9,35 @@ import com.heaven7.java.base.util.Objects;
  */
 public final class Message {
 
+	/**
+	 * the priority of message: high. the high priority message will be delivered first.
+	 * @since 1.2.1
+	 */
+	public static final int PRIORITY_HIGH    = 0;
+	/**
+	 * the priority of message: normal. this is the default priority.
+	 * @since 1.2.1
+	 */
+	public static final int PRIORITY_NORMAL  = 1;
+	/**
+	 * the priority of message: low.
+	 * @since 1.2.1
+	 */
+	public static final int PRIORITY_LOW     = 2;
+	/** the count of priorities. */
+	static final int PRIORITY_COUNT          = 3;
+
+	/**
+	 * the count of long slots. see {@linkplain #setLong(int, long)}.
+	 * @since 1.2.1
+	 */
+	public static final int LONG_SLOT_COUNT   = 4;
+	/**
+	 * the count of double slots. see {@linkplain #setDouble(int, double)}.
+	 * @since 1.2.1
+	 */
+	public static final int DOUBLE_SLOT_COUNT = 4;
+
 	  /**
      * User-defined message code so that the recipient can identify 
      * what this message is about. 
@@ -44,6 +73,16 @@ public final class Message {
      * indicate the message will be handled in future or right now. 
      */
     public long when;
+
+    /**
+     * the priority of this message. which is used by the pending messages to deliver.
+     * default is {@linkplain #PRIORITY_NORMAL}.
+     * @see #PRIORITY_HIGH
+     * @see #PRIORITY_NORMAL
+     * @see #PRIORITY_LOW
+     * @since 1.2.1
+     */
+    public int priority = PRIORITY_NORMAL;
     
     /**
      * indicate the message handler should reply this message.
@@ -61,8 +100,22 @@ public final class Message {
     private static final int FLAG_IN_USE      = 1 << 0;
     /** a flag which indicate message comes from team .*/
     private static final int FLAG_FROM_TEAM   = 1 << 2;
+    /** a flag which indicate message is the internal timeout of request. it never delivered to state. */
+    private static final int FLAG_REQUEST_TIMEOUT = 1 << 3;
     
     private int flags;
+
+    /** the correlation id of request. 0 means not a request. */
+    private int correlationId;
+    /** the trace id of {@linkplain MessageTracer}. 0 means not traced. */
+    private long traceId;
+
+    /** the primitive slots. which can carry values without boxing. */
+    private long long0, long1, long2, long3;
+    private double double0, double1, double2, double3;
+    /** the mask of used slots. low bits for long slots, high bits for double slots. */
+    private int slotMask;
+    private static final int DOUBLE_SLOT_SHIFT = 16;
     
     private Message next;
     private static final Object sPoolSync = new Object();
@@ -141,13 +194,117 @@ public final class Message {
     	msg.when = other.when;
     	msg.arg1 = other.arg1;
     	msg.arg2 = other.arg2;
+    	msg.priority = other.priority;
+    	copySlots(other, msg);
     	
     	msg.data = other.data;
     	msg.obj = other.obj;
     	msg.replier = other.replier;
+    	msg.correlationId = other.correlationId;
+    	msg.traceId = other.traceId;
     	return msg;
     }
     
+    /**
+     * set the long value to the target slot. this is a lower-cost alternatives to
+     * carry long values (like id, timestamp) without boxing.
+     * @param slot the slot index. [0, {@linkplain #LONG_SLOT_COUNT})
+     * @param value the value
+     * @return this.
+     * @throws IndexOutOfBoundsException if slot is out of range.
+     * @since 1.2.1
+     */
+    public Message setLong(int slot, long value){
+    	switch (slot) {
+		case 0: long0 = value; break;
+		case 1: long1 = value; break;
+		case 2: long2 = value; break;
+		case 3: long3 = value; break;
+		default:
+			throw new IndexOutOfBoundsException("long slot = " + slot);
+		}
+    	slotMask |= 1 << slot;
+    	return this;
+    }
+
+    /**
+     * get the long value of the target slot.
+     * @param slot the slot index. [0, {@linkplain #LONG_SLOT_COUNT})
+     * @return the value. or 0 if not set.
+     * @throws IndexOutOfBoundsException if slot is out of range.
+     * @since 1.2.1
+     */
+    public long getLong(int slot){
+    	switch (slot) {
+		case 0: return long0;
+		case 1: return long1;
+		case 2: return long2;
+		case 3: return long3;
+		default:
+			throw new IndexOutOfBoundsException("long slot = " + slot);
+		}
+    }
+
+    /**
+     * set the double value to the target slot. this is a lower-cost alternatives to
+     * carry double values (like coordinates) without boxing.
+     * @param slot the slot index. [0, {@linkplain #DOUBLE_SLOT_COUNT})
+     * @param value the value
+     * @return this.
+     * @throws IndexOutOfBoundsException if slot is out of range.
+     * @since 1.2.1
+     */
+    public Message setDouble(int slot, double value){
+    	switch (slot) {
+		case 0: double0 = value; break;
+		case 1: double1 = value; break;
+		case 2: double2 = value; break;
+		case 3: double3 = value; break;
+		default:
+			throw new IndexOutOfBoundsException("double slot = " + slot);
+		}
+    	slotMask |= 1 << (slot + DOUBLE_SLOT_SHIFT);
+    	return this;
+    }
+
+    /**
+     * get the double value of the target slot.
+     * @param slot the slot index. [0, {@linkplain #DOUBLE_SLOT_COUNT})
+     * @return the value. or 0 if not set.
+     * @throws IndexOutOfBoundsException if slot is out of range.
+     * @since 1.2.1
+     */
+    public double getDouble(int slot){
+    	switch (slot) {
+		case 0: return double0;
+		case 1: return double1;
+		case 2: return double2;
+		case 3: return double3;
+		default:
+			throw new IndexOutOfBoundsException("double slot = " + slot);
+		}
+    }
+
+    /**
+     * indicate the target long slot is set or not.
+     * @param slot the slot index.
+     * @return true if the slot is set.
+     * @since 1.2.1
+     */
+    public boolean hasLong(int slot){
+    	return slot >= 0 && slot < LONG_SLOT_COUNT && (slotMask & (1 << slot)) != 0;
+    }
+
+    /**
+     * indicate the target double slot is set or not.
+     * @param slot the slot index.
+     * @return true if the slot is set.
+     * @since 1.2.1
+     */
+    public boolean hasDouble(int slot){
+    	return slot >= 0 && slot < DOUBLE_SLOT_COUNT && (slotMask & (1 << (slot + DOUBLE_SLOT_SHIFT))) != 0;
+    }
+
     /**
      * set the delay of this message to be handled.
      * @param delayMillseconds the delay in millseconds.
@@ -155,6 +312,42 @@ public final class Message {
     public void setDelay(long delayMillseconds){
     	this.when = System.currentTimeMillis() + delayMillseconds;
     }
+
+    /**
+     * get the correlation id of this message. the request message and the reply message have the same
+     * correlation id.
+     * @return the correlation id. 0 means this message is not a request or reply.
+     * @since 1.2.1
+     * @see IController#request(Message, byte, byte, long)
+     */
+    public int getCorrelationId(){
+    	return correlationId;
+    }
+
+    /**
+     * get the trace id of this message which is sampled by {@linkplain MessageTracer}.
+     * @return the trace id. 0 means this message is not traced.
+     * @since 1.2.1
+     */
+    public long getTraceId(){
+    	return traceId;
+    }
+
+    /**
+     * reply this message with the response message. the correlation id of response will be the same as this.
+     * @param response the response message
+     * @return true if replied. false if this message has no replier.
+     * @since 1.2.1
+     * @see #replier
+     */
+    public boolean reply(Message response){
+    	if(replier == null){
+    		return false;
+    	}
+    	response.correlationId = correlationId;
+    	replier.reply(response);
+    	return true;
+    }
     /**
      * Return a Message instance to the global pool.
      * <p>
@@ -176,6 +369,45 @@ public final class Message {
      * Used internally .
      */
     /*public*/ void recycleUnchecked() {
+        reset();
+
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * recycle the all messages without the skipped in bulk. which only hold the lock of pool once.
+     * @param msgs the messages
+     * @param msgFlags the flags of messages
+     * @param skipFlag the skip flag. the message will be skipped if it's flags has this flag.
+     * @param size the count of messages.
+     * @since 1.2.1
+     */
+    /*public*/ static void recycleAll(Message[] msgs, byte[] msgFlags, byte skipFlag, int size) {
+        for (int i = 0; i < size; i++) {
+            if ((msgFlags[i] & skipFlag) == 0) {
+                msgs[i].reset();
+            }
+        }
+        Message m;
+        synchronized (sPoolSync) {
+            for (int i = 0; i < size && sPoolSize < MAX_POOL_SIZE; i++) {
+                if ((msgFlags[i] & skipFlag) == 0) {
+                    m = msgs[i];
+                    m.next = sPool;
+                    sPool = m;
+                    sPoolSize++;
+                }
+            }
+        }
+    }
+
+    private void reset() {
         // Mark the message as in use while it remains in the recycled object pool.
         // Clear out all other details.
         flags = FLAG_IN_USE;
@@ -183,18 +415,14 @@ public final class Message {
         arg1 = 0;
         arg2 = 0;
         when = 0;
+        priority = PRIORITY_NORMAL;
+        correlationId = 0;
+        traceId = 0;
+        clearSlots();
         
         obj = null;
         data = null;
         replier = null;
-
-        synchronized (sPoolSync) {
-            if (sPoolSize < MAX_POOL_SIZE) {
-                next = sPool;
-                sPool = this;
-                sPoolSize++;
-            }
-        }
     }
     public boolean isFromTeam(){
     	return (flags & FLAG_FROM_TEAM) != 0;
@@ -215,6 +443,48 @@ public final class Message {
     /*package*/ void markFromTeam() {
     	flags |= FLAG_FROM_TEAM;
     }
+    /*package*/ void markRequestTimeout() {
+    	flags |= FLAG_REQUEST_TIMEOUT;
+    }
+    /*package*/ boolean isRequestTimeout() {
+    	return (flags & FLAG_REQUEST_TIMEOUT) != 0;
+    }
+    /*package*/ void setCorrelationId(int id) {
+    	this.correlationId = id;
+    }
+    /*package*/ void setTraceId(long id) {
+    	this.traceId = id;
+    }
+
+    private void clearSlots(){
+    	if(slotMask != 0){
+    		long0 = long1 = long2 = long3 = 0;
+    		double0 = double1 = double2 = double3 = 0;
+    		slotMask = 0;
+    	}
+    }
+    private static void copySlots(Message src, Message dst){
+    	dst.long0 = src.long0;
+    	dst.long1 = src.long1;
+    	dst.long2 = src.long2;
+    	dst.long3 = src.long3;
+    	dst.double0 = src.double0;
+    	dst.double1 = src.double1;
+    	dst.double2 = src.double2;
+    	dst.double3 = src.double3;
+    	dst.slotMask = src.slotMask;
+    }
+    private boolean slotsEquals(Message other){
+    	if(slotMask != other.slotMask){
+    		return false;
+    	}
+    	return long0 == other.long0 && long1 == other.long1 
+    			&& long2 == other.long2 && long3 == other.long3
+    			&& Double.doubleToLongBits(double0) == Double.doubleToLongBits(other.double0)
+    			&& Double.doubleToLongBits(double1) == Double.doubleToLongBits(other.double1)
+    			&& Double.doubleToLongBits(double2) == Double.doubleToLongBits(other.double2)
+    			&& Double.doubleToLongBits(double3) == Double.doubleToLongBits(other.double3);
+    }
     
 	@Override
 	public boolean equals(Object obj) {
@@ -233,6 +503,10 @@ public final class Message {
 			return false;
 		if (arg2 != other.arg2)
 			return false;
+		if (!slotsEquals(other))
+			return false;
+		if (isRequestTimeout() != other.isRequestTimeout())
+			return false;
 		
 		if (data == null) {
 			if (other.data != null)
@@ -256,10 +530,15 @@ public final class Message {
     	 .add("arg1", arg1)
     	 .add("arg2", arg2)
     	 .add("when", when)
+    	 .add("priority", priority)
+    	 .add("longs", slotMask == 0 ? null : "[" + long0 + ", " + long1 + ", " + long2 + ", " + long3 + "]")
+    	 .add("doubles", slotMask == 0 ? null : "[" + double0 + ", " + double1 + ", " + double2 + ", " + double3 + "]")
     	 
     	 .add("obj", obj)
     	 .add("data", data)
     	 .add("replier", replier)
+    	 .add("correlation-id", correlationId)
+    	 .add("trace-id", traceId)
     	 .add("in-use", isInUse())
     	 .add("from-team", isFromTeam())
     	 .toString();
@@ -276,4 +555,19 @@ public final class Message {
     	 */
     	void reply(Message msg);
     }
+
+    /**
+     * the message merger which is used to coalesce the pending messages of the same what.
+     * @since 1.2.1
+     * @see IController#setMessageCoalescePolicy(int, byte, MessageMerger)
+     */
+    public interface MessageMerger{
+    	/**
+    	 * called on merge the incoming message to the pending message. the pending message will be kept
+    	 * and the incoming message will be recycled after this.
+    	 * @param pending the pending message which is waiting to dispatch.
+    	 * @param incoming the new incoming message of the same what.
+    	 */
+    	void merge(Message pending, Message incoming);
+    }
 }
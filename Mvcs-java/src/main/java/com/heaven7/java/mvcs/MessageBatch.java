@@ -0,0 +1,251 @@
+package com.heaven7.java.mvcs;
+
+import java.util.Arrays;
+
+import com.heaven7.java.base.util.Objects;
+
+/**
+ * the batch of messages which can be dispatched in one pass. see
+ * {@linkplain IController#dispatchMessages(MessageBatch, byte, byte)}. After dispatched, the messages of batch are
+ * recycled and the batch is cleared, so the batch can be reused.
+ * <p>Note: this class is not thread-safe.</p>
+ * @author heaven7
+ * @since 1.2.1
+ * @see IController#dispatchMessages(MessageBatch, byte, byte)
+ * @see AbstractState#handleMessages(MessageBatch)
+ */
+public final class MessageBatch {
+
+	/** the message is handled in current dispatch. */
+	private static final byte FLAG_HANDLED = 1;
+	/** the message is pending (delayed or coalesced), so it should be skipped. */
+	private static final byte FLAG_SKIP    = 2;
+	/** the message is pending for current controller only. often used by team. */
+	private static final byte FLAG_SKIP_LOCAL = 4;
+
+	private Message[] mMessages;
+	private byte[] mFlags;
+	private int mSize;
+
+	/** the policy of current dispatch */
+	private byte mPolicy = IController.POLICY_BROADCAST;
+	/** the count of the messages which can still be delivered. */
+	private int mDeliverableCount;
+
+	public MessageBatch() {
+		this(16);
+	}
+
+	/**
+	 * create message batch with the initial capacity.
+	 * @param capacity the initial capacity.
+	 */
+	public MessageBatch(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive.");
+		}
+		mMessages = new Message[capacity];
+		mFlags = new byte[capacity];
+	}
+
+	/**
+	 * add a message to this batch.
+	 * @param msg the message
+	 * @return this.
+	 * @throws NullPointerException if the message is null.
+	 * @throws IllegalStateException if message is in use.
+	 */
+	public MessageBatch add(Message msg) {
+		if (msg == null) {
+			throw new NullPointerException();
+		}
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		if (mSize == mMessages.length) {
+			final int newCapacity = mSize << 1;
+			mMessages = Arrays.copyOf(mMessages, newCapacity);
+			mFlags = Arrays.copyOf(mFlags, newCapacity);
+		}
+		mMessages[mSize++] = msg;
+		return this;
+	}
+
+	/**
+	 * get the count of messages.
+	 * @return the size of batch.
+	 */
+	public int size() {
+		return mSize;
+	}
+
+	/**
+	 * get the message of the target index.
+	 * @param index the index
+	 * @return the message.
+	 */
+	public Message get(int index) {
+		checkIndex(index);
+		return mMessages[index];
+	}
+
+	/**
+	 * indicate the message of the target index should be delivered to the state or not. that is, the message isn't
+	 * pending and isn't consumed in current dispatch.
+	 * @param index the index
+	 * @return true if should deliver.
+	 */
+	public boolean shouldDeliver(int index) {
+		checkIndex(index);
+		return isDeliverable(mFlags[index]);
+	}
+
+	/**
+	 * indicate the message of the target index is handled in current dispatch.
+	 * @param index the index
+	 * @return true if handled.
+	 */
+	public boolean isHandled(int index) {
+		checkIndex(index);
+		return (mFlags[index] & FLAG_HANDLED) != 0;
+	}
+
+	/**
+	 * mark the message of the target index handled. if the policy is {@linkplain IController#POLICY_CONSUME},
+	 * the message will not be delivered to other states.
+	 * @param index the index
+	 */
+	public void markHandled(int index) {
+		checkIndex(index);
+		if ((mFlags[index] & (FLAG_HANDLED | FLAG_SKIP | FLAG_SKIP_LOCAL)) == 0) {
+			mFlags[index] |= FLAG_HANDLED;
+			if (mPolicy == IController.POLICY_CONSUME) {
+				mDeliverableCount--;
+			}
+		}
+	}
+
+	/**
+	 * get the policy of current dispatch.
+	 * @return the policy.
+	 */
+	public byte getPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * get the count of handled messages in current dispatch.
+	 * @return the count of handled messages
+	 */
+	public int getHandledCount() {
+		int count = 0;
+		for (int i = 0; i < mSize; i++) {
+			if ((mFlags[i] & FLAG_HANDLED) != 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * clear the messages of this batch without recycle.
+	 */
+	public void clear() {
+		Arrays.fill(mMessages, 0, mSize, null);
+		Arrays.fill(mFlags, 0, mSize, (byte) 0);
+		mSize = 0;
+		mDeliverableCount = 0;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("size", mSize)
+				.add("policy", mPolicy)
+				.add("messages", Arrays.toString(Arrays.copyOf(mMessages, mSize)))
+				.toString();
+	}
+
+	// ======================== start internal method =========================
+
+	/** begin a dispatch with the target policy. */
+	void begin(byte policy) {
+		this.mPolicy = policy;
+		Arrays.fill(mFlags, 0, mSize, (byte) 0);
+		mDeliverableCount = mSize;
+	}
+
+	/**
+	 * skip the message of the index. because it is pending.
+	 * @param local true if only skip for current controller. see {@linkplain #clearLocalSkips()}.
+	 */
+	void skip(int index, boolean local) {
+		if (isDeliverable(mFlags[index])) {
+			mDeliverableCount--;
+		}
+		mFlags[index] |= local ? FLAG_SKIP_LOCAL : FLAG_SKIP;
+	}
+
+	/** clear the skip flags which only for current controller. */
+	void clearLocalSkips() {
+		for (int i = 0; i < mSize; i++) {
+			if ((mFlags[i] & FLAG_SKIP_LOCAL) != 0) {
+				mFlags[i] &= ~FLAG_SKIP_LOCAL;
+				if (isDeliverable(mFlags[i])) {
+					mDeliverableCount++;
+				}
+			}
+		}
+	}
+
+	boolean isSkipped(int index) {
+		return (mFlags[index] & (FLAG_SKIP | FLAG_SKIP_LOCAL)) != 0;
+	}
+
+	/** mark the messages which are not skipped from team. */
+	void markFromTeam() {
+		for (int i = 0; i < mSize; i++) {
+			if ((mFlags[i] & FLAG_SKIP) == 0) {
+				mMessages[i].markFromTeam();
+			}
+		}
+	}
+
+	/** indicate there is any message can be delivered. */
+	boolean hasDeliverable() {
+		return mDeliverableCount > 0;
+	}
+
+	/** get the count of messages which can be delivered. */
+	int getDeliverableCount() {
+		return mDeliverableCount;
+	}
+
+	/** mark the all messages in use or not. without the skipped messages. */
+	void markInUse(boolean inUse) {
+		for (int i = 0; i < mSize; i++) {
+			if ((mFlags[i] & FLAG_SKIP) == 0) {
+				mMessages[i].markInUse(inUse);
+			}
+		}
+	}
+
+	/** recycle the all messages which are not skipped. and clear this batch. */
+	void recycleAndClear() {
+		Message.recycleAll(mMessages, mFlags, FLAG_SKIP, mSize);
+		clear();
+	}
+
+	private boolean isDeliverable(byte flags) {
+		if ((flags & (FLAG_SKIP | FLAG_SKIP_LOCAL)) != 0) {
+			return false;
+		}
+		return mPolicy != IController.POLICY_CONSUME || (flags & FLAG_HANDLED) == 0;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= mSize) {
+			throw new IndexOutOfBoundsException("index = " + index + " ,size = " + mSize);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.heaven7.java.base.util.Objects;
+
+/**
+ * the future of request message. which is completed by the reply message of the same correlation id.
+ * it is the replier of request message, so the state can reply by {@linkplain Message#reply(Message)}.
+ * the first reply wins, the others are ignored.
+ * @author heaven7
+ * @since 1.2.1
+ * @see IController#request(Message, byte, byte, long)
+ * @see StateTeamManager#request(int, Message, byte, int, long)
+ */
+public final class MessageFuture implements Future<Message>, Message.MessageReplier {
+
+	/** the state of future: pending. */
+	public static final byte STATE_PENDING   = 0;
+	/** the state of future: done with reply message. */
+	public static final byte STATE_DONE      = 1;
+	/** the state of future: cancelled. */
+	public static final byte STATE_CANCELLED = 2;
+	/** the state of future: timeout. */
+	public static final byte STATE_TIMEOUT   = 3;
+
+	private final int mId;
+	private final RequestRegistry mRegistry;
+
+	private volatile byte mState = STATE_PENDING;
+	private Message mResult;
+	private List<Callback> mCallbacks;
+
+	/**
+	 * the callback of future.
+	 * @since 1.2.1
+	 */
+	public interface Callback {
+		/**
+		 * called on the future is completed. that is done, cancelled or timeout. this is called on the thread
+		 * which complete the future.
+		 * @param future the future
+		 */
+		void onComplete(MessageFuture future);
+	}
+
+	/*public*/ MessageFuture(int id, RequestRegistry registry) {
+		this.mId = id;
+		this.mRegistry = registry;
+	}
+
+	/**
+	 * get the correlation id of request.
+	 * @return the correlation id
+	 */
+	public int getId() {
+		return mId;
+	}
+
+	/**
+	 * get the state of this future.
+	 * @return the state. see {@linkplain #STATE_PENDING}, {@linkplain #STATE_DONE}, {@linkplain #STATE_CANCELLED}
+	 *         and {@linkplain #STATE_TIMEOUT}.
+	 */
+	public byte getState() {
+		return mState;
+	}
+
+	/**
+	 * indicate the request is timeout or not.
+	 * @return true if timeout.
+	 */
+	public boolean isTimeout() {
+		return mState == STATE_TIMEOUT;
+	}
+
+	/**
+	 * add a callback. if the future is already completed, the callback will be called right now.
+	 * @param callback the callback
+	 * @return this.
+	 */
+	public MessageFuture addCallback(Callback callback) {
+		if (callback == null) {
+			throw new NullPointerException();
+		}
+		synchronized (this) {
+			if (mState == STATE_PENDING) {
+				if (mCallbacks == null) {
+					mCallbacks = new ArrayList<>(2);
+				}
+				mCallbacks.add(callback);
+				return this;
+			}
+		}
+		callback.onComplete(this);
+		return this;
+	}
+
+	/**
+	 * get the reply message now.
+	 * @return the reply message. or null if not done.
+	 */
+	public Message getNow() {
+		synchronized (this) {
+			return mResult;
+		}
+	}
+
+	@Override
+	public void reply(Message msg) {
+		complete(STATE_DONE, msg);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(STATE_CANCELLED, null);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return mState == STATE_CANCELLED;
+	}
+
+	@Override
+	public boolean isDone() {
+		return mState != STATE_PENDING;
+	}
+
+	@Override
+	public Message get() throws InterruptedException, ExecutionException {
+		synchronized (this) {
+			while (mState == STATE_PENDING) {
+				wait();
+			}
+			return report();
+		}
+	}
+
+	@Override
+	public Message get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		long remain = unit.toNanos(timeout);
+		final long deadline = System.nanoTime() + remain;
+		synchronized (this) {
+			while (mState == STATE_PENDING) {
+				if (remain <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remain);
+				remain = deadline - System.nanoTime();
+			}
+			return report();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("id", mId)
+				.add("state", mState)
+				.add("result", mResult)
+				.toString();
+	}
+
+	/**
+	 * complete this future with the target state.
+	 * @param state the state
+	 * @param result the reply message. can be null.
+	 * @return true if completed by this call.
+	 */
+	/*public*/ boolean complete(byte state, Message result) {
+		final List<Callback> callbacks;
+		synchronized (this) {
+			if (mState != STATE_PENDING) {
+				return false;
+			}
+			if (result != null) {
+				result.setCorrelationId(mId);
+			}
+			this.mResult = result;
+			this.mState = state;
+			callbacks = mCallbacks;
+			mCallbacks = null;
+			notifyAll();
+		}
+		mRegistry.remove(mId);
+		if (callbacks != null) {
+			for (Callback cb : callbacks) {
+				cb.onComplete(this);
+			}
+		}
+		return true;
+	}
+
+	private Message report() throws ExecutionException {
+		switch (mState) {
+		case STATE_CANCELLED:
+			throw new CancellationException("request is cancelled. id = " + mId);
+
+		case STATE_TIMEOUT:
+			throw new ExecutionException(new TimeoutException("request is timeout. id = " + mId));
+
+		default:
+			return mResult;
+		}
+	}
+}
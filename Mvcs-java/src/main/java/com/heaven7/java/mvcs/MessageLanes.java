@@ -0,0 +1,199 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * the multi-lane queue of the ready messages. every lane corresponding a priority of {@linkplain Message}.
+ * the messages are drained by {@linkplain IController#DRAIN_STRICT} or {@linkplain IController#DRAIN_WEIGHTED_FAIR},
+ * and the count of drained messages is bounded by the delivery budget of one update.
+ * <p>Note: this class is not thread-safe.</p>
+ * @author heaven7
+ *
+ * @param <E> the entry type
+ * @since 1.2.1
+ * @see Message#priority
+ */
+/* public */ final class MessageLanes<E extends MessageLanes.Entry> {
+
+	/** the default weights of lanes. (high, normal, low) */
+	private static final int[] DEFAULT_WEIGHTS = { 4, 2, 1 };
+
+	private final ArrayDeque<E>[] mLanes;
+	private int[] mWeights = DEFAULT_WEIGHTS;
+	private byte mDrainPolicy = IController.DRAIN_STRICT;
+	/** the max count of messages to drain once. <=0 means unlimited. */
+	private int mBudget;
+
+	/**
+	 * the entry of lane.
+	 */
+	static class Entry {
+		Message msg;
+
+		Entry(Message msg) {
+			this.msg = msg;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public MessageLanes() {
+		mLanes = (ArrayDeque<E>[]) new ArrayDeque<?>[Message.PRIORITY_COUNT];
+		for (int i = 0; i < mLanes.length; i++) {
+			mLanes[i] = new ArrayDeque<E>(4);
+		}
+	}
+
+	/**
+	 * set the delivery policy.
+	 * @param drainPolicy the drain policy
+	 * @param budget the max count of messages to drain once. <=0 means unlimited.
+	 * @param weights the weights of lanes for {@linkplain IController#DRAIN_WEIGHTED_FAIR}. can be null.
+	 */
+	public void setDeliveryPolicy(byte drainPolicy, int budget, int[] weights) {
+		switch (drainPolicy) {
+		case IController.DRAIN_STRICT:
+		case IController.DRAIN_WEIGHTED_FAIR:
+			break;
+
+		default:
+			throw new IllegalArgumentException("unknown drain policy = " + drainPolicy);
+		}
+		if (weights != null) {
+			if (weights.length != Message.PRIORITY_COUNT) {
+				throw new IllegalArgumentException("the length of weights must be " + Message.PRIORITY_COUNT);
+			}
+			for (int w : weights) {
+				if (w <= 0) {
+					throw new IllegalArgumentException("weight must be positive.");
+				}
+			}
+			this.mWeights = weights.clone();
+		} else {
+			this.mWeights = DEFAULT_WEIGHTS;
+		}
+		this.mDrainPolicy = drainPolicy;
+		this.mBudget = budget;
+	}
+
+	public void offer(E e) {
+		mLanes[laneOf(e.msg.priority)].offerLast(e);
+	}
+
+	/**
+	 * put the entry back to the head of its lane. which is drained but not delivered.
+	 * @param e the entry
+	 */
+	public void offerFirst(E e) {
+		mLanes[laneOf(e.msg.priority)].offerFirst(e);
+	}
+
+	public boolean isEmpty() {
+		for (ArrayDeque<E> lane : mLanes) {
+			if (!lane.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int size() {
+		int size = 0;
+		for (ArrayDeque<E> lane : mLanes) {
+			size += lane.size();
+		}
+		return size;
+	}
+
+	/**
+	 * drain the messages to the out list. the remained messages will be drained in next time.
+	 * @param out the out list
+	 * @return the count of drained messages.
+	 */
+	public int drain(List<? super E> out) {
+		final ArrayDeque<E>[] lanes = this.mLanes;
+		int remain = mBudget <= 0 ? Integer.MAX_VALUE : mBudget;
+		final int start = remain;
+		E e;
+		if (mDrainPolicy == IController.DRAIN_STRICT) {
+			for (ArrayDeque<E> lane : lanes) {
+				for (; remain > 0 && (e = lane.pollFirst()) != null; remain--) {
+					out.add(e);
+				}
+			}
+		} else {
+			final int[] weights = this.mWeights;
+			boolean progressed = true;
+			while (remain > 0 && progressed) {
+				progressed = false;
+				for (int i = 0; i < lanes.length; i++) {
+					for (int k = weights[i]; k > 0 && remain > 0 && (e = lanes[i].pollFirst()) != null; k--) {
+						out.add(e);
+						remain--;
+						progressed = true;
+					}
+				}
+			}
+		}
+		return start - remain;
+	}
+
+	public boolean hasMessage(int what) {
+		for (ArrayDeque<E> lane : mLanes) {
+			for (E e : lane) {
+				if (e.msg.what == what) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	public boolean hasMessage(Message expect) {
+		for (ArrayDeque<E> lane : mLanes) {
+			for (E e : lane) {
+				if (e.msg.equals(expect)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * remove and recycle the messages.
+	 * @param what the what of message to remove
+	 * @param expect the expect message to remove. null means remove by what.
+	 */
+	public void removeMessages(int what, Message expect) {
+		Message msg;
+		for (ArrayDeque<E> lane : mLanes) {
+			final Iterator<E> it = lane.iterator();
+			for (; it.hasNext();) {
+				msg = it.next().msg;
+				if (expect != null ? msg.equals(expect) : msg.what == what) {
+					it.remove();
+					msg.recycleUnchecked();
+				}
+			}
+		}
+	}
+
+	/** clear and recycle the all messages. */
+	public void clear() {
+		E e;
+		for (ArrayDeque<E> lane : mLanes) {
+			while ((e = lane.pollFirst()) != null) {
+				e.msg.recycleUnchecked();
+			}
+		}
+	}
+
+	private static int laneOf(int priority) {
+		if (priority < 0) {
+			return 0;
+		}
+		return priority >= Message.PRIORITY_COUNT ? Message.PRIORITY_COUNT - 1 : priority;
+	}
+}
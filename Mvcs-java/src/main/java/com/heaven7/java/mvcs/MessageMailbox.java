@@ -0,0 +1,296 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * the multi-producer/single-consumer mailbox of controller. which is used by actor mode.
+ * any thread can offer messages, but only the owner thread can poll them. the unbounded mailbox is lock-free,
+ * and the bounded mailbox apply the overflow policy when it is full.
+ * @author heaven7
+ * @since 1.2.1
+ * @see IController#setActorModeEnabled(boolean)
+ * @see IController#setMailboxCapacity(int, byte)
+ */
+/* public */ abstract class MessageMailbox {
+
+	/** the offer result: the mailbox is closed. the message is not accepted and still owned by caller. */
+	static final int OFFER_CLOSED = -2;
+
+	/**
+	 * the node of mailbox.
+	 */
+	static final class Node {
+		Message msg;
+		int states;
+		byte policy;
+		byte scope;
+		volatile Node next;
+
+		Node(Message msg, int states, byte policy, byte scope) {
+			this.msg = msg;
+			this.states = states;
+			this.policy = policy;
+			this.scope = scope;
+		}
+	}
+
+	/**
+	 * create the mailbox.
+	 * @param capacity the capacity. <=0 means unbounded.
+	 * @param overflowPolicy the overflow policy of bounded mailbox.
+	 * @return the mailbox
+	 */
+	public static MessageMailbox create(int capacity, byte overflowPolicy) {
+		return capacity <= 0 ? new Unbounded() : new Bounded(capacity, overflowPolicy);
+	}
+
+	/**
+	 * offer a message. this can be called from any thread. the message is owned by mailbox if accepted,
+	 * or else it is recycled. but if the mailbox is closed, the message is handed back to caller.
+	 * @param msg the message which is in use.
+	 * @param states the target states. -1 means all.
+	 * @param policy the policy
+	 * @param scope the scope flags
+	 * @param blockable true if can block the producer on {@linkplain IController#OVERFLOW_BLOCK}.
+	 * @return the offer result. see {@linkplain IController#OFFER_ACCEPTED}, {@linkplain IController#OFFER_COALESCED},
+	 *         {@linkplain IController#OFFER_REJECTED} and {@linkplain #OFFER_CLOSED}.
+	 */
+	public abstract int offer(Message msg, int states, byte policy, byte scope, boolean blockable);
+
+	/**
+	 * poll a node. only called by the consumer thread. read the node before next poll. after
+	 * {@linkplain #close()}, this waits the producers which are linking their accepted nodes. so draining until
+	 * null will see the all accepted messages.
+	 * @return the node. or null if empty.
+	 */
+	public abstract Node poll();
+
+	/**
+	 * close this mailbox. the later offers get {@linkplain #OFFER_CLOSED}, and the blocked producers are woken up.
+	 * the accepted messages are still polled by the consumer.
+	 */
+	public abstract void close();
+
+	/**
+	 * get the count of pending messages.
+	 * @return the depth of mailbox.
+	 */
+	public abstract int size();
+
+	/**
+	 * get the count of dropped or rejected messages.
+	 * @return the drop count
+	 */
+	public abstract long getDropCount();
+
+	/** poll and recycle the all messages. only called by the consumer thread. */
+	public void clear() {
+		Node node;
+		while ((node = poll()) != null) {
+			node.msg.recycleUnchecked();
+			node.msg = null;
+		}
+	}
+
+	/**
+	 * the unbounded lock-free mailbox (Vyukov's MPSC queue). per message, the producers do one CAS of tail (retry on
+	 * contention) and one atomic increment of the size counter for {@linkplain IController#getMailboxDepth()}. so
+	 * they don't block each other. the closed mailbox has the sentinel as tail.
+	 */
+	private static final class Unbounded extends MessageMailbox {
+
+		private static final AtomicReferenceFieldUpdater<Node, Node> sNextUpdater = AtomicReferenceFieldUpdater
+				.newUpdater(Node.class, Node.class, "next");
+		/** the tail of closed mailbox. which is also linked after the last accepted node. */
+		private static final Node CLOSED = new Node(null, -1, (byte) 0, (byte) 0);
+
+		/** the tail which is swapped by producers. */
+		private final AtomicReference<Node> mTail;
+		private final AtomicInteger mSize = new AtomicInteger();
+		/** the head(stub) which is only accessed by consumer. */
+		private Node mHead;
+
+		public Unbounded() {
+			final Node stub = new Node(null, -1, (byte) 0, (byte) 0);
+			mHead = stub;
+			mTail = new AtomicReference<Node>(stub);
+		}
+
+		@Override
+		public int offer(Message msg, int states, byte policy, byte scope, boolean blockable) {
+			final Node node = new Node(msg, states, policy, scope);
+			Node prev;
+			do {
+				prev = mTail.get();
+				if (prev == CLOSED) {
+					return OFFER_CLOSED;
+				}
+			} while (!mTail.compareAndSet(prev, node));
+			sNextUpdater.lazySet(prev, node);
+			mSize.incrementAndGet();
+			return IController.OFFER_ACCEPTED;
+		}
+
+		/** the returned node becomes the new stub. */
+		@Override
+		public Node poll() {
+			Node next = mHead.next;
+			if (next == null) {
+				if (mTail.get() != CLOSED) {
+					return null;
+				}
+				// closed. the accepted nodes are linked soon, and the last one is followed by the sentinel.
+				while ((next = mHead.next) == null) {
+					Thread.yield();
+				}
+			}
+			if (next == CLOSED) {
+				return null;
+			}
+			mHead = next;
+			mSize.decrementAndGet();
+			return next;
+		}
+
+		@Override
+		public void close() {
+			final Node last = mTail.getAndSet(CLOSED);
+			if (last != CLOSED) {
+				sNextUpdater.lazySet(last, CLOSED);
+			}
+		}
+
+		@Override
+		public int size() {
+			return Math.max(0, mSize.get());
+		}
+
+		@Override
+		public long getDropCount() {
+			return 0;
+		}
+	}
+
+	/**
+	 * the bounded mailbox. which apply the overflow policy when it is full.
+	 */
+	private static final class Bounded extends MessageMailbox {
+
+		private final ArrayDeque<Node> mQueue;
+		private final int mCapacity;
+		private final byte mOverflowPolicy;
+		private final AtomicLong mDropCount = new AtomicLong();
+		private boolean mClosed;
+
+		public Bounded(int capacity, byte overflowPolicy) {
+			this.mQueue = new ArrayDeque<Node>(Math.min(capacity, 16));
+			this.mCapacity = capacity;
+			this.mOverflowPolicy = overflowPolicy;
+		}
+
+		@Override
+		public int offer(Message msg, int states, byte policy, byte scope, boolean blockable) {
+			Message dropped = null;
+			int result = IController.OFFER_ACCEPTED;
+			synchronized (this) {
+				if (mClosed) {
+					return OFFER_CLOSED;
+				}
+				final ArrayDeque<Node> queue = this.mQueue;
+				if (queue.size() >= mCapacity) {
+					switch (mOverflowPolicy) {
+					case IController.OVERFLOW_BLOCK:
+						if (!blockable) {
+							dropped = msg;
+							break;
+						}
+						try {
+							while (queue.size() >= mCapacity && !mClosed) {
+								wait();
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							dropped = msg;
+							break;
+						}
+						if (mClosed) {
+							return OFFER_CLOSED;
+						}
+						break;
+
+					case IController.OVERFLOW_DROP_OLDEST:
+						dropped = queue.pollFirst().msg;
+						break;
+
+					case IController.OVERFLOW_COALESCE:
+						dropped = msg;
+						for (Iterator<Node> it = queue.descendingIterator(); it.hasNext();) {
+							final Node node = it.next();
+							if (node.msg.what == msg.what) {
+								dropped = node.msg;
+								node.msg = msg;
+								node.states = states;
+								node.policy = policy;
+								node.scope = scope;
+								result = IController.OFFER_COALESCED;
+								break;
+							}
+						}
+						break;
+
+					default:
+						// fail or drop newest
+						dropped = msg;
+						break;
+					}
+				}
+				if (dropped == msg) {
+					result = IController.OFFER_REJECTED;
+				} else if (result == IController.OFFER_ACCEPTED) {
+					queue.offerLast(new Node(msg, states, policy, scope));
+				}
+			}
+			if (dropped != null) {
+				mDropCount.incrementAndGet();
+				dropped.recycleUnchecked();
+			}
+			return result;
+		}
+
+		@Override
+		public Node poll() {
+			synchronized (this) {
+				final Node node = mQueue.pollFirst();
+				if (node != null && mOverflowPolicy == IController.OVERFLOW_BLOCK) {
+					notifyAll();
+				}
+				return node;
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				mClosed = true;
+				notifyAll();
+			}
+		}
+
+		@Override
+		public int size() {
+			synchronized (this) {
+				return mQueue.size();
+			}
+		}
+
+		@Override
+		public long getDropCount() {
+			return mDropCount.get();
+		}
+	}
+}
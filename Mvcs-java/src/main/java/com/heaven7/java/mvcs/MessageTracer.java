@@ -0,0 +1,308 @@
+package com.heaven7.java.mvcs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.heaven7.java.base.util.Objects;
+
+/**
+ * the sampled tracer of message flow. the sampled message is tagged with a trace id when it enter the
+ * controller or team manager, and every hop of it (team, member, controller and state) is recorded with the timing,
+ * handler identity and outcome into a lock-free ring buffer. the old records are overwritten when the ring is full.
+ * <p>use {@linkplain #install(MessageTracer)} to enable tracing. when no tracer is installed or the message is not
+ * sampled, the cost is only a field check per hop.</p>
+ * @author heaven7
+ * @since 1.2.1
+ */
+public final class MessageTracer {
+
+	/** the hop: dispatch by team. */
+	public static final byte HOP_TEAM       = 1;
+	/** the hop: dispatch by member of team. */
+	public static final byte HOP_MEMBER     = 2;
+	/** the hop: dispatch by controller. */
+	public static final byte HOP_CONTROLLER = 3;
+	/** the hop: handled by state. */
+	public static final byte HOP_STATE      = 4;
+
+	/** the outcome: not handled. */
+	public static final byte OUTCOME_IGNORED  = 0;
+	/** the outcome: handled. */
+	public static final byte OUTCOME_HANDLED  = 1;
+	/** the outcome: handled and consumed by {@linkplain IController#POLICY_CONSUME}. */
+	public static final byte OUTCOME_CONSUMED = 2;
+
+	private static final String[] HOP_NAMES = { "unknown", "team", "member", "controller", "state" };
+	private static final String[] OUTCOME_NAMES = { "ignored", "handled", "consumed" };
+
+	private static volatile MessageTracer sTracer;
+
+	private final double mSampleRate;
+	private final AtomicLong mTraceIds = new AtomicLong();
+	private final AtomicLong mSequence = new AtomicLong();
+	private final Slot[] mSlots;
+	/** the stamps of slots. 0 means the slot is writing or empty. else it is the sequence + 1. */
+	private final AtomicLongArray mStamps;
+	private final int mMask;
+
+	/**
+	 * the slot of ring. the fields are volatile, so the reader can check the stamp after read them.
+	 */
+	private static final class Slot {
+		volatile long traceId;
+		volatile byte hop;
+		volatile int what;
+		volatile String handler;
+		volatile int identity;
+		volatile int states;
+		volatile long threadId;
+		volatile long startNanos;
+		volatile long durationNanos;
+		volatile byte outcome;
+	}
+
+	/**
+	 * the record of a hop.
+	 * @since 1.2.1
+	 */
+	public static final class TraceRecord {
+		public final long traceId;
+		/** the hop. see {@linkplain MessageTracer#HOP_TEAM} and etc. */
+		public final byte hop;
+		/** the what of message */
+		public final int what;
+		/** the class name of handler. */
+		public final String handler;
+		/** the identity hash code of handler. */
+		public final int identity;
+		/** the target states. -1 means all. for {@linkplain MessageTracer#HOP_STATE} it is the state flag.*/
+		public final int states;
+		public final long threadId;
+		public final long startNanos;
+		public final long durationNanos;
+		/** the outcome. see {@linkplain MessageTracer#OUTCOME_HANDLED} and etc. */
+		public final byte outcome;
+
+		TraceRecord(Slot slot) {
+			this.traceId = slot.traceId;
+			this.hop = slot.hop;
+			this.what = slot.what;
+			this.handler = slot.handler;
+			this.identity = slot.identity;
+			this.states = slot.states;
+			this.threadId = slot.threadId;
+			this.startNanos = slot.startNanos;
+			this.durationNanos = slot.durationNanos;
+			this.outcome = slot.outcome;
+		}
+
+		@Override
+		public String toString() {
+			return Objects.toStringHelper(this)
+					.add("traceId", traceId)
+					.add("hop", HOP_NAMES[hop])
+					.add("what", what)
+					.add("handler", handler + "@" + Integer.toHexString(identity))
+					.add("states", states)
+					.add("thread", threadId)
+					.add("durationNanos", durationNanos)
+					.add("outcome", OUTCOME_NAMES[outcome])
+					.toString();
+		}
+	}
+
+	/**
+	 * create the message tracer.
+	 * @param capacity the capacity of ring. which will be rounded up to power of 2.
+	 * @param sampleRate the sample rate in [0, 1]. 1 means trace every message.
+	 */
+	public MessageTracer(int capacity, double sampleRate) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive.");
+		}
+		if (sampleRate < 0 || sampleRate > 1) {
+			throw new IllegalArgumentException("sample rate must be in [0, 1]. sampleRate = " + sampleRate);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mSampleRate = sampleRate;
+		this.mMask = size - 1;
+		this.mSlots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			mSlots[i] = new Slot();
+		}
+		this.mStamps = new AtomicLongArray(size);
+	}
+
+	/**
+	 * install the global tracer.
+	 * @param tracer the tracer. null to disable tracing.
+	 */
+	public static void install(MessageTracer tracer) {
+		sTracer = tracer;
+	}
+
+	/**
+	 * get the installed tracer.
+	 * @return the tracer. or null if tracing is disabled.
+	 */
+	public static MessageTracer getInstalled() {
+		return sTracer;
+	}
+
+	public double getSampleRate() {
+		return mSampleRate;
+	}
+
+	public int getCapacity() {
+		return mSlots.length;
+	}
+
+	/**
+	 * get the snapshot of records in the order of written. the records which are overwriting are skipped.
+	 * @return the records.
+	 */
+	public List<TraceRecord> snapshot() {
+		final long end = mSequence.get();
+		final long start = Math.max(0, end - mSlots.length);
+		final List<TraceRecord> list = new ArrayList<>((int) (end - start));
+		int index;
+		long stamp;
+		for (long seq = start; seq < end; seq++) {
+			index = (int) (seq & mMask);
+			stamp = mStamps.get(index);
+			if (stamp != seq + 1) {
+				continue;
+			}
+			final TraceRecord record = new TraceRecord(mSlots[index]);
+			if (mStamps.get(index) == stamp) {
+				list.add(record);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * export the records as json. like <code>{"records":[{"traceId":1,"hop":"state",...}]}</code>
+	 * @return the json string.
+	 */
+	public String toJson() {
+		final StringBuilder sb = new StringBuilder();
+		try {
+			writeJson(sb);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * write the records as json to the out.
+	 * @param out the out
+	 * @throws IOException if write failed.
+	 * @see #toJson()
+	 */
+	public void writeJson(Appendable out) throws IOException {
+		out.append("{\"records\":[");
+		final List<TraceRecord> records = snapshot();
+		TraceRecord r;
+		for (int i = 0, size = records.size(); i < size; i++) {
+			r = records.get(i);
+			if (i > 0) {
+				out.append(',');
+			}
+			out.append("{\"traceId\":").append(String.valueOf(r.traceId))
+			   .append(",\"hop\":\"").append(HOP_NAMES[r.hop])
+			   .append("\",\"what\":").append(String.valueOf(r.what))
+			   .append(",\"handler\":\"");
+			appendEscaped(out, r.handler);
+			out.append("\",\"identity\":").append(String.valueOf(r.identity))
+			   .append(",\"states\":").append(String.valueOf(r.states))
+			   .append(",\"thread\":").append(String.valueOf(r.threadId))
+			   .append(",\"startNanos\":").append(String.valueOf(r.startNanos))
+			   .append(",\"durationNanos\":").append(String.valueOf(r.durationNanos))
+			   .append(",\"outcome\":\"").append(OUTCOME_NAMES[r.outcome])
+			   .append("\"}");
+		}
+		out.append("]}");
+	}
+
+	/** clear the all records. */
+	public void clear() {
+		for (int i = 0, size = mSlots.length; i < size; i++) {
+			mStamps.set(i, 0);
+		}
+	}
+
+	// ======================== start internal method =========================
+
+	/**
+	 * sample the message if it isn't traced.
+	 * @param msg the message
+	 */
+	static void sample(Message msg) {
+		final MessageTracer tracer = sTracer;
+		if (tracer == null || msg.getTraceId() != 0) {
+			return;
+		}
+		final double rate = tracer.mSampleRate;
+		if (rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate)) {
+			msg.setTraceId(tracer.mTraceIds.incrementAndGet());
+		}
+	}
+
+	/**
+	 * record a hop of the traced message.
+	 * @param msg the message which is traced.
+	 * @param hop the hop
+	 * @param handler the handler
+	 * @param states the target states or state flag
+	 * @param startNanos the start time in nanos
+	 * @param handled true if handled
+	 * @param policy the policy of dispatch
+	 */
+	static void record(Message msg, byte hop, Object handler, int states, long startNanos, boolean handled,
+			byte policy) {
+		final long end = System.nanoTime();
+		final MessageTracer tracer = sTracer;
+		if (tracer == null) {
+			return;
+		}
+		final long seq = tracer.mSequence.getAndIncrement();
+		final int index = (int) (seq & tracer.mMask);
+		final AtomicLongArray stamps = tracer.mStamps;
+		stamps.set(index, 0);
+
+		final Slot slot = tracer.mSlots[index];
+		slot.traceId = msg.getTraceId();
+		slot.hop = hop;
+		slot.what = msg.what;
+		slot.handler = handler.getClass().getName();
+		slot.identity = System.identityHashCode(handler);
+		slot.states = states;
+		slot.threadId = Thread.currentThread().getId();
+		slot.startNanos = startNanos;
+		slot.durationNanos = end - startNanos;
+		slot.outcome = !handled ? OUTCOME_IGNORED
+				: (policy == IController.POLICY_CONSUME ? OUTCOME_CONSUMED : OUTCOME_HANDLED);
+
+		stamps.lazySet(index, seq + 1);
+	}
+
+	private static void appendEscaped(Appendable out, String str) throws IOException {
+		char c;
+		for (int i = 0, len = str.length(); i < len; i++) {
+			c = str.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\');
+			}
+			out.append(c);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.heaven7.java.mvcs;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.heaven7.java.base.util.SparseArray;
+
+/**
+ * the registry of pending requests. which correlate the reply to the request by id. the timeout of request
+ * is an internal delayed message which is carried by the delayed-message queue of owner.
+ * @author heaven7
+ * @since 1.2.1
+ * @see MessageFuture
+ */
+/* public */ final class RequestRegistry {
+
+	private final AtomicInteger mIds = new AtomicInteger();
+	private final SparseArray<MessageFuture> mPending = new SparseArray<MessageFuture>();
+	private final TimeoutRemover mRemover;
+
+	/**
+	 * the remover of timeout messages. which remove them from the delayed-message queue of owner.
+	 */
+	/* public */ interface TimeoutRemover {
+		/**
+		 * remove the timeout message from the delayed-message queue.
+		 * @param msg the timeout message
+		 * @return true if removed. false if it is not queued, such as it is due and being handled.
+		 */
+		boolean removeTimeout(Message msg);
+	}
+
+	/**
+	 * create the registry.
+	 * @param remover the remover of timeout messages.
+	 */
+	RequestRegistry(TimeoutRemover remover) {
+		this.mRemover = remover;
+	}
+
+	/**
+	 * register the request message. the replier of message will be the future.
+	 * @param msg the request message
+	 * @return the future
+	 * @throws IllegalArgumentException if the message already has replier.
+	 */
+	public MessageFuture register(Message msg) {
+		if (msg.replier != null) {
+			throw new IllegalArgumentException("the request message can't have replier.");
+		}
+		int id;
+		do {
+			id = mIds.incrementAndGet();
+		} while (id == 0);
+
+		final MessageFuture future = new MessageFuture(id, this);
+		msg.replier = future;
+		msg.setCorrelationId(id);
+		synchronized (mPending) {
+			mPending.put(id, future);
+		}
+		return future;
+	}
+
+	/**
+	 * create a cancelled future which is not registered. the message is untouched.
+	 * @param msg the request message
+	 * @return the cancelled future.
+	 * @throws IllegalArgumentException if the message already has replier.
+	 */
+	public MessageFuture newCancelledFuture(Message msg) {
+		if (msg.replier != null) {
+			throw new IllegalArgumentException("the request message can't have replier.");
+		}
+		final MessageFuture future = new MessageFuture(0, this);
+		future.cancel(false);
+		return future;
+	}
+
+	/**
+	 * create the internal timeout message of the future. which is in use.
+	 * @param future the future
+	 * @param timeout the timeout in millseconds
+	 * @return the timeout message.
+	 */
+	public Message newTimeoutMessage(MessageFuture future, long timeout) {
+		final Message msg = Message.obtain();
+		msg.arg1 = future.getId();
+		msg.when = System.currentTimeMillis() + timeout;
+		msg.markRequestTimeout();
+		msg.markInUse();
+		return msg;
+	}
+
+	/**
+	 * arm the timeout message which is already queued by owner. if the future is completed before timeout, the
+	 * timeout message is removed from queue and recycled. so the finished requests leave nothing in queue.
+	 * @param future the future
+	 * @param msg the timeout message
+	 */
+	public void armTimeout(MessageFuture future, final Message msg) {
+		future.addCallback(new MessageFuture.Callback() {
+			@Override
+			public void onComplete(MessageFuture future) {
+				// the timeout message is recycled by onTimeout.
+				if (!future.isTimeout() && mRemover.removeTimeout(msg)) {
+					msg.recycleUnchecked();
+				}
+			}
+		});
+	}
+
+	/**
+	 * called on the timeout message is due. the timeout message will be recycled.
+	 * @param msg the timeout message
+	 */
+	public void onTimeout(Message msg) {
+		final MessageFuture future;
+		synchronized (mPending) {
+			future = mPending.get(msg.arg1);
+		}
+		msg.recycleUnchecked();
+		if (future != null) {
+			future.complete(MessageFuture.STATE_TIMEOUT, null);
+		}
+	}
+
+	public void remove(int id) {
+		synchronized (mPending) {
+			mPending.remove(id);
+		}
+	}
+
+	public int size() {
+		synchronized (mPending) {
+			return mPending.size();
+		}
+	}
+
+	/** cancel the all pending requests. */
+	public void cancelAll() {
+		final MessageFuture[] futures;
+		synchronized (mPending) {
+			final int size = mPending.size();
+			if (size == 0) {
+				return;
+			}
+			futures = new MessageFuture[size];
+			for (int i = 0; i < size; i++) {
+				futures[i] = mPending.valueAt(i);
+			}
+			mPending.clear();
+		}
+		for (MessageFuture future : futures) {
+			future.cancel(false);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.heaven7.java.mvcs;
+
+import com.heaven7.java.base.util.Objects;
+
+/**
+ * the handle of periodic message which is scheduled by
+ * {@linkplain IController#scheduleAtFixedRate(Message, long, long, byte, byte, byte)}. the message is reused for every
+ * firing, and re-armed by the controller in {@linkplain IController#update(long, Object)}. so no message is obtained
+ * or inserted per firing.
+ * @author heaven7
+ * @since 1.2.1
+ */
+public final class ScheduledMessage {
+
+	private final SimpleController<?, ?> mController;
+	/** the reused message. which is in use until cancelled. */
+	final Message msg;
+	final byte policy;
+	final byte scope;
+	final byte catchUp;
+	final long period;
+
+	/** the time of next firing. */
+	long nextTime;
+	/** the firing count which is pending to dispatch in current update. */
+	int pendingFires;
+	/** true if the message is dispatching. */
+	boolean dispatching;
+	private volatile boolean mCancelled;
+	private volatile long mFireCount;
+
+	/*public*/ ScheduledMessage(SimpleController<?, ?> controller, Message msg, long nextTime, long period,
+			byte policy, byte scope, byte catchUp) {
+		this.mController = controller;
+		this.msg = msg;
+		this.nextTime = nextTime;
+		this.period = period;
+		this.policy = policy;
+		this.scope = scope;
+		this.catchUp = catchUp;
+	}
+
+	/**
+	 * cancel this schedule. the message is recycled after that. it is safe to call this in
+	 * {@linkplain AbstractState#handleMessage(Message)} of the firing.
+	 * @return true if cancelled. false if it is already cancelled.
+	 */
+	public boolean cancel() {
+		return mController.cancelSchedule(this);
+	}
+
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * get the what of the scheduled message.
+	 * @return the what
+	 */
+	public int getWhat() {
+		return msg.what;
+	}
+
+	/**
+	 * get the period in millseconds.
+	 * @return the period
+	 */
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * get the count of firings which are dispatched.
+	 * @return the fire count.
+	 */
+	public long getFireCount() {
+		return mFireCount;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("what", msg.what)
+				.add("period", period)
+				.add("catchUp", catchUp)
+				.add("fireCount", mFireCount)
+				.add("cancelled", mCancelled)
+				.toString();
+	}
+
+	// ======================== start internal method =========================
+
+	/** mark cancelled. called with the lock of controller. */
+	void markCancelled() {
+		mCancelled = true;
+	}
+
+	/**
+	 * arm the firings of this schedule if it is due.
+	 * @param now the current time
+	 * @return true if it has firings.
+	 */
+	boolean arm(long now) {
+		if (nextTime > now) {
+			return false;
+		}
+		final long missed = (now - nextTime) / period + 1;
+		nextTime += missed * period;
+		// the firings beyond the cap are dropped. so a long stall can't flood the states.
+		pendingFires = catchUp == IController.CATCH_UP_FIRE_ALL
+				? (int) Math.min(missed, IController.MAX_CATCH_UP_FIRES) : 1;
+		return true;
+	}
+
+	/** called after a firing is dispatched. */
+	void onFired() {
+		mFireCount++;
+	}
+}
@@ -3,9 +3,11 @@ package com.heaven7.java.mvcs;
 import static com.heaven7.java.mvcs.util.MathUtil.max2K;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import com.heaven7.java.base.util.SparseArray;
 
@@ -22,6 +24,13 @@ import com.heaven7.java.base.util.SparseArray;
  */
 public class SimpleController<S extends AbstractState<P>, P> implements IController<S, P> {
 
+	private static final Comparator<ScheduledMessage> sNEXT_FIRE_COMPARATOR = new Comparator<ScheduledMessage>() {
+		@Override
+		public int compare(ScheduledMessage sm1, ScheduledMessage sm2) {
+			return sm1.nextTime < sm2.nextTime ? -1 : (sm1.nextTime == sm2.nextTime ? 0 : 1);
+		}
+	};
+
 	/** current state group/ */
 	private final StateGroup<S, P> mGroup;
 	private final StateGroup.Callback<S, P> mCallback;
@@ -63,6 +72,32 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	private StateTransactionImpl mTransaction;
 	/** the delay messages. */
 	private List<MessageInfo> mDelayMessages;
+	/** the coalesce policies of messages. key is the what of message. lazy load. */
+	private SparseArray<CoalesceInfo> mCoalescePolicies;
+	/** the pending coalesced messages. key is the what of message. lazy load. */
+	private SparseArray<MessageInfo> mCoalescedMessages;
+	/** the ready messages which are waiting to deliver by priority. */
+	private final MessageLanes<MessageInfo> mReadyMessages = new MessageLanes<MessageInfo>();
+	/** the temp message infos which are ready to dispatch in update. */
+	private List<MessageInfo> mTempInfos;
+	/** the pending requests. */
+	private final RequestRegistry mRequests = new RequestRegistry(new RequestRegistry.TimeoutRemover() {
+		@Override
+		public boolean removeTimeout(Message msg) {
+			return removeDelayMessage(msg);
+		}
+	});
+	/** the periodic messages which are ordered by the next fire time. lazy load. */
+	private PriorityQueue<ScheduledMessage> mSchedules;
+	/** the temp schedules which are due in update. */
+	private List<ScheduledMessage> mTempSchedules;
+	/** the mailbox of actor mode. null means actor mode is disabled. */
+	private volatile MessageMailbox mMailbox;
+	/** the owner thread of actor mode. */
+	private volatile Thread mOwnerThread;
+	/** the capacity of mailbox. <=0 means unbounded. */
+	private int mMailboxCapacity;
+	private byte mOverflowPolicy = OVERFLOW_BLOCK;
 
 	/** temp states */
 	private List<S> mTempStates;
@@ -506,6 +541,11 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 		}
 		map.clear();
 
+		mRequests.cancelAll();
+		final MessageMailbox mailbox = this.mMailbox;
+		if (mailbox != null) {
+			mailbox.clear();
+		}
 		synchronized (this) {
 			if (mDelayMessages != null) {
 				for (MessageInfo info : mDelayMessages) {
@@ -513,6 +553,17 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 				}
 				mDelayMessages.clear();
 			}
+			clearCoalescedMessages();
+			mReadyMessages.clear();
+			if (mSchedules != null) {
+				for (ScheduledMessage sm : mSchedules) {
+					sm.markCancelled();
+					if (!sm.dispatching) {
+						sm.msg.recycleUnchecked();
+					}
+				}
+				mSchedules.clear();
+			}
 		}
 
 		// clean up controller
@@ -602,25 +653,54 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 
 	@Override
 	public boolean dispatchMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
-		
-		boolean result = dispatchMessageImpl(-1, msg, policy, scope);
-		msg.recycleUnchecked();
-		return result;
-		//return dispatchMessageImpl(-1, msg, policy, scope);
+		return dispatchMessageImpl(-1, msg, policy, scope, null, true);
 	}
 
 	@Override
 	public boolean dispatchMessage(int states, Message msg, @PolicyType byte policy) {
-		return dispatchMessageImpl(states, msg, policy, (byte) (FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL));
+		// the message is owned by caller(often is team). so it shouldn't be recycled here.
+		return dispatchMessageImpl(states, msg, policy, (byte) (FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL), null, false);
 	}
 
-	private boolean dispatchMessageImpl(int states, Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
+	@Override
+	public DispatchSelector obtainDispatchSelector(int states, @PolicyType byte policy, @ScopeFlags byte scope) {
+		return new DispatchSelector(this, states, policy, scope);
+	}
+
+	/**
+	 * dispatch the message.
+	 * @param owned true if the message is owned by this controller. that means it will be recycled after
+	 *        dispatched. false means it is owned by caller. so the copy of it will be used when pending.
+	 * @param selector the precompiled selector of (states, policy, scope). or null.
+	 */
+	private boolean dispatchMessageImpl(int states, Message msg, @PolicyType byte policy, @ScopeFlags byte scope,
+			DispatchSelector selector, boolean owned) {
 		// check in use or mark it.
 		if (msg.isInUse()) {
 			throw new IllegalStateException(msg + " This message is already in use.");
 		}
 		msg.markInUse();
 
+		// actor mode: the message from foreign thread will be handled by owner thread.
+		final MessageMailbox mailbox = this.mMailbox;
+		if (mailbox != null && Thread.currentThread() != mOwnerThread) {
+			final Message pending = owned ? msg : copyMessage(msg);
+			final int result = mailbox.offer(pending, states, policy, scope, true);
+			if (result == MessageMailbox.OFFER_CLOSED) {
+				enqueueMessage(pending, states, policy, scope);
+			} else if (result == OFFER_REJECTED && mOverflowPolicy == OVERFLOW_FAIL) {
+				throw new IllegalStateException("the mailbox is full. capacity = " + mMailboxCapacity);
+			}
+			return false;
+		}
+		return dispatchMessageNow(states, msg, policy, scope, selector, owned);
+	}
+
+	/**
+	 * dispatch the message which is in use on current thread. the delayed and coalesced message will be pending.
+	 */
+	private boolean dispatchMessageNow(int states, Message msg, byte policy, byte scope, DispatchSelector selector,
+			boolean owned) {
 		// filter delay message.wait it will handle in update method.
 		long now = System.currentTimeMillis();
 		if (msg.when > now) {
@@ -628,12 +708,307 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 				if (mDelayMessages == null) {
 					mDelayMessages = new ArrayList<>(8);
 				}
-				mDelayMessages.add(new MessageInfo(msg, policy, scope));
+				mDelayMessages.add(new MessageInfo(owned ? msg : copyMessage(msg), states, policy, scope));
 			}
 			return false;
 		}
+		// coalesce message. wait it will handle in update method.
+		if (coalesceMessage(states, msg, policy, scope, owned)) {
+			return false;
+		}
+		// dispatch to states
+		final boolean result = dispatchMessage0(states, msg, policy, scope, selector);
+		if (owned) {
+			msg.recycleUnchecked();
+		}
+		return result;
+	}
+
+	@Override
+	public int dispatchMessages(MessageBatch batch, @PolicyType byte policy, @ScopeFlags byte scope) {
+		batch.begin(policy);
+		return dispatchMessagesImpl(-1, batch, policy, scope, true);
+	}
+
+	@Override
+	public int dispatchMessages(int states, MessageBatch batch, @PolicyType byte policy) {
+		// the batch is owned and began by caller(often is team).
+		return dispatchMessagesImpl(states, batch, policy, (byte) (FLAG_SCOPE_CURRENT | FLAG_SCOPE_GLOBAL), false);
+	}
+
+	@Override
+	public ScheduledMessage scheduleAtFixedRate(int what, long initialDelay, long period) {
+		return scheduleAtFixedRate(Message.obtain(what, null), initialDelay, period, POLICY_BROADCAST,
+				FLAG_SCOPE_CURRENT, CATCH_UP_COALESCE);
+	}
+
+	@Override
+	public ScheduledMessage scheduleAtFixedRate(Message msg, long initialDelay, long period,
+			@PolicyType byte policy, @ScopeFlags byte scope, @CatchUpPolicy byte catchUp) {
+		if (initialDelay < 0 || period <= 0) {
+			throw new IllegalArgumentException("initialDelay = " + initialDelay + " ,period = " + period);
+		}
+		switch (catchUp) {
+		case CATCH_UP_COALESCE:
+		case CATCH_UP_FIRE_ALL:
+			break;
+
+		default:
+			throw new IllegalArgumentException("unknown catch-up policy. catchUp = " + catchUp);
+		}
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		// the message is in use until cancelled. so it can't be sent or recycled by others.
+		msg.markInUse();
+		final ScheduledMessage sm = new ScheduledMessage(this, msg, currentTimeMillis() + initialDelay,
+				period, policy, scope, catchUp);
+		synchronized (this) {
+			if (mSchedules == null) {
+				mSchedules = new PriorityQueue<ScheduledMessage>(11, sNEXT_FIRE_COMPARATOR);
+			}
+			mSchedules.add(sm);
+		}
+		return sm;
+	}
+
+	@Override
+	public MessageFuture request(Message msg, @PolicyType byte policy, @ScopeFlags byte scope, long timeout) {
+		final MessageFuture future = mRequests.register(msg);
+		if (timeout > 0) {
+			final Message timeoutMsg = mRequests.newTimeoutMessage(future, timeout);
+			synchronized (this) {
+				if (mDelayMessages == null) {
+					mDelayMessages = new ArrayList<>(8);
+				}
+				mDelayMessages.add(new MessageInfo(timeoutMsg));
+			}
+			mRequests.armTimeout(future, timeoutMsg);
+		}
+		try {
+			dispatchMessage(msg, policy, scope);
+		} catch (RuntimeException e) {
+			future.cancel(false);
+			throw e;
+		}
+		return future;
+	}
+
+	/**
+	 * dispatch the messages of batch in one pass.
+	 * @param owned true if the messages of batch are owned by this controller. false means owned by caller.
+	 */
+	private int dispatchMessagesImpl(int states, MessageBatch batch, @PolicyType byte policy,
+			@ScopeFlags byte scope, boolean owned) {
+		// filter pending messages.
+		final MessageMailbox mailbox = this.mMailbox;
+		final boolean foreign = mailbox != null && Thread.currentThread() != mOwnerThread;
+		boolean full = false;
+		final long now = System.currentTimeMillis();
+		final int size = batch.size();
+		Message msg;
+		for (int i = 0; i < size; i++) {
+			if (batch.isSkipped(i)) {
+				continue;
+			}
+			msg = batch.get(i);
+			if (msg.isInUse()) {
+				throw new IllegalStateException(msg + " This message is already in use.");
+			}
+			msg.markInUse();
+			if (foreign) {
+				final Message pending = owned ? msg : copyMessage(msg);
+				// the rejected messages are counted and recycled by mailbox.
+				final int result = mailbox.offer(pending, states, policy, scope, true);
+				if (result == MessageMailbox.OFFER_CLOSED) {
+					enqueueMessage(pending, states, policy, scope);
+				}
+				batch.skip(i, !owned);
+				if (result == OFFER_REJECTED && mOverflowPolicy == OVERFLOW_FAIL) {
+					full = true;
+					break;
+				}
+			} else if (msg.when > now) {
+				synchronized (this) {
+					if (mDelayMessages == null) {
+						mDelayMessages = new ArrayList<>(8);
+					}
+					mDelayMessages.add(new MessageInfo(owned ? msg : copyMessage(msg), states, policy, scope));
+				}
+				batch.skip(i, !owned);
+			} else if (coalesceMessage(states, msg, policy, scope, owned)) {
+				batch.skip(i, !owned);
+			}
+		}
 		// dispatch to states
-		return dispatchMessage0(states, msg, policy, scope);
+		if (!full && batch.hasDeliverable()) {
+			final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
+			if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
+				mGlobalGroup.handleMessages(states, batch, includeCache);
+			}
+			if ((scope & FLAG_SCOPE_CURRENT) != 0 && batch.hasDeliverable()) {
+				mGroup.handleMessages(states, batch, includeCache);
+			}
+		}
+		final int handled = batch.getHandledCount();
+		if (owned) {
+			batch.recycleAndClear();
+		} else {
+			batch.clearLocalSkips();
+			batch.markInUse(false);
+		}
+		if (full) {
+			throw new IllegalStateException("the mailbox is full. capacity = " + mMailboxCapacity);
+		}
+		return handled;
+	}
+
+	/**
+	 * coalesce the target message if need.
+	 * @return true if the message is coalesced. false if the what of message has no coalesce policy.
+	 */
+	private boolean coalesceMessage(int states, Message msg, byte policy, byte scope, boolean owned) {
+		synchronized (this) {
+			if (mCoalescePolicies == null) {
+				return false;
+			}
+			final CoalesceInfo ci = mCoalescePolicies.get(msg.what);
+			if (ci == null) {
+				return false;
+			}
+			if (mCoalescedMessages == null) {
+				mCoalescedMessages = new SparseArray<MessageInfo>(4);
+			}
+			final MessageInfo pending = mCoalescedMessages.get(msg.what);
+			if (pending == null) {
+				final MessageInfo info = new MessageInfo(owned ? msg : copyMessage(msg), states, policy, scope);
+				info.coalesced = true;
+				mCoalescedMessages.put(msg.what, info);
+				return true;
+			}
+			// the pending one may be in the lanes already. it is changed in place, so still one delivery.
+			switch (ci.policy) {
+			case COALESCE_KEEP_LATEST:
+				pending.msg.recycleUnchecked();
+				pending.msg = owned ? msg : copyMessage(msg);
+				pending.states = states;
+				pending.policy = policy;
+				pending.scope = scope;
+				return true;
+
+			case COALESCE_MERGE:
+				ci.merger.merge(pending.msg, msg);
+				break;
+
+			case COALESCE_KEEP_FIRST:
+			default:
+				break;
+			}
+			if (owned) {
+				msg.recycleUnchecked();
+			}
+			return true;
+		}
+	}
+
+	/** clear the pending coalesced messages. the queued ones are recycled by lanes. called with lock. */
+	private void clearCoalescedMessages() {
+		if (mCoalescedMessages != null) {
+			MessageInfo info;
+			for (int i = mCoalescedMessages.size() - 1; i >= 0; i--) {
+				info = mCoalescedMessages.valueAt(i);
+				if (!info.queued) {
+					info.msg.recycleUnchecked();
+				}
+			}
+			mCoalescedMessages.clear();
+		}
+	}
+
+	/** put the undelivered messages back. the ready messages keep their order at the head of lanes. */
+	private synchronized void requeueMessages(List<MessageInfo> infos, int start) {
+		MessageInfo info;
+		for (int i = infos.size() - 1; i >= start; i--) {
+			info = infos.get(i);
+			if (info.msg.isRequestTimeout()) {
+				mDelayMessages.add(info);
+			} else {
+				// the coalesced one keeps coalescing, unless a new one is pending.
+				if (info.coalesced && mCoalescedMessages.get(info.msg.what) == null) {
+					info.queued = true;
+					mCoalescedMessages.put(info.msg.what, info);
+				}
+				mReadyMessages.offerFirst(info);
+			}
+		}
+	}
+
+	/** fire the due periodic messages. */
+	private void dispatchSchedules(List<ScheduledMessage> schedules) {
+		try {
+			for (int i = 0, size = schedules.size(); i < size; i++) {
+				final ScheduledMessage sm = schedules.get(i);
+				for (int k = sm.pendingFires; k > 0 && !sm.isCancelled(); k--) {
+					// every firing is sampled as a new message.
+					sm.msg.setTraceId(0);
+					dispatchMessage0(-1, sm.msg, sm.policy, sm.scope, null);
+					sm.onFired();
+				}
+			}
+		} finally {
+			// even if a handler threw. the missed firings of the failed update are dropped.
+			synchronized (this) {
+				for (int i = 0, size = schedules.size(); i < size; i++) {
+					final ScheduledMessage sm = schedules.get(i);
+					sm.dispatching = false;
+					if (sm.isCancelled()) {
+						sm.msg.recycleUnchecked();
+					}
+				}
+			}
+			schedules.clear();
+		}
+	}
+
+	/** dispatch the all messages of mailbox. called on the owner thread. */
+	private void drainMailbox(MessageMailbox mailbox) {
+		MessageMailbox.Node node;
+		Message msg;
+		while ((node = mailbox.poll()) != null) {
+			msg = node.msg;
+			node.msg = null;
+			// the message is owned by this controller now.
+			dispatchMessageNow(node.states, msg, node.policy, node.scope, null, true);
+		}
+	}
+
+	/**
+	 * enqueue the message which is owned by this controller. it will be delivered by
+	 * {@linkplain #update(long, Object)}. this is used for the offers which arrive after the mailbox is closed. so
+	 * the callbacks of states are never called on the foreign threads.
+	 */
+	private void enqueueMessage(Message msg, int states, byte policy, byte scope) {
+		final MessageInfo info = new MessageInfo(msg, states, policy, scope);
+		synchronized (this) {
+			if (msg.when > System.currentTimeMillis()) {
+				if (mDelayMessages == null) {
+					mDelayMessages = new ArrayList<>(8);
+				}
+				mDelayMessages.add(info);
+			} else {
+				mReadyMessages.offer(info);
+			}
+		}
+	}
+
+	/** copy the message which is owned by others. and mark it in use. */
+	private static Message copyMessage(Message msg) {
+		final Message copy = Message.obtain(msg);
+		if (msg.isFromTeam()) {
+			copy.markFromTeam();
+		}
+		copy.markInUse();
+		return copy;
 	}
 
 	@Override
@@ -643,21 +1018,98 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 
 	@Override
 	public void update(long deltaTime, P param) {
+		// actor mode: drain the messages from foreign threads first.
+		final MessageMailbox mailbox = this.mMailbox;
+		if (mailbox != null) {
+			drainMailbox(mailbox);
+		}
 
 		final long now = System.currentTimeMillis();
+		if (mTempInfos == null) {
+			mTempInfos = new ArrayList<>(8);
+		}
+		final List<MessageInfo> infos = this.mTempInfos;
 		MessageInfo info;
 		synchronized (this) {
+			final MessageLanes<MessageInfo> lanes = this.mReadyMessages;
 			if (mDelayMessages != null) {
 				final Iterator<MessageInfo> it = mDelayMessages.iterator();
 				for (; it.hasNext();) {
 					info = it.next();
 					if (info.msg.when <= now) {
-						dispatchMessage0(-1, info.msg, info.policy, info.scope);
-						info.msg.recycleUnchecked();
+						// the timeouts of requests are not bounded by budget.
+						if (info.msg.isRequestTimeout()) {
+							infos.add(info);
+						} else {
+							lanes.offer(info);
+						}
 						it.remove();
 					}
 				}
 			}
+			// one delivery per update for coalesced messages. the pending one keeps coalescing until it is drained.
+			if (mCoalescedMessages != null) {
+				final int size = mCoalescedMessages.size();
+				for (int i = 0; i < size; i++) {
+					info = mCoalescedMessages.valueAt(i);
+					if (!info.queued) {
+						info.queued = true;
+						lanes.offer(info);
+					}
+				}
+			}
+			// by priority and budget.
+			lanes.drain(infos);
+			if (mCoalescedMessages != null) {
+				for (int i = 0, size = infos.size(); i < size; i++) {
+					info = infos.get(i);
+					if (info.queued) {
+						info.queued = false;
+						mCoalescedMessages.remove(info.msg.what);
+					}
+				}
+			}
+			// re-arm the due periodic messages.
+			if (mSchedules != null) {
+				if (mTempSchedules == null) {
+					mTempSchedules = new ArrayList<>(4);
+				}
+				// only the due schedules are visited. the re-armed one is queued by its next fire time, which is
+				// after now.
+				final long time = currentTimeMillis();
+				ScheduledMessage sm;
+				while ((sm = mSchedules.peek()) != null && sm.arm(time)) {
+					mSchedules.poll();
+					sm.dispatching = true;
+					mTempSchedules.add(sm);
+					mSchedules.add(sm);
+				}
+			}
+		}
+		// dispatch out of lock. so that handler can send message again.
+		int consumed = 0;
+		try {
+			for (final int size = infos.size(); consumed < size;) {
+				info = infos.get(consumed++);
+				if (info.msg.isRequestTimeout()) {
+					mRequests.onTimeout(info.msg);
+					continue;
+				}
+				try {
+					dispatchMessage0(info.states, info.msg, info.policy, info.scope, null);
+				} finally {
+					info.msg.recycleUnchecked();
+				}
+			}
+		} finally {
+			// a handler threw. the undelivered messages are delivered by next update.
+			if (consumed < infos.size()) {
+				requeueMessages(infos, consumed);
+			}
+			infos.clear();
+		}
+		if (mTempSchedules != null && !mTempSchedules.isEmpty()) {
+			dispatchSchedules(mTempSchedules);
 		}
 
 		// update active state
@@ -694,19 +1146,33 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	public void clearMessages() {
 		synchronized (this) {
 			if (mDelayMessages != null) {
-				mDelayMessages.clear();
+				// keep the timeouts of pending requests.
+				final Iterator<MessageInfo> it = mDelayMessages.iterator();
+				for (; it.hasNext();) {
+					if (!it.next().msg.isRequestTimeout()) {
+						it.remove();
+					}
+				}
 			}
+			clearCoalescedMessages();
+			mReadyMessages.clear();
 		}
 	}
 
 	@Override
 	public boolean hasMessage(Message expect) {
 		synchronized (this) {
-			if (mDelayMessages != null) {
-				return mDelayMessages.contains(new MessageInfo(expect));
+			if (mDelayMessages != null && mDelayMessages.contains(new MessageInfo(expect))) {
+				return true;
+			}
+			if (mCoalescedMessages != null) {
+				final MessageInfo info = mCoalescedMessages.get(expect.what);
+				if (info != null && info.msg.equals(expect)) {
+					return true;
+				}
 			}
+			return mReadyMessages.hasMessage(expect);
 		}
-		return false;
 	}
 
 	@Override
@@ -718,13 +1184,16 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 				final Iterator<MessageInfo> it = mDelayMessages.iterator();
 				for (; it.hasNext();) {
 					info = it.next();
-					if (info.msg.what == what) {
+					if (info.msg.what == what && !info.msg.isRequestTimeout()) {
 						return true;
 					}
 				}
 			}
+			if (mCoalescedMessages != null && mCoalescedMessages.get(what) != null) {
+				return true;
+			}
+			return mReadyMessages.hasMessage(what);
 		}
-		return false;
 	}
 
 	@Override
@@ -735,11 +1204,22 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 				final Iterator<MessageInfo> it = mDelayMessages.iterator();
 				for (; it.hasNext();) {
 					info = it.next();
-					if (info.msg.what == what) {
+					if (info.msg.what == what && !info.msg.isRequestTimeout()) {
 						it.remove();
 					}
 				}
 			}
+			if (mCoalescedMessages != null) {
+				info = mCoalescedMessages.get(what);
+				if (info != null) {
+					mCoalescedMessages.remove(what);
+					// the queued one is recycled by lanes.
+					if (!info.queued) {
+						info.msg.recycleUnchecked();
+					}
+				}
+			}
+			mReadyMessages.removeMessages(what, null);
 		}
 	}
 
@@ -756,6 +1236,150 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 					}
 				}
 			}
+			if (mCoalescedMessages != null) {
+				final MessageInfo info = mCoalescedMessages.get(expect.what);
+				if (info != null && info.msg.equals(expect)) {
+					mCoalescedMessages.remove(expect.what);
+					// the queued one is recycled by lanes.
+					if (!info.queued) {
+						info.msg.recycleUnchecked();
+					}
+				}
+			}
+			mReadyMessages.removeMessages(expect.what, expect);
+		}
+	}
+
+	@Override
+	public void setActorModeEnabled(boolean enable) {
+		if (enable) {
+			if (mMailbox == null) {
+				mOwnerThread = Thread.currentThread();
+				mMailbox = MessageMailbox.create(mMailboxCapacity, mOverflowPolicy);
+			}
+		} else {
+			final MessageMailbox mailbox = this.mMailbox;
+			if (mailbox != null) {
+				// the later offers are pending. and drain the accepted messages before unpublish the mailbox,
+				// so that no foreign thread dispatch directly during the drain.
+				mailbox.close();
+				drainMailbox(mailbox);
+				mMailbox = null;
+				mOwnerThread = null;
+			}
+		}
+	}
+
+	@Override
+	public boolean isActorModeEnabled() {
+		return mMailbox != null;
+	}
+
+	@Override
+	public void setMailboxCapacity(int capacity, @OverflowPolicy byte overflowPolicy) {
+		switch (overflowPolicy) {
+		case OVERFLOW_BLOCK:
+		case OVERFLOW_FAIL:
+		case OVERFLOW_DROP_OLDEST:
+		case OVERFLOW_DROP_NEWEST:
+		case OVERFLOW_COALESCE:
+			break;
+
+		default:
+			throw new IllegalArgumentException("unknown overflow policy = " + overflowPolicy);
+		}
+		if (mMailbox != null) {
+			throw new IllegalStateException("the actor mode is enabled.");
+		}
+		this.mMailboxCapacity = capacity;
+		this.mOverflowPolicy = overflowPolicy;
+	}
+
+	@Override
+	public int offerMessage(Message msg, @PolicyType byte policy, @ScopeFlags byte scope) {
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		msg.markInUse();
+		final MessageMailbox mailbox = this.mMailbox;
+		if (mailbox != null && Thread.currentThread() != mOwnerThread) {
+			final int result = mailbox.offer(msg, -1, policy, scope, false);
+			if (result != MessageMailbox.OFFER_CLOSED) {
+				return result;
+			}
+			enqueueMessage(msg, -1, policy, scope);
+			return OFFER_ACCEPTED;
+		}
+		dispatchMessageNow(-1, msg, policy, scope, null, true);
+		return OFFER_ACCEPTED;
+	}
+
+	@Override
+	public int getDelayedMessageCount() {
+		synchronized (this) {
+			return mDelayMessages != null ? mDelayMessages.size() : 0;
+		}
+	}
+
+	@Override
+	public int getMailboxDepth() {
+		final MessageMailbox mailbox = this.mMailbox;
+		return mailbox != null ? mailbox.size() : 0;
+	}
+
+	@Override
+	public long getMailboxDropCount() {
+		final MessageMailbox mailbox = this.mMailbox;
+		return mailbox != null ? mailbox.getDropCount() : 0;
+	}
+
+	@Override
+	public void setMessageDeliveryPolicy(@DrainPolicy byte drainPolicy, int budget) {
+		setMessageDeliveryPolicy(drainPolicy, budget, null);
+	}
+
+	@Override
+	public void setMessageDeliveryPolicy(@DrainPolicy byte drainPolicy, int budget, int[] laneWeights) {
+		synchronized (this) {
+			mReadyMessages.setDeliveryPolicy(drainPolicy, budget, laneWeights);
+		}
+	}
+
+	@Override
+	public void setMessageCoalescePolicy(int what, @CoalescePolicy byte policy) {
+		setMessageCoalescePolicy(what, policy, null);
+	}
+
+	@Override
+	public void setMessageCoalescePolicy(int what, @CoalescePolicy byte policy, Message.MessageMerger merger) {
+		switch (policy) {
+		case COALESCE_KEEP_LATEST:
+		case COALESCE_KEEP_FIRST:
+			break;
+
+		case COALESCE_MERGE:
+			if (merger == null) {
+				throw new IllegalArgumentException("merger can't be null for COALESCE_MERGE.");
+			}
+			break;
+
+		default:
+			throw new IllegalArgumentException("unknown coalesce policy = " + policy);
+		}
+		synchronized (this) {
+			if (mCoalescePolicies == null) {
+				mCoalescePolicies = new SparseArray<CoalesceInfo>(4);
+			}
+			mCoalescePolicies.put(what, new CoalesceInfo(policy, merger));
+		}
+	}
+
+	@Override
+	public void removeMessageCoalescePolicy(int what) {
+		synchronized (this) {
+			if (mCoalescePolicies != null) {
+				mCoalescePolicies.remove(what);
+			}
 		}
 	}
 
@@ -790,7 +1414,20 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 	}
 
 	// may one method call this method twice.
-	private boolean dispatchMessage0(int states, Message msg, byte policy, byte scope) {
+	private boolean dispatchMessage0(int states, Message msg, byte policy, byte scope, DispatchSelector selector) {
+		if (!msg.isFromTeam()) {
+			MessageTracer.sample(msg);
+		}
+		if (msg.getTraceId() == 0) {
+			return selector != null ? selector.deliver(msg) : dispatchMessage1(states, msg, policy, scope);
+		}
+		final long start = System.nanoTime();
+		final boolean handled = selector != null ? selector.deliver(msg) : dispatchMessage1(states, msg, policy, scope);
+		MessageTracer.record(msg, MessageTracer.HOP_CONTROLLER, this, states, start, handled, policy);
+		return handled;
+	}
+
+	private boolean dispatchMessage1(int states, Message msg, byte policy, byte scope) {
 		boolean handled = false;
 		final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
 		if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
@@ -805,9 +1442,70 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 		return handled;
 	}
 
+	/**
+	 * get the current time of the periodic messages in millseconds. the default is the wall clock. the sub class can
+	 * override it to control the time, such as in tests.
+	 * @return the current time.
+	 * @since 1.2.1
+	 * @see #scheduleAtFixedRate(Message, long, long, byte, byte, byte)
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
 	// ======================== start internal method
 	// =============================
 
+	/**
+	 * cancel the periodic message.
+	 * @return true if cancelled.
+	 */
+	boolean cancelSchedule(ScheduledMessage sm) {
+		synchronized (this) {
+			if (sm.isCancelled()) {
+				return false;
+			}
+			sm.markCancelled();
+			if (mSchedules != null) {
+				mSchedules.remove(sm);
+			}
+			// the dispatching message is recycled after dispatched.
+			if (!sm.dispatching) {
+				sm.msg.recycleUnchecked();
+			}
+			return true;
+		}
+	}
+
+	/** dispatch the message by the selector. */
+	boolean dispatchMessage(DispatchSelector selector, Message msg, boolean owned) {
+		return dispatchMessageImpl(selector.getStates(), msg, selector.getPolicy(), selector.getScope(), selector,
+				owned);
+	}
+
+	/**
+	 * get the version of states.
+	 * @param global true to get the version of global states.
+	 * @return the version. -1 if the global group is not created.
+	 */
+	int getStateVersion(boolean global) {
+		if (global) {
+			return mGlobalGroup != null ? mGlobalGroup.getVersion() : -1;
+		}
+		return mGroup.getVersion();
+	}
+
+	/** collect the handlers of message in the dispatch order. */
+	void collectHandlers(int states, byte scope, List<? super S> out) {
+		final boolean includeCache = (scope & FLAG_SCOPE_CACHED) != 0;
+		if ((scope & FLAG_SCOPE_GLOBAL) != 0 && mGlobalGroup != null) {
+			mGlobalGroup.collectHandlers(states, includeCache, out);
+		}
+		if ((scope & FLAG_SCOPE_CURRENT) != 0) {
+			mGroup.collectHandlers(states, includeCache, out);
+		}
+	}
+
 	void notifyStateEnter(int states, P param) {
 		// enter. only online AbstractState can receive team callback. so just
 		// reenter.
@@ -836,21 +1534,42 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 		mTempStates.clear();
 	}
 
+	/**
+	 * remove the delayed message by identity.
+	 * @return true if removed.
+	 */
+	private synchronized boolean removeDelayMessage(Message msg) {
+		if (mDelayMessages != null) {
+			for (int i = mDelayMessages.size() - 1; i >= 0; i--) {
+				if (mDelayMessages.get(i).msg == msg) {
+					mDelayMessages.remove(i);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	// ======================== end internal method
 	// =============================
 
-	private static class MessageInfo {
-		Message msg;
+	private static class MessageInfo extends MessageLanes.Entry {
+		/** the target states. -1 means all. */
+		int states = -1;
 		byte policy;
 		byte scope;
+		/** true if this is the pending message of coalesce. */
+		boolean coalesced;
+		/** true if the pending message of coalesce is in the lanes, but not drained. */
+		boolean queued;
 
 		public MessageInfo(Message msg) {
-			this.msg = msg;
+			super(msg);
 		}
 
-		public MessageInfo(Message msg, byte policy, byte scope) {
-			super();
-			this.msg = msg;
+		public MessageInfo(Message msg, int states, byte policy, byte scope) {
+			super(msg);
+			this.states = states;
 			this.policy = policy;
 			this.scope = scope;
 		}
@@ -873,6 +1592,16 @@ public class SimpleController<S extends AbstractState<P>, P> implements IControl
 		}
 	}
 
+	private static class CoalesceInfo {
+		final byte policy;
+		final Message.MessageMerger merger;
+
+		public CoalesceInfo(byte policy, Message.MessageMerger merger) {
+			this.policy = policy;
+			this.merger = merger;
+		}
+	}
+
 	private class StateTransactionImpl extends StateTransaction<P> {
 		@Override
 		protected boolean performTransaction() {
@@ -50,6 +50,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	 * states.
 	 */
 	private int mCachedState;
+	/** the version of states. which is increased when current states or cached states changed. */
+	private int mVersion;
 	
 	/** the list which is lazy load. */
 	final List<Integer> sTempFlags = new ArrayList<Integer>(6);
@@ -95,6 +97,11 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		return mController;
 	}
 
+	/** notify the team mediator that the current states of controller are changed. */
+	private void notifyStateFlagsChanged() {
+		mController.getTeamMediator().onStateFlagsChanged(mController, mController.getCurrentStateFlags());
+	}
+
 	private boolean isStateCacheEnabled() {
 		return mController.isStateCacheEnabled();
 	}
@@ -130,6 +137,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			return false;
 		}
 		this.mCurrentStates = 0;
+		mVersion++;
+		notifyStateFlagsChanged();
 		this.mParam = param;
 		dispatchStateChange(current, 0);
 		this.mParam = null;
@@ -155,6 +164,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			return false;
 		}
 		this.mCurrentStates &= ~states;
+		mVersion++;
+		notifyStateFlagsChanged();
 		this.mParam = param;
 		dispatchStateChange(0, 0, shareFlags);
 		this.mParam = null;
@@ -190,6 +201,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		}else{
 			mCachedState &= ~share;
 		}
+		mVersion++;
+		notifyStateFlagsChanged();
 	}
 
 	public boolean addState(int states, P extra) {
@@ -202,6 +215,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			// reenter
 		} else {
 			this.mCurrentStates |= states;
+			mVersion++;
+			notifyStateFlagsChanged();
 		}
 		this.mParam = extra;
 		dispatchStateChange(shareFlags, states & ~shareFlags, 0);
@@ -220,6 +235,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			return false;
 		}
 		this.mCurrentStates = newStates;
+		mVersion++;
+		notifyStateFlagsChanged();
 		this.mParam = p;
 		dispatchStateChange(mCurr, newStates);
 		mParam = null;
@@ -252,6 +269,22 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	 *            the exit flags to exit.
 	 */
 	protected void dispatchStateChange(int shareFlags, int enterFlags, int exitFlags) {
+		// the team transitions of one operation may be coalesced by team manager.
+		final TeamMediator<P> mediator = getController().getTeamMediator();
+		final StateTeamManager<P> stm = mTeamEnabled ? mediator.getStateTeamManager() : null;
+		if (stm == null) {
+			dispatchStateChange0(shareFlags, enterFlags, exitFlags);
+			return;
+		}
+		stm.beginOperation(mediator);
+		try {
+			dispatchStateChange0(shareFlags, enterFlags, exitFlags);
+		} finally {
+			stm.endOperation(mediator);
+		}
+	}
+
+	private void dispatchStateChange0(int shareFlags, int enterFlags, int exitFlags) {
 		// Call the exit method of the existing state
 		if (exitFlags != 0) {
 			exitState(exitFlags);
@@ -327,6 +360,7 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		}
 		// cache state
 		mCachedState &= ~singleState;
+		mVersion++;
 		getStateMap().put(singleState, state);
 		final P p = getMerger().merge(state.getStateParameter(), getStateParameter());
 		state.setStateParameter(p);
@@ -346,10 +380,13 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 				// state is not the main state.
 				if (s != singleState && stateMap.get(s) != null) {
 					oppositeState |= s;
+					// the version is bumped once below.
 					exit0(s, true);
 				}
 			}
 			this.mCurrentStates &= ~oppositeState;
+			mVersion++;
+			notifyStateFlagsChanged();
 			// System.out.println("mutex state occurs. Main state : " +
 			// singleState + " , Mutex states : "+
 			// Arrays.toString(mutexStates));
@@ -368,6 +405,9 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		} else {
 			mCachedState |= singleState;
 		}
+		if (!byMutex) {
+			mVersion++;
+		}
 		final P p = getMerger().merge(state.getStateParameter(), getStateParameter());
 		state.setStateParameter(p);
 		state.exit(byMutex ? AbstractState.FLAG_MUTEX : 0);
@@ -448,6 +488,7 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			}
 			sTempFlags.clear();
 			mCachedState = 0;
+			mVersion++;
 		} /*
 			 * else{ System.out.println("no state cache..."); }
 			 */
@@ -469,6 +510,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		
 		this.mCurrentStates = 0;
 		this.mCachedState = 0;
+		mVersion++;
+		notifyStateFlagsChanged();
 		this.mParam = null;
 	}
 
@@ -498,6 +541,8 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 	public boolean handleMessage(int states, Message msg, byte policy, boolean includeCache) {
 		final SparseArray<S> map = getStateMap();
 		final int curState = states == -1 ? mCurrentStates : mCurrentStates & states;
+		// the flags may be left by a handler which threw.
+		sTempFlags.clear();
 		getFlagsInternal(curState, sTempFlags);
 		
 		boolean handled = false;
@@ -506,7 +551,7 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		switch (policy) {
 		case IController.POLICY_CONSUME:
 			for(int state : sTempFlags){
-				if(map.get(state).handleMessage(msg)){
+				if(deliverMessage(map.get(state), state, msg, policy)){
 					handled = true;
 					break outLoop;
 				}
@@ -515,7 +560,7 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 				sTempFlags.clear();
 				getFlagsInternal(states == -1 ? mCachedState : mCachedState & states, sTempFlags);
 				for(int state : sTempFlags){
-					if(map.get(state).handleMessage(msg)){
+					if(deliverMessage(map.get(state), state, msg, policy)){
 						handled = true;
 						break outLoop;
 					}
@@ -525,13 +570,13 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 			
 		case IController.POLICY_BROADCAST:
 			for(int state : sTempFlags){
-				handled |= map.get(state).handleMessage(msg);
+				handled |= deliverMessage(map.get(state), state, msg, policy);
 			}
 			if(includeCache){
 				sTempFlags.clear();
 				getFlagsInternal(states == -1 ? mCachedState : mCachedState & states, sTempFlags);
 				for(int state : sTempFlags){
-					handled |= map.get(state).handleMessage(msg);
+					handled |= deliverMessage(map.get(state), state, msg, policy);
 				}
 			}
 			break;
@@ -544,9 +589,83 @@ import com.heaven7.java.mvcs.util.MutexStateException;
 		return handled;
 	}
 	
+	/** deliver the message to the state. and trace it if need. */
+	/*public*/ static boolean deliverMessage(AbstractState<?> s, int state, Message msg, byte policy) {
+		if (msg.getTraceId() == 0) {
+			return s.handleMessage(msg);
+		}
+		final long start = System.nanoTime();
+		final boolean handled = s.handleMessage(msg);
+		MessageTracer.record(msg, MessageTracer.HOP_STATE, s, state, start, handled, policy);
+		return handled;
+	}
+
+	/**
+	 * get the version of states. which is increased when current states or cached states changed.
+	 * @return the version
+	 * @since 1.2.1
+	 * @see DispatchSelector
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * collect the handlers of message in the dispatch order.
+	 * @param states the target states. -1 means all.
+	 * @param includeCache true to include cache
+	 * @param out the out handlers
+	 * @since 1.2.1
+	 */
+	public void collectHandlers(int states, boolean includeCache, List<? super S> out) {
+		final SparseArray<S> map = getStateMap();
+		getFlagsInternal(states == -1 ? mCurrentStates : mCurrentStates & states, sTempFlags);
+		for(int state : sTempFlags){
+			out.add(map.get(state));
+		}
+		sTempFlags.clear();
+		if(includeCache){
+			getFlagsInternal(states == -1 ? mCachedState : mCachedState & states, sTempFlags);
+			for(int state : sTempFlags){
+				out.add(map.get(state));
+			}
+			sTempFlags.clear();
+		}
+	}
+
+	/**
+	 * handle the messages of batch now. every state is visited once with the whole batch.
+	 * @param states the target states to handle messages. -1 means all.
+	 * @param batch the message batch. which carry the policy.
+	 * @param includeCache true to include cache
+	 * @since 1.2.1
+	 */
+	public void handleMessages(int states, MessageBatch batch, boolean includeCache) {
+		final SparseArray<S> map = getStateMap();
+		getFlagsInternal(states == -1 ? mCurrentStates : mCurrentStates & states, sTempFlags);
+		for(int state : sTempFlags){
+			if(!batch.hasDeliverable()){
+				break;
+			}
+			map.get(state).handleMessages(batch);
+		}
+		sTempFlags.clear();
+		if(includeCache && batch.hasDeliverable()){
+			getFlagsInternal(states == -1 ? mCachedState : mCachedState & states, sTempFlags);
+			for(int state : sTempFlags){
+				if(!batch.hasDeliverable()){
+					break;
+				}
+				map.get(state).handleMessages(batch);
+			}
+			sTempFlags.clear();
+		}
+	}
+	
 	private void dispatchStateCallback(@ActionType byte action , int stateFlag, S state, Object param) {
 		final StateTeamManager<P> mTeamM = getController().getTeamMediator().getStateTeamManager();
-		if(mTeamEnabled && mTeamM != null){
+		// the controller which is notified by the active cascade can't trigger team callback again.
+		if(mTeamEnabled && mTeamM != null && !TeamCascade.isNotified(getController())){
 			//final IController<S, P> controller = getController();
 			switch (action) {
 			case ACTION_ENTER:
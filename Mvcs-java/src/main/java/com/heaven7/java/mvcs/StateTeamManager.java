@@ -1,14 +1,26 @@
 package com.heaven7.java.mvcs;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.heaven7.java.base.anno.Nullable;
 import com.heaven7.java.base.util.Objects;
 import com.heaven7.java.base.util.SparseArray;
 import com.heaven7.java.base.util.Throwables;
+import com.heaven7.java.mvcs.IController.DrainPolicy;
 import com.heaven7.java.mvcs.IController.PolicyType;
 import com.heaven7.java.mvcs.impl.DefaultTeamCllback;
 
@@ -25,6 +37,9 @@ import com.heaven7.java.mvcs.impl.DefaultTeamCllback;
  *     see {@linkplain StateTeamManager#registerTeam(List, List, TeamCallback)}.<br>
  *     see {@linkplain #COOPERATE_METHOD_BASE}, and etc.<br>
  *     </li>
+ * <li>Partition teams by shard. every manager owns a disjoint range of team ids.
+ *     see {@linkplain #StateTeamManager(int)}.</li>
+ * <li>Compose teams of sub teams, with the aggregated states of members. see {@linkplain #addSubTeam(int, int)}.</li>
  * </ul>
  * @author heaven7
  *
@@ -55,9 +70,114 @@ public class StateTeamManager<P>{
 
 	private static final DefaultTeamCllback<Object> sDEFAULT_CALLBACK = new DefaultTeamCllback<Object>();
 
+	/**
+	 * the coalesce mode of team transitions: none. every state enter/exit/reenter is delivered to teams at once.
+	 * @since 1.2.1
+	 */
+	public static final byte COALESCE_TRANSITION_NONE      = 0;
+	/**
+	 * the coalesce mode of team transitions: the transitions raised during one state operation of controller
+	 * (like set/add/remove states) are delivered once per team as the net exit/enter/reenter.
+	 * @since 1.2.1
+	 */
+	public static final byte COALESCE_TRANSITION_OPERATION = 1;
+	/**
+	 * the coalesce mode of team transitions: the transitions raised during one tick are delivered once per team
+	 * as the net exit/enter/reenter by {@linkplain #update(long, Object)} or {@linkplain #flushTransitions()}.
+	 * @since 1.2.1
+	 */
+	public static final byte COALESCE_TRANSITION_TICK      = 2;
+
+	private static final byte TRANSITION_ENTER   = 1;
+	private static final byte TRANSITION_EXIT    = 2;
+	private static final byte TRANSITION_REENTER = 3;
+
+	/**
+	 * the bit count of local team id. the high bits of team id is the shard index of team manager. so the team ids
+	 * of managers with different shard index are disjoint.
+	 * @since 1.2.1
+	 */
+	public static final int TEAM_ID_SHARD_SHIFT = 20;
+	/**
+	 * the max shard index of team manager.
+	 * @since 1.2.1
+	 */
+	public static final int MAX_SHARD_INDEX = Integer.MAX_VALUE >> TEAM_ID_SHARD_SHIFT;
+	/** the max local team id of a shard. */
+	private static final int MAX_LOCAL_TEAM_ID = (1 << TEAM_ID_SHARD_SHIFT) - 1;
+
+	/** the comparator of the teams which have update period. */
+	private static final Comparator<Team<?>> sNEXT_UPDATE_COMPARATOR = new Comparator<Team<?>>() {
+		@Override
+		public int compare(Team<?> t1, Team<?> t2) {
+			return t1.nextUpdateTime < t2.nextUpdateTime ? -1 : (t1.nextUpdateTime == t2.nextUpdateTime ? 0 : 1);
+		}
+	};
+
+	/** the team id which indicate all teams. */
+	private static final int ALL_TEAMS = 0;
+	/** the team id which indicate the subscribers of topic. */
+	private static final int TOPIC_SUBSCRIBERS = -1;
+
 	/** a map contains multi teams. */
 	private final SparseArray<Team<P>> mMap;
+	/** the last local team id. */
 	private int mLastTeamId;
+	/** the shard index of this manager. */
+	private final int mShardIndex;
+	/** the base of team ids. which is the shard index in the high bits. */
+	private final int mTeamIdBase;
+
+	/** the delay messages of teams. lazy load. */
+	private List<TeamMessageInfo> mDelayMessages;
+	/** the ready messages of teams which are waiting to deliver by priority. */
+	private final MessageLanes<TeamMessageInfo> mReadyMessages = new MessageLanes<TeamMessageInfo>();
+	/** the temp message infos which are ready to dispatch in update. */
+	private List<TeamMessageInfo> mTempInfos;
+	/** the pending requests of teams. */
+	private final RequestRegistry mRequests = new RequestRegistry(new RequestRegistry.TimeoutRemover() {
+		@Override
+		public boolean removeTimeout(Message msg) {
+			return removeDelayMessage(msg);
+		}
+	});
+	/** the queue of the member references whose controller is collected. */
+	private final ReferenceQueue<Object> mMemberQueue = new ReferenceQueue<Object>();
+	/** the count of purged members. */
+	private long mPurgedMemberCount;
+	/** the pool of parallel update. null means update serially. */
+	private ForkJoinPool mUpdatePool;
+	/** the conflict-free shards of teams. every shard is the indexes of teams. null means dirty. */
+	private int[][] mShards;
+	/** the coalesce mode of team transitions. */
+	private volatile byte mCoalesceMode = COALESCE_TRANSITION_NONE;
+	/** the mediators which have pending transitions of tick. */
+	private final List<TeamMediator<P>> mDirtyMediators = new ArrayList<>();
+	/** the count of team callbacks which are saved by coalescing. which is added by the parallel shards. */
+	private final AtomicLong mCoalescedCount = new AtomicLong();
+	/** the subscriptions of topics. key is the what of message. lazy load. */
+	private SparseArray<List<Subscription<P>>> mTopics;
+	/** true if the team messages are only dispatched to the subscribers. */
+	private boolean mTopicFilterEnabled;
+	/** the compiled cascade graph of teams. null means dirty. which is compiled before the parallel shards fork. */
+	private volatile CascadeGraph mGraph;
+	/** the max depth of team cascade. 1 means only the teams of trigger are notified. */
+	private volatile int mMaxCascadeDepth = 1;
+	/** the metrics of teams. null means disabled. */
+	private volatile TeamMetrics<P> mMetrics;
+	/**
+	 * the lock of the hierarchy of teams. the state change of a controller only takes it when the team has a parent.
+	 * the lock order is the team then this.
+	 */
+	private final Object mStatesLock = new Object();
+	/** the teams which are updated on every update. null means dirty. */
+	private List<Team<P>> mTickTeams;
+	/** the teams which have update period. ordered by the next update time. lazy load. */
+	private PriorityQueue<Team<P>> mScheduledTeams;
+	/** the temp teams which are due in update. */
+	private List<Team<P>> mDueTeams;
+	/** the accumulated delta time of update. */
+	private long mUpdateClock;
 
 	/**
 	 * the callback of team
@@ -108,9 +228,106 @@ public class StateTeamManager<P>{
 		}
 	}
 
+	/**
+	 * the metrics of teams. which is notified by the team manager after a team callback is done or a message is
+	 * dispatched to a team. the methods may be called on multi threads.
+	 * 
+	 * @author heaven7
+	 *
+	 * @param
+	 * 			<P>
+	 *            the parameter type
+	 * @since 1.2.1
+	 * @see StateTeamManager#setTeamMetrics(TeamMetrics)
+	 * @see com.heaven7.java.mvcs.impl.DefaultTeamMetrics
+	 */
+	public static abstract class TeamMetrics<P> {
+
+		/**
+		 * called after the callback of team is done for a state transition.
+		 * 
+		 * @param team
+		 *            the team
+		 * @param depth
+		 *            the cascade depth of team. 1 means the team of trigger.
+		 * @param notifiedMembers
+		 *            the count of member controllers which are notified by the callback.
+		 * @param latencyNanos
+		 *            the latency of callback in nanoseconds.
+		 */
+		public void onTeamTransition(Team<P> team, int depth, int notifiedMembers, long latencyNanos) {
+
+		}
+
+		/**
+		 * called after the messages are dispatched to team.
+		 * 
+		 * @param team
+		 *            the team
+		 * @param dispatched
+		 *            the count of dispatched messages.
+		 * @param handled
+		 *            the count of handled messages.
+		 * @param consumed
+		 *            true if the messages are consumed by {@linkplain IController#POLICY_CONSUME}.
+		 */
+		public void onTeamMessages(Team<P> team, int dispatched, int handled, boolean consumed) {
+
+		}
+	}
+
+	/**
+	 * create the team manager of shard 0.
+	 */
 	public StateTeamManager() {
+		this(0);
+	}
+
+	/**
+	 * create the team manager of target shard. the team ids of different shards are disjoint, and a controller can
+	 * only be the formal member of the teams of one manager. so the managers of independent shards (or worlds) can be
+	 * used on different threads without shared structures.
+	 * @param shardIndex the shard index. must in [0, {@linkplain #MAX_SHARD_INDEX}].
+	 * @throws IllegalArgumentException if the shard index is out of range.
+	 * @since 1.2.1
+	 */
+	public StateTeamManager(int shardIndex) {
+		if (shardIndex < 0 || shardIndex > MAX_SHARD_INDEX) {
+			throw new IllegalArgumentException("the shard index is out of range. shardIndex = " + shardIndex);
+		}
+		this.mShardIndex = shardIndex;
+		this.mTeamIdBase = shardIndex << TEAM_ID_SHARD_SHIFT;
 		mMap = new SparseArray<>();
 	}
+
+	/**
+	 * get the shard index of the team id.
+	 * @param teamId the team id
+	 * @return the shard index.
+	 * @since 1.2.1
+	 */
+	public static int getShardIndex(int teamId) {
+		return teamId >>> TEAM_ID_SHARD_SHIFT;
+	}
+
+	/**
+	 * get the shard index of this manager.
+	 * @return the shard index.
+	 * @since 1.2.1
+	 */
+	public int getShardIndex() {
+		return mShardIndex;
+	}
+
+	/**
+	 * indicate the team id is in the id range of this manager or not.
+	 * @param teamId the team id
+	 * @return true if the team id is owned by this manager.
+	 * @since 1.2.1
+	 */
+	public boolean isOwnedTeamId(int teamId) {
+		return teamId > 0 && (teamId & MAX_LOCAL_TEAM_ID) != 0 && getShardIndex(teamId) == mShardIndex;
+	}
 	
 	/**
 	 * create a team with default callback.
@@ -139,8 +356,8 @@ public class StateTeamManager<P>{
 		Throwables.checkEmpty(formal);
 		Throwables.checkNull(callback);
 		Team<P> team = new Team<P>();
-		team.formal = formal;
-		team.outer = outer;
+		team.formal = new MemberArray<P>(formal);
+		team.outer = new MemberArray<P>(outer);
 		team.callback = callback;
 		return team;
 	}
@@ -236,11 +453,19 @@ public class StateTeamManager<P>{
 	 * register a team to manager.
 	 * @param team the target team
 	 * @return the id of target team
+	 * @throws IllegalStateException if a formal member is owned by another team manager, or the team ids are exhausted.
 	 */
 	public int registerTeam(Team<P> team){
+		final int teamId = nextTeamId();
 		team.setTeamManager(this);
-		mMap.put( ++mLastTeamId, team );
-		return mLastTeamId;
+		team.trackMembers(mMemberQueue);
+		mMap.put( teamId, team );
+		team.refreshStates();
+		if (team.updatePeriod != 0) {
+			scheduleTeam(team);
+		}
+		onMembershipChanged(false);
+		return teamId;
 	}
 
 	/**
@@ -252,8 +477,11 @@ public class StateTeamManager<P>{
 	public void unregisterTeam(int teamId) {
 		Team<P> team = mMap.get(teamId);
 		if(team != null){
+			detachTeam(team);
+			unscheduleTeam(team);
 			team.setTeamManager(null);
 		    mMap.remove(teamId);
+		    onMembershipChanged(true);
 		}
 	}
 	
@@ -266,8 +494,11 @@ public class StateTeamManager<P>{
 	public void unregisterTeam(Team<P> team) {
 		final int index = mMap.indexOfValue(team);
 		if(index >=0 ){
+			detachTeam(team);
+			unscheduleTeam(team);
 			team.setTeamManager(null);
 			mMap.removeAt(index);
+			onMembershipChanged(true);
 		}
 	}
 	/**
@@ -276,9 +507,14 @@ public class StateTeamManager<P>{
 	public void unregisterAllTeam(){
 		final int size = mMap.size();
 		for (int i = size - 1; i >= 0; i--) {
+			detachTeam(mMap.valueAt(i));
 			mMap.valueAt(i).setTeamManager(null);
 		}
 		mMap.clear();
+		if (mScheduledTeams != null) {
+			mScheduledTeams.clear();
+		}
+		onMembershipChanged(true);
 	}
 
 	/**
@@ -397,7 +633,15 @@ public class StateTeamManager<P>{
 		if (team == null) {
 			return false;
 		}
-		return team.formal.add(member);
+		team.checkOwner(member, this);
+		if (!team.formal.add(member)) {
+			return false;
+		}
+		member.track(mMemberQueue, team);
+		team.indexFormalMember(member);
+		team.refreshStates();
+		onMembershipChanged(false);
+		return true;
 	}
 
 	/**
@@ -415,10 +659,12 @@ public class StateTeamManager<P>{
 		if (team == null) {
 			return false;
 		}
-		if (team.outer == null) {
-			team.outer = new ArrayList<>(4);
+		if (!team.outer.add(member)) {
+			return false;
 		}
-		return team.outer.add(member);
+		member.track(mMemberQueue, team);
+		onMembershipChanged(false);
+		return true;
 	}
 
 	/**
@@ -479,6 +725,70 @@ public class StateTeamManager<P>{
 		return mMap.get(teamId);
 	}
 
+	/**
+	 * add a sub team to the parent team. the aggregated states of parent include the members of sub team. so the
+	 * hierarchy like squads, platoons and armies can be queried without duplicating members.
+	 * see {@linkplain Team#getUnionStates()} and {@linkplain Team#getIntersectionStates()}.
+	 * @param parentId the id of parent team
+	 * @param childId the id of sub team
+	 * @return true if added. false if any team is not found.
+	 * @throws IllegalArgumentException if the sub team is the parent or an ancestor of parent.
+	 * @throws IllegalStateException if the sub team already has a parent.
+	 * @since 1.2.1
+	 */
+	public boolean addSubTeam(int parentId, int childId) {
+		final Team<P> parent = mMap.get(parentId);
+		final Team<P> child = mMap.get(childId);
+		if (parent == null || child == null) {
+			return false;
+		}
+		// the counts of sub team are stable with its lock.
+		synchronized (child) {
+			synchronized (mStatesLock) {
+				for (Team<P> t = parent; t != null; t = t.parent) {
+					if (t == child) {
+						throw new IllegalArgumentException("the sub team can't be the ancestor of parent. childId = "
+								+ childId);
+					}
+				}
+				if (child.parent != null) {
+					throw new IllegalStateException("the sub team already has parent. childId = " + childId);
+				}
+				child.parent = parent;
+				if (parent.children == null) {
+					parent.children = new ArrayList<>(4);
+				}
+				parent.children.add(child);
+				parent.addCounts(child.counts, child.memberCount, 1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * remove the sub team from the parent team.
+	 * @param parentId the id of parent team
+	 * @param childId the id of sub team
+	 * @return true if removed.
+	 * @since 1.2.1
+	 */
+	public boolean removeSubTeam(int parentId, int childId) {
+		final Team<P> parent = mMap.get(parentId);
+		final Team<P> child = mMap.get(childId);
+		if (parent == null || child == null) {
+			return false;
+		}
+		synchronized (child) {
+			synchronized (mStatesLock) {
+				if (child.parent != parent) {
+					return false;
+				}
+				removeSubTeam0(child);
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * indicate the target member is a formal member or not.
 	 * 
@@ -490,7 +800,7 @@ public class StateTeamManager<P>{
 		Throwables.checkNull(member);
 		final int size = mMap.size();
 		for (int i = size - 1; i >= 0; i--) {
-			if (mMap.get(i).isFormalMember(member)) {
+			if (mMap.valueAt(i).isFormalMember(member)) {
 				return true;
 			}
 		}
@@ -508,7 +818,7 @@ public class StateTeamManager<P>{
 		Throwables.checkNull(member);
 		final int size = mMap.size();
 		for (int i = size - 1; i >= 0; i--) {
-			if (mMap.get(i).isOuterMember(member)) {
+			if (mMap.valueAt(i).isOuterMember(member)) {
 				return true;
 			}
 		}
@@ -555,7 +865,8 @@ public class StateTeamManager<P>{
 	}
 
 	/**
-	 * update the all teams.
+	 * update the all teams. the team which has update period is only updated when it is due, with the accumulated
+	 * delta time. see {@linkplain #setUpdatePeriod(int, long)}.
 	 * 
 	 * @param deltaTime
 	 *            the delta time between last update and this.
@@ -563,11 +874,242 @@ public class StateTeamManager<P>{
 	 *            the parameter.
 	 */
 	public void update(long deltaTime, P param) {
-		final int size = mMap.size();
-		for (int i = size - 1; i >= 0; i--) {
-			mMap.valueAt(i).update(deltaTime, param);
+		purgeCollectedMembers();
+		flushTransitions();
+		dispatchPendingMessages();
+		mUpdateClock += deltaTime;
+		updateTickTeams(deltaTime, param);
+		if (mScheduledTeams != null && !mScheduledTeams.isEmpty()) {
+			updateScheduledTeams(param);
+		}
+	}
+
+	/**
+	 * set the update period of team. the team is updated by {@linkplain #update(long, Object)} only when the period
+	 * elapsed, with the delta time which is accumulated since its last update. the not-due teams are not visited.
+	 * @param teamId the team id
+	 * @param period the period in the unit of delta time. 0 means update on every update.
+	 * @return true if set. false if the team is not found.
+	 * @throws IllegalArgumentException if period &lt; 0.
+	 * @since 1.2.1
+	 */
+	public boolean setUpdatePeriod(int teamId, long period) {
+		if (period < 0) {
+			throw new IllegalArgumentException("the update period can't be negative. period = " + period);
+		}
+		final Team<P> team = mMap.get(teamId);
+		if (team == null) {
+			return false;
+		}
+		if (team.updatePeriod == period) {
+			return true;
+		}
+		unscheduleTeam(team);
+		team.updatePeriod = period;
+		if (period != 0) {
+			scheduleTeam(team);
+		}
+		mTickTeams = null;
+		mShards = null;
+		return true;
+	}
+
+	/**
+	 * set the coalesce mode of team transitions. a multi-state transition (like exit three states and enter two)
+	 * fires one callback per state and team by default. in coalesce mode, they are accumulated per team and
+	 * delivered once as the net exit, enter and reenter. that is: the states which are entered then exited are
+	 * dropped, and the states which are exited then entered become reenter. the trigger of every callback is the
+	 * last non-mutex trigger state of it. and the trigger is a snapshot (controller, id, mutex flag and parameters)
+	 * of the state when it changed, because the exited state may be already detached on delivery.
+	 * @param mode the mode. see {@linkplain #COALESCE_TRANSITION_NONE}, {@linkplain #COALESCE_TRANSITION_OPERATION}
+	 *        and {@linkplain #COALESCE_TRANSITION_TICK}.
+	 * @throws IllegalArgumentException if the mode is unknown.
+	 * @since 1.2.1
+	 */
+	public void setTransitionCoalesceMode(byte mode) {
+		switch (mode) {
+		case COALESCE_TRANSITION_NONE:
+		case COALESCE_TRANSITION_OPERATION:
+		case COALESCE_TRANSITION_TICK:
+			break;
+
+		default:
+			throw new IllegalArgumentException("unknown coalesce mode. mode = " + mode);
+		}
+		this.mCoalesceMode = mode;
+		if (mode != COALESCE_TRANSITION_TICK) {
+			flushTransitions();
+		}
+	}
+
+	/**
+	 * get the coalesce mode of team transitions.
+	 * @return the mode
+	 * @since 1.2.1
+	 */
+	public byte getTransitionCoalesceMode() {
+		return mCoalesceMode;
+	}
+
+	/**
+	 * set the max depth of team cascade. a member of team may be a formal member of other teams, so the notified
+	 * member can continue the cascade to its teams. the cascade runs breadth-first: the teams of trigger are
+	 * depth 1, the teams of the members notified by depth 1 are depth 2, and so on. the teams of same depth are
+	 * notified in the topological order of the compiled cascade graph. every team is notified at most once and
+	 * every controller is notified at most once per cascade. so the cycles of teams are safe. the deeper teams
+	 * are notified with the trigger state of the cascade. default is 1.
+	 * @param depth the max depth. must &gt;= 1.
+	 * @throws IllegalArgumentException if depth &lt; 1.
+	 * @since 1.2.1
+	 * @see #hasCascadeCycle()
+	 */
+	public void setMaxCascadeDepth(int depth) {
+		if (depth < 1) {
+			throw new IllegalArgumentException("the max cascade depth must >= 1. depth = " + depth);
+		}
+		this.mMaxCascadeDepth = depth;
+	}
+
+	/**
+	 * get the max depth of team cascade.
+	 * @return the max depth.
+	 * @since 1.2.1
+	 */
+	public int getMaxCascadeDepth() {
+		return mMaxCascadeDepth;
+	}
+
+	/**
+	 * indicate the teams have cycle of cascade or not. that is a team can reach itself by the formal members of
+	 * its members. the cascade graph is compiled when the membership changed.
+	 * @return true if has cycle.
+	 * @since 1.2.1
+	 */
+	public boolean hasCascadeCycle() {
+		return getCascadeGraph().hasCycle();
+	}
+
+	/**
+	 * set the metrics of teams. when the metrics is null, no time or count is measured.
+	 * @param metrics the metrics. null to disable.
+	 * @since 1.2.1
+	 */
+	public void setTeamMetrics(@Nullable TeamMetrics<P> metrics) {
+		this.mMetrics = metrics;
+	}
+
+	/**
+	 * get the metrics of teams.
+	 * @return the metrics. null if disabled.
+	 * @since 1.2.1
+	 */
+	public TeamMetrics<P> getTeamMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * deliver the pending transitions of {@linkplain #COALESCE_TRANSITION_TICK}. this is called by
+	 * {@linkplain #update(long, Object)} automatically.
+	 * @since 1.2.1
+	 */
+	public void flushTransitions() {
+		final TeamMediator<?>[] mediators;
+		synchronized (mDirtyMediators) {
+			if (mDirtyMediators.isEmpty()) {
+				return;
+			}
+			mediators = mDirtyMediators.toArray(new TeamMediator<?>[mDirtyMediators.size()]);
+			mDirtyMediators.clear();
+		}
+		for (TeamMediator<?> mediator : mediators) {
+			flushTransitions(StateTeamManager.<P>cast(mediator));
+		}
+	}
+
+	/**
+	 * get the count of team callbacks which are saved by coalescing.
+	 * @return the count.
+	 * @since 1.2.1
+	 */
+	public long getCoalescedTransitionCount() {
+		return mCoalescedCount.get();
+	}
+
+	/**
+	 * set the pool of parallel update. if set, the teams are partitioned into conflict-free shards. the teams which
+	 * share no controller are in different shards, and the shards are updated concurrently by
+	 * {@linkplain #update(long, Object)}. the teams of a shard are updated in the same order as serial update.
+	 * <p>Note: the members should be changed by the methods of this manager. so that the shards can be computed
+	 * again.</p>
+	 * @param pool the pool. null to update serially.
+	 * @since 1.2.1
+	 */
+	public void setParallelUpdatePool(@Nullable ForkJoinPool pool) {
+		this.mUpdatePool = pool;
+	}
+
+	/**
+	 * get the pool of parallel update.
+	 * @return the pool. or null if update serially.
+	 * @since 1.2.1
+	 */
+	public ForkJoinPool getParallelUpdatePool() {
+		return mUpdatePool;
+	}
+
+	/**
+	 * get the count of conflict-free shards of teams.
+	 * @return the shard count.
+	 * @see #setParallelUpdatePool(ForkJoinPool)
+	 * @since 1.2.1
+	 */
+	public int getUpdateShardCount() {
+		return getShards().length;
+	}
+	/**
+	 * purge the members whose controller is collected from the teams which own them. the other teams are not
+	 * visited. this is called by {@linkplain #update(long, Object)} automatically.
+	 * @return the count of purged members.
+	 * @since 1.2.1
+	 */
+	public int purgeCollectedMembers() {
+		Reference<?> ref = mMemberQueue.poll();
+		if (ref == null) {
+			return 0;
+		}
+		// the members are compared by identity. because the equals of dead member is always false.
+		final Set<Member<?>> dead = Collections.newSetFromMap(new IdentityHashMap<Member<?>, Boolean>());
+		final Set<Team<?>> teams = Collections.newSetFromMap(new IdentityHashMap<Team<?>, Boolean>());
+		MemberReference<?> mr;
+		do {
+			mr = (MemberReference<?>) ref;
+			dead.add(mr.member);
+			Collections.addAll(teams, mr.getTeams());
+		} while ((ref = mMemberQueue.poll()) != null);
+
+		int purged = 0;
+		for (Team<?> team : teams) {
+			// the team may be unregistered after the member is tracked.
+			if (team.manager == this) {
+				purged += team.purgeMembers(dead);
+			}
+		}
+		mPurgedMemberCount += purged;
+		if (purged > 0) {
+			onMembershipChanged(true);
 		}
+		return purged;
+	}
+
+	/**
+	 * get the count of members which are purged because their controllers are collected.
+	 * @return the purged count.
+	 * @since 1.2.1
+	 */
+	public long getPurgedMemberCount() {
+		return mPurgedMemberCount;
 	}
+
 	/**
 	 * update the all teams.
 	 * 
@@ -584,28 +1126,27 @@ public class StateTeamManager<P>{
 		}
 	}
 	/**
-	 * send a message to a team which is assigned by target team id.
+	 * send a message to a team which is assigned by target team id. if the message is delayed, it will be
+	 * delivered by {@linkplain #update(long, Object)} in the order of {@linkplain Message#priority}.
 	 * @param teamId the team id
 	 * @param msg the message
 	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
 	 *                {@linkplain IController#POLICY_CONSUME}
 	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL}, 
 	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
-	 * @return true the message if handled. false otherwise
+	 * @return true the message if handled. false otherwise, or the team id is invalid.
 	 */
 	public boolean dispatchMessage(int teamId, Message msg, @PolicyType byte policy,
 			int memberFlags){
-		Team<P> team = getTeam(teamId);
-		if(team == null){
+		if(!isTeamId(teamId)){
 			return false;
 		}
-		boolean result = team.dispatchMessage(msg, policy, memberFlags);
-		msg.recycleUnchecked();
-		return result;
+		return dispatchMessageImpl(teamId, msg, policy, memberFlags);
 	}
 	
 	/**
-	 * dispatch a message to all teams which is assigned by target team id.
+	 * dispatch a message to all teams. if the message is delayed, it will be
+	 * delivered by {@linkplain #update(long, Object)} in the order of {@linkplain Message#priority}.
 	 * @param msg the message
 	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
 	 *                {@linkplain IController#POLICY_CONSUME}
@@ -615,127 +1156,1253 @@ public class StateTeamManager<P>{
 	 */
 	public boolean dispatchMessage(Message msg, @PolicyType byte policy,
 			int memberFlags){
-		final boolean hasConsumed = policy == IController.POLICY_CONSUME;
-		final int size = mMap.size();
-		
-		boolean handled = false;
-		for(int i = size-1 ; i>=0 ; i--){
-			if(hasConsumed && 
-					(handled |= mMap.valueAt(i).dispatchMessage(msg, policy, memberFlags))
-					){
-				handled = true;
-				break;
-			}
-		}
-		msg.recycleUnchecked();
-		return handled;
+		return dispatchMessageImpl(ALL_TEAMS, msg, policy, memberFlags);
 	}
 
-	// =============================================================
-	/*public*/ void onEnterState(int stateFlag, AbstractState<P> state) {
-		final int size = mMap.size();
-		for (int i = size - 1; i >= 0; i--) {
-			mMap.valueAt(i).onEnter(stateFlag, state);
-		}
+	/**
+	 * publish the message to the members which subscribe the what of it. the teams are not iterated. if the message
+	 * is delayed, it will be delivered by {@linkplain #update(long, Object)}.
+	 * @param msg the message
+	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or
+	 *                {@linkplain IController#POLICY_CONSUME}
+	 * @return true the message if handled. false otherwise
+	 * @see #subscribe(int, Member, int...)
+	 * @since 1.2.1
+	 */
+	public boolean publish(Message msg, @PolicyType byte policy){
+		return dispatchMessageImpl(TOPIC_SUBSCRIBERS, msg, policy, FLAG_MEMBER_FORMAL | FLAG_MEMBER_OUTER);
 	}
 
-	/*public*/ void onExitState(int stateFlag, AbstractState<P> state) {
-		final int size = mMap.size();
-		for (int i = size - 1; i >= 0; i--) {
-			mMap.valueAt(i).onExit(stateFlag, state);
+	/**
+	 * subscribe the topics for the member of team. the topic is the what of message.
+	 * @param teamId the team id
+	 * @param member the member of team. formal or outer.
+	 * @param whats the whats of message
+	 * @return true if subscribed. false if the team is not found or the member is not in the team.
+	 * @since 1.2.1
+	 */
+	public boolean subscribe(int teamId, Member<P> member, int... whats){
+		Throwables.checkNull(member);
+		final Team<P> team = mMap.get(teamId);
+		if(team == null){
+			return false;
 		}
-	}
-
-	/*public*/ void onReenterState(int stateFlag, AbstractState<P> state) {
-		final int size = mMap.size();
-		for (int i = size - 1; i >= 0; i--) {
-			mMap.valueAt(i).onReenter(stateFlag, state);
+		final byte memberFlag = team.getMemberFlags(member);
+		if(memberFlag == 0){
+			return false;
+		}
+		if(mTopics == null){
+			mTopics = new SparseArray<List<Subscription<P>>>(8);
+		}
+		List<Subscription<P>> subs;
+		for(int what : whats){
+			subs = mTopics.get(what);
+			if(subs == null){
+				subs = new ArrayList<>(4);
+				mTopics.put(what, subs);
+			}else if(indexOfSubscription(subs, team, member) >= 0){
+				continue;
+			}
+			subs.add(new Subscription<P>(team, member, memberFlag));
 		}
+		return true;
 	}
 
-	// =============================================================================
-
-	// ================ start private method ===============
-	
 	/**
-	 * delete the member states which is indicated by target controller and
-	 * states.
-	 * 
-	 * @param teamId
-	 *            the team id.
-	 * @param controller
-	 *            the controller
-	 * @param targetStates
-	 *            the target states to delete. must >0
-	 * @param memberFlags
-	 *            the member flags .see
-	 *            {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL} and
-	 *            {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}.
-	 * @return true of delete member state success. or false if don't have.
+	 * unsubscribe the topics for the member of team.
+	 * @param teamId the team id
+	 * @param member the member
+	 * @param whats the whats of message
+	 * @return true if any topic is unsubscribed.
+	 * @since 1.2.1
 	 */
-	private boolean deleteMembeStates(int teamId, IController<? extends AbstractState<P>, P> controller,
-			int targetStates, byte memberFlags) {
-		Throwables.checkNull(controller);
-		if (targetStates <= 0) {
-			throw new IllegalArgumentException("targetStates must be positive.");
-		}
-		Team<P> team = mMap.get(teamId);
-		if (team == null) {
+	public boolean unsubscribe(int teamId, Member<P> member, int... whats){
+		final Team<P> team = mMap.get(teamId);
+		if(team == null || mTopics == null){
 			return false;
 		}
-		return team.deleteMember(controller, targetStates, memberFlags);
+		boolean result = false;
+		List<Subscription<P>> subs;
+		int index;
+		for(int what : whats){
+			subs = mTopics.get(what);
+			if(subs != null && (index = indexOfSubscription(subs, team, member)) >= 0){
+				subs.remove(index);
+				if(subs.isEmpty()){
+					mTopics.remove(what);
+				}
+				result = true;
+			}
+		}
+		return result;
 	}
-	
+
 	/**
-	 * delete the member which is indicated by target controller.
-	 * 
-	 * @param teamId
-	 *            the team id.
-	 * @param controller
-	 *            the controller
+	 * get the count of subscribers of the topic.
+	 * @param what the what of message
+	 * @return the count of subscribers
+	 * @since 1.2.1
+	 */
+	public int getSubscriberCount(int what){
+		final List<Subscription<P>> subs = mTopics != null ? mTopics.get(what) : null;
+		return subs != null ? subs.size() : 0;
+	}
+
+	/**
+	 * set the topic filter enabled or not. if enabled, the message which is dispatched to teams only visit the
+	 * members which subscribe the what of it. default is false.
+	 * @param enabled true to enable.
+	 * @see #subscribe(int, Member, int...)
+	 * @since 1.2.1
+	 */
+	public void setTopicFilterEnabled(boolean enabled){
+		this.mTopicFilterEnabled = enabled;
+	}
+
+	public boolean isTopicFilterEnabled(){
+		return mTopicFilterEnabled;
+	}
+
+	/**
+	 * dispatch the messages of batch to a team which is assigned by target team id in one pass. every member
+	 * receive the whole batch once. the delayed messages of batch will be delivered by
+	 * {@linkplain #update(long, Object)}. After that the messages are recycled and the batch is cleared.
+	 * @param teamId the team id
+	 * @param batch the message batch
+	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
+	 *                {@linkplain IController#POLICY_CONSUME}
+	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL}, 
+	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
+	 * @return the count of handled messages. 0 if the team id is invalid, and the batch is untouched.
+	 * @since 1.2.1
+	 */
+	public int dispatchMessages(int teamId, MessageBatch batch, @PolicyType byte policy, int memberFlags){
+		if(!isTeamId(teamId)){
+			return 0;
+		}
+		return dispatchMessagesImpl(teamId, batch, policy, memberFlags);
+	}
+
+	/**
+	 * dispatch the messages of batch to all teams in one pass.
+	 * @param batch the message batch
+	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
+	 *                {@linkplain IController#POLICY_CONSUME}
+	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL}, 
+	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
+	 * @return the count of handled messages.
+	 * @since 1.2.1
+	 * @see #dispatchMessages(int, MessageBatch, byte, int)
+	 */
+	public int dispatchMessages(MessageBatch batch, @PolicyType byte policy, int memberFlags){
+		return dispatchMessagesImpl(ALL_TEAMS, batch, policy, memberFlags);
+	}
+
+	/**
+	 * send the request message to a team which is assigned by target team id, and return the future of reply.
+	 * the timeout is driven by the delayed messages of teams which are handled in {@linkplain #update(long, Object)}.
+	 * @param teamId the team id
+	 * @param msg the request message. which can't have replier.
+	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
+	 *                {@linkplain IController#POLICY_CONSUME}
+	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL}, 
+	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
+	 * @param timeout the timeout in millseconds. <=0 means never timeout.
+	 * @return the future of reply message. which is already cancelled if the team id is invalid.
+	 * @throws IllegalArgumentException if the message already has replier.
+	 * @since 1.2.1
+	 * @see IController#request(Message, byte, byte, long)
+	 */
+	public MessageFuture request(int teamId, Message msg, @PolicyType byte policy, int memberFlags, long timeout){
+		if(!isTeamId(teamId)){
+			return mRequests.newCancelledFuture(msg);
+		}
+		return requestImpl(teamId, msg, policy, memberFlags, timeout);
+	}
+
+	/**
+	 * send the request message to all teams, and return the future of reply.
+	 * @param msg the request message. which can't have replier.
+	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
+	 *                {@linkplain IController#POLICY_CONSUME}
+	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL}, 
+	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
+	 * @param timeout the timeout in millseconds. <=0 means never timeout.
+	 * @return the future of reply message.
+	 * @throws IllegalArgumentException if the message already has replier.
+	 * @since 1.2.1
+	 * @see #request(int, Message, byte, int, long)
+	 */
+	public MessageFuture request(Message msg, @PolicyType byte policy, int memberFlags, long timeout){
+		return requestImpl(ALL_TEAMS, msg, policy, memberFlags, timeout);
+	}
+
+	private MessageFuture requestImpl(int teamId, Message msg, byte policy, int memberFlags, long timeout){
+		final MessageFuture future = mRequests.register(msg);
+		if(timeout > 0){
+			final TeamMessageInfo info = new TeamMessageInfo(mRequests.newTimeoutMessage(future, timeout),
+					teamId, policy, memberFlags);
+			synchronized (this) {
+				if(mDelayMessages == null){
+					mDelayMessages = new ArrayList<>(8);
+				}
+				mDelayMessages.add(info);
+			}
+			mRequests.armTimeout(future, info.msg);
+		}
+		try{
+			dispatchMessageImpl(teamId, msg, policy, memberFlags);
+		}catch (RuntimeException e) {
+			future.cancel(false);
+			throw e;
+		}
+		return future;
+	}
+
+	/**
+	 * post a message to a team which is assigned by target team id. the message will be delivered
+	 * by {@linkplain #update(long, Object)} in the order of {@linkplain Message#priority}.
+	 * @param teamId the team id
+	 * @param msg the message
+	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
+	 *                {@linkplain IController#POLICY_CONSUME}
+	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL}, 
+	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
+	 * @return true if the message is posted. false if the team id is invalid.
+	 * @since 1.2.1
+	 * @see #setMessageDeliveryPolicy(byte, int, int[])
+	 */
+	public boolean postMessage(int teamId, Message msg, @PolicyType byte policy, int memberFlags){
+		if(!isTeamId(teamId)){
+			return false;
+		}
+		enqueueMessage(teamId, msg, policy, memberFlags, false);
+		return true;
+	}
+
+	/**
+	 * post a message to all teams. the message will be delivered
+	 * by {@linkplain #update(long, Object)} in the order of {@linkplain Message#priority}.
+	 * @param msg the message
+	 * @param policy the policy. {@linkplain IController#POLICY_BROADCAST} or 
+	 *                {@linkplain IController#POLICY_CONSUME}
+	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL}, 
+	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
+	 * @since 1.2.1
+	 * @see #setMessageDeliveryPolicy(byte, int, int[])
+	 */
+	public void postMessage(Message msg, @PolicyType byte policy, int memberFlags){
+		enqueueMessage(ALL_TEAMS, msg, policy, memberFlags, false);
+	}
+
+	/**
+	 * set the delivery policy of the pending team messages which are handled in
+	 * {@linkplain #update(long, Object)}.
+	 * @param drainPolicy the drain policy. {@linkplain IController#DRAIN_STRICT} or
+	 *         {@linkplain IController#DRAIN_WEIGHTED_FAIR}.
+	 * @param budget the max count of pending messages to deliver in one update. <=0 means unlimited.
+	 * @param laneWeights the weights of lanes (high, normal, low) for {@linkplain IController#DRAIN_WEIGHTED_FAIR}.
+	 *              null means default weights.
+	 * @since 1.2.1
+	 * @see IController#setMessageDeliveryPolicy(byte, int, int[])
+	 */
+	public void setMessageDeliveryPolicy(@DrainPolicy byte drainPolicy, int budget, int[] laneWeights){
+		synchronized (this) {
+			mReadyMessages.setDeliveryPolicy(drainPolicy, budget, laneWeights);
+		}
+	}
+
+	/**
+	 * clear the all pending team messages. and cancel the all pending requests.
+	 * @since 1.2.1
+	 */
+	public void clearMessages(){
+		mRequests.cancelAll();
+		synchronized (this) {
+			if(mDelayMessages != null){
+				for(TeamMessageInfo info : mDelayMessages){
+					info.msg.recycleUnchecked();
+				}
+				mDelayMessages.clear();
+			}
+			mReadyMessages.clear();
+		}
+	}
+
+	// =============================================================
+	/*public*/ void onEnterState(int stateFlag, AbstractState<P> state) {
+		onTransition(TRANSITION_ENTER, stateFlag, state);
+	}
+
+	/*public*/ void onExitState(int stateFlag, AbstractState<P> state) {
+		onTransition(TRANSITION_EXIT, stateFlag, state);
+	}
+
+	/*public*/ void onReenterState(int stateFlag, AbstractState<P> state) {
+		onTransition(TRANSITION_REENTER, stateFlag, state);
+	}
+
+	/** called before the controller change states. the operations may be nested. */
+	/*public*/ void beginOperation(TeamMediator<P> mediator) {
+		mediator.mOperationDepth++;
+	}
+
+	/** called after the controller changed states. the coalesced transitions are delivered if need. */
+	/*public*/ void endOperation(TeamMediator<P> mediator) {
+		if (--mediator.mOperationDepth == 0 && mCoalesceMode != COALESCE_TRANSITION_TICK) {
+			flushTransitions(mediator);
+		}
+	}
+
+	// =============================================================================
+
+	// ================ start private method ===============
+
+	private void onTransition(byte action, int stateFlag, AbstractState<P> state) {
+		final List<Team<P>> teams = getFormalTeams(state);
+		if (teams == null) {
+			return;
+		}
+		final byte mode = this.mCoalesceMode;
+		if (mode != COALESCE_TRANSITION_NONE) {
+			final TeamMediator<P> mediator = state.getController().getTeamMediator();
+			Team<P> team;
+			for (int i = teams.size() - 1; i >= 0; i--) {
+				team = teams.get(i);
+				if (team.manager == this && team.hasMember(state.getController(), stateFlag)) {
+					recordTransition(mediator, team, action, stateFlag, state);
+				}
+			}
+			if (mode == COALESCE_TRANSITION_OPERATION && mediator.mOperationDepth == 0) {
+				flushTransitions(mediator);
+			}
+			return;
+		}
+		// the all teams are notified in one cascade.
+		final TeamCascade cascade = TeamCascade.begin();
+		final IdentityHashMap<Team<P>, Boolean> visited = newCascadeVisited(cascade);
+		try {
+			final IController<?, P> controller = state.getController();
+			Team<P> team;
+			for (int i = teams.size() - 1; i >= 0; i--) {
+				team = teams.get(i);
+				if (team.manager != this || !team.hasMember(controller, stateFlag)) {
+					continue;
+				}
+				if (visited != null) {
+					visited.put(team, Boolean.TRUE);
+				}
+				notifyTeam(cascade, team, action, state, 1);
+			}
+			if (visited != null) {
+				propagateCascade(cascade, visited);
+			}
+		} finally {
+			cascade.end();
+		}
+	}
+
+	/**
+	 * create the visited teams if the cascade is the root and need propagate.
+	 * @return the visited teams. or null if no propagation.
+	 */
+	private IdentityHashMap<Team<P>, Boolean> newCascadeVisited(TeamCascade cascade) {
+		return cascade.getDepth() == 1 && mMaxCascadeDepth > 1 ? new IdentityHashMap<Team<P>, Boolean>() : null;
+	}
+
+	/**
+	 * notify the team callback. the notified members are recorded as the frontier of cascade if need.
+	 * @param depth the cascade depth of team
+	 */
+	private void notifyTeam(TeamCascade cascade, Team<P> team, byte action, AbstractState<P> trigger, int depth) {
+		final boolean record = mMaxCascadeDepth > 1;
+		final byte oldAction = cascade.getSourceAction();
+		final AbstractState<?> oldTrigger = record ? cascade.setSource(action, trigger) : null;
+		final TeamMetrics<P> metrics = mMetrics;
+		final long start = metrics != null ? System.nanoTime() : 0;
+		final int notified = metrics != null ? cascade.getNotifiedCount() : 0;
+		try {
+			switch (action) {
+			case TRANSITION_ENTER:
+				team.callback.onTeamEnter(team, trigger);
+				break;
+			case TRANSITION_EXIT:
+				team.callback.onTeamExit(team, trigger);
+				break;
+			default:
+				team.callback.onTeamReenter(team, trigger);
+				break;
+			}
+			if (metrics != null) {
+				metrics.onTeamTransition(team, depth, cascade.getNotifiedCount() - notified, System.nanoTime() - start);
+			}
+		} finally {
+			if (record) {
+				cascade.setSource(oldAction, oldTrigger);
+			}
+		}
+	}
+
+	/**
+	 * propagate the cascade breadth-first from the frontier, until the max depth is reached.
+	 * @param cascade the root cascade
+	 * @param visited the notified teams
+	 */
+	@SuppressWarnings("unchecked")
+	private void propagateCascade(TeamCascade cascade, IdentityHashMap<Team<P>, Boolean> visited) {
+		final int maxDepth = mMaxCascadeDepth;
+		final List<TeamCascade.Notification> frontier = new ArrayList<>();
+		final List<CascadeStep<P>> steps = new ArrayList<>();
+		CascadeGraph graph = null;
+		IController<?, P> controller;
+		List<Team<P>> teams;
+		Team<P> team;
+		for (int depth = 2; depth <= maxDepth && cascade.drainFrontier(frontier); depth++) {
+			if (graph == null) {
+				graph = getCascadeGraph();
+			}
+			for (TeamCascade.Notification n : frontier) {
+				controller = (IController<?, P>) n.controller;
+				teams = controller.getTeamMediator().getFormalTeams();
+				for (int i = 0, size = teams.size(); i < size; i++) {
+					team = teams.get(i);
+					if (team.manager != this || visited.containsKey(team) || !team.hasMember(controller, n.states)) {
+						continue;
+					}
+					visited.put(team, Boolean.TRUE);
+					steps.add(new CascadeStep<P>(team, n.action, (AbstractState<P>) n.trigger, graph.getRank(team)));
+				}
+			}
+			frontier.clear();
+			// stable. so the teams of same rank keep the order of notification.
+			Collections.sort(steps);
+			for (CascadeStep<P> step : steps) {
+				notifyTeam(cascade, step.team, step.action, step.trigger, depth);
+			}
+			steps.clear();
+		}
+	}
+
+	private CascadeGraph getCascadeGraph() {
+		CascadeGraph graph = mGraph;
+		if (graph == null) {
+			graph = mGraph = CascadeGraph.compile(mMap);
+		}
+		return graph;
+	}
+
+	/** accumulate the transition of team into the net masks. */
+	private void recordTransition(TeamMediator<P> mediator, Team<P> team, byte action, int stateFlag,
+			AbstractState<P> trigger) {
+		List<PendingTransition<P>> list = mediator.mPendingTransitions;
+		if (list == null) {
+			list = mediator.mPendingTransitions = new ArrayList<>(4);
+		}
+		PendingTransition<P> pt = null;
+		for (int i = 0, size = list.size(); i < size; i++) {
+			if (list.get(i).team == team) {
+				pt = list.get(i);
+				break;
+			}
+		}
+		if (pt == null) {
+			if (list.isEmpty() && mCoalesceMode == COALESCE_TRANSITION_TICK) {
+				synchronized (mDirtyMediators) {
+					mDirtyMediators.add(mediator);
+				}
+			}
+			pt = new PendingTransition<P>(team);
+			list.add(pt);
+		}
+		pt.record(action, stateFlag, trigger);
+	}
+
+	/** deliver the coalesced transitions of controller. */
+	private void flushTransitions(TeamMediator<P> mediator) {
+		final List<PendingTransition<P>> list = mediator.mPendingTransitions;
+		if (list == null || list.isEmpty()) {
+			return;
+		}
+		final PendingTransition<?>[] pts = list.toArray(new PendingTransition<?>[list.size()]);
+		list.clear();
+		final TeamCascade cascade = TeamCascade.begin();
+		final IdentityHashMap<Team<P>, Boolean> visited = newCascadeVisited(cascade);
+		try {
+			for (PendingTransition<?> pt : pts) {
+				deliverTransition(cascade, pt, visited);
+			}
+			if (visited != null) {
+				propagateCascade(cascade, visited);
+			}
+		} finally {
+			cascade.end();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void deliverTransition(TeamCascade cascade, PendingTransition<?> pending,
+			IdentityHashMap<Team<P>, Boolean> visited) {
+		final PendingTransition<P> pt = (PendingTransition<P>) pending;
+		final Team<P> team = pt.team;
+		if (team.manager != this) {
+			return;
+		}
+		if (visited != null) {
+			visited.put(team, Boolean.TRUE);
+		}
+		int delivered = 0;
+		if (pt.exitStates != 0) {
+			notifyTeam(cascade, team, TRANSITION_EXIT, pt.exitTrigger, 1);
+			delivered++;
+		}
+		if (pt.enterStates != 0) {
+			notifyTeam(cascade, team, TRANSITION_ENTER, pt.enterTrigger, 1);
+			delivered++;
+		}
+		if (pt.reenterStates != 0) {
+			notifyTeam(cascade, team, TRANSITION_REENTER, pt.reenterTrigger, 1);
+			delivered++;
+		}
+		mCoalescedCount.addAndGet(pt.count - delivered);
+	}
+
+	/** get the teams in which the controller of state is a formal member. by the reverse index. */
+	private static <P> List<Team<P>> getFormalTeams(AbstractState<P> state) {
+		final IController<?, P> controller = state.getController();
+		return controller != null ? controller.getTeamMediator().getFormalTeams() : null;
+	}
+
+	/** indicate the team id can be a registered team or not. the reserved ids are not. */
+	private static boolean isTeamId(int teamId){
+		return teamId > ALL_TEAMS;
+	}
+
+	private boolean dispatchMessageImpl(int teamId, Message msg, byte policy, int memberFlags){
+		if(msg.when > System.currentTimeMillis()){
+			enqueueMessage(teamId, msg, policy, memberFlags, true);
+			return false;
+		}
+		boolean result = dispatchMessage0(teamId, msg, policy, memberFlags);
+		msg.recycleUnchecked();
+		return result;
+	}
+
+	private int dispatchMessagesImpl(int teamId, MessageBatch batch, byte policy, int memberFlags){
+		batch.begin(policy);
+		final long now = System.currentTimeMillis();
+		Message msg;
+		for(int i = 0, size = batch.size() ; i < size ; i++){
+			msg = batch.get(i);
+			if(msg.when > now){
+				enqueueMessage(teamId, msg, policy, memberFlags, true);
+				batch.skip(i, false);
+			}
+		}
+		if(batch.hasDeliverable()){
+			batch.markFromTeam();
+			if(teamId != ALL_TEAMS){
+				Team<P> team = getTeam(teamId);
+				if(team != null){
+					team.dispatchMessages(batch, policy, memberFlags);
+				}
+			}else{
+				for(int i = mMap.size() - 1 ; i >= 0 && batch.hasDeliverable() ; i--){
+					mMap.valueAt(i).dispatchMessages(batch, policy, memberFlags);
+				}
+			}
+		}
+		final int handled = batch.getHandledCount();
+		batch.recycleAndClear();
+		return handled;
+	}
+
+	private boolean dispatchMessage0(int teamId, Message msg, byte policy, int memberFlags){
+		MessageTracer.sample(msg);
+		if(teamId == TOPIC_SUBSCRIBERS){
+			return dispatchTopic(null, msg, policy, memberFlags);
+		}
+		if(mTopicFilterEnabled){
+			if(teamId == ALL_TEAMS){
+				return dispatchTopic(null, msg, policy, memberFlags);
+			}
+			final Team<P> team = getTeam(teamId);
+			return team != null && dispatchTopic(team, msg, policy, memberFlags);
+		}
+		if(teamId != ALL_TEAMS){
+			Team<P> team = getTeam(teamId);
+			return team != null && team.dispatchMessage(msg, policy, memberFlags);
+		}
+		final boolean hasConsumed = policy == IController.POLICY_CONSUME;
+		boolean handled = false;
+		for(int i = mMap.size() - 1 ; i >= 0 ; i--){
+			handled |= mMap.valueAt(i).dispatchMessage(msg, policy, memberFlags);
+			if(hasConsumed && handled){
+				break;
+			}
+		}
+		return handled;
+	}
+
+	/**
+	 * dispatch the message to the subscribers of its what.
+	 * @param team the team of subscribers. null means all teams.
+	 */
+	private boolean dispatchTopic(Team<P> team, Message msg, byte policy, int memberFlags){
+		final List<Subscription<P>> subs = mTopics != null ? mTopics.get(msg.what) : null;
+		if(subs == null){
+			return false;
+		}
+		final boolean hasConsumed = policy == IController.POLICY_CONSUME;
+		boolean handled = false;
+		Subscription<P> sub;
+		for(int i = 0, size = subs.size() ; i < size ; i++){
+			sub = subs.get(i);
+			if((team != null && sub.team != team) || (sub.memberFlag & memberFlags) == 0){
+				continue;
+			}
+			handled |= sub.member.dispatchMessage(msg, policy);
+			msg.markInUse(false);
+			if(hasConsumed && handled){
+				break;
+			}
+		}
+		return handled;
+	}
+
+	/**
+	 * called when the current states of a formal controller changed. the counts are updated per team, and only the
+	 * team which has a parent takes the hierarchy lock.
+	 */
+	/*public*/ void onStateFlagsChanged(TeamMediator<P> mediator, IController<?, P> controller, int flags) {
+		// the flags of a controller are only changed by its own thread.
+		if (mediator.mStateFlags == flags) {
+			return;
+		}
+		mediator.mStateFlags = flags;
+		for (Team<P> team : mediator.getFormalTeams()) {
+			if (team.manager == this) {
+				team.onMemberStatesChanged(this, controller, flags);
+			}
+		}
+	}
+
+	/** remove the team from the hierarchy. the sub teams become the top teams. */
+	private void detachTeam(Team<P> team) {
+		synchronized (team) {
+			synchronized (mStatesLock) {
+				if (team.parent != null) {
+					removeSubTeam0(team);
+				}
+				if (team.children != null) {
+					for (Team<P> child : team.children) {
+						child.parent = null;
+					}
+					team.children = null;
+				}
+				team.clearCounts();
+			}
+		}
+	}
+
+	private void removeSubTeam0(Team<P> child) {
+		final Team<P> parent = child.parent;
+		parent.addCounts(child.counts, child.memberCount, -1);
+		parent.children.remove(child);
+		child.parent = null;
+	}
+
+	private void updateTickTeams(long deltaTime, P param) {
+		final ForkJoinPool pool = this.mUpdatePool;
+		if (pool != null && mMap.size() > 1) {
+			final int[][] shards = getShards();
+			if (shards.length > 1) {
+				// the shards only read the graph.
+				if (mMaxCascadeDepth > 1) {
+					getCascadeGraph();
+				}
+				pool.invoke(new ShardUpdateTask<P>(this, shards, 0, shards.length, deltaTime, param));
+				return;
+			}
+		}
+		List<Team<P>> teams = mTickTeams;
+		if (teams == null) {
+			teams = mTickTeams = new ArrayList<>(mMap.size());
+			for (int i = mMap.size() - 1; i >= 0; i--) {
+				if (mMap.valueAt(i).updatePeriod == 0) {
+					teams.add(mMap.valueAt(i));
+				}
+			}
+		}
+		for (int i = 0, size = teams.size(); i < size; i++) {
+			teams.get(i).update(deltaTime, param);
+		}
+	}
+
+	/** update the due teams of schedule. the teams are rescheduled before update. */
+	private void updateScheduledTeams(P param) {
+		final PriorityQueue<Team<P>> queue = this.mScheduledTeams;
+		final long now = mUpdateClock;
+		if (queue.peek().nextUpdateTime > now) {
+			return;
+		}
+		if (mDueTeams == null) {
+			mDueTeams = new ArrayList<>();
+		}
+		final List<Team<P>> dueTeams = mDueTeams;
+		Team<P> team;
+		while (!queue.isEmpty() && queue.peek().nextUpdateTime <= now) {
+			dueTeams.add(queue.poll());
+		}
+		for (int i = 0, size = dueTeams.size(); i < size; i++) {
+			team = dueTeams.get(i);
+			team.nextUpdateTime += team.updatePeriod;
+			// too late. skip the missed periods.
+			if (team.nextUpdateTime <= now) {
+				team.nextUpdateTime = now + team.updatePeriod;
+			}
+			queue.add(team);
+		}
+		try {
+			long delta;
+			for (int i = 0, size = dueTeams.size(); i < size; i++) {
+				team = dueTeams.get(i);
+				// the team may be unregistered by other team.
+				if (team.manager != this) {
+					continue;
+				}
+				delta = now - team.lastUpdateTime;
+				team.lastUpdateTime = now;
+				team.update(delta, param);
+			}
+		} finally {
+			dueTeams.clear();
+		}
+	}
+
+	private void scheduleTeam(Team<P> team) {
+		if (mScheduledTeams == null) {
+			mScheduledTeams = new PriorityQueue<Team<P>>(11, sNEXT_UPDATE_COMPARATOR);
+		}
+		team.lastUpdateTime = mUpdateClock;
+		team.nextUpdateTime = mUpdateClock + team.updatePeriod;
+		mScheduledTeams.add(team);
+	}
+
+	private void unscheduleTeam(Team<P> team) {
+		if (team.updatePeriod != 0 && mScheduledTeams != null) {
+			mScheduledTeams.remove(team);
+		}
+	}
+
+	/** get the next free team id in the range of this manager. the local id is reused after wrap around. */
+	private int nextTeamId(){
+		int teamId;
+		for(int i = 0 ; i < MAX_LOCAL_TEAM_ID ; i++){
+			mLastTeamId = mLastTeamId >= MAX_LOCAL_TEAM_ID ? 1 : mLastTeamId + 1;
+			teamId = mTeamIdBase | mLastTeamId;
+			if(mMap.get(teamId) == null){
+				return teamId;
+			}
+		}
+		throw new IllegalStateException("the team ids are exhausted. shardIndex = " + mShardIndex);
+	}
+
+	private void onMembershipChanged(boolean removed){
+		mShards = null;
+		mTickTeams = null;
+		mGraph = null;
+		if(removed && mTopics != null){
+			pruneTopics();
+		}
+	}
+
+	/** remove the subscriptions whose member is not in the registered team any more. */
+	private void pruneTopics(){
+		List<Subscription<P>> subs;
+		Subscription<P> sub;
+		for(int i = mTopics.size() - 1 ; i >= 0 ; i--){
+			subs = mTopics.valueAt(i);
+			for(int j = subs.size() - 1 ; j >= 0 ; j--){
+				sub = subs.get(j);
+				if(sub.team.manager != this || sub.team.getMemberFlags(sub.member) == 0){
+					subs.remove(j);
+				}
+			}
+			if(subs.isEmpty()){
+				mTopics.removeAt(i);
+			}
+		}
+	}
+
+	private static <P> int indexOfSubscription(List<Subscription<P>> subs, Team<P> team, Member<P> member){
+		Subscription<P> sub;
+		for(int i = 0, size = subs.size() ; i < size ; i++){
+			sub = subs.get(i);
+			if(sub.team == team && sub.member == member){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * remove the delayed message by identity.
+	 * @return true if removed.
+	 */
+	private synchronized boolean removeDelayMessage(Message msg){
+		if(mDelayMessages != null){
+			for(int i = mDelayMessages.size() - 1 ; i >= 0 ; i--){
+				if(mDelayMessages.get(i).msg == msg){
+					mDelayMessages.remove(i);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void enqueueMessage(int teamId, Message msg, byte policy, int memberFlags, boolean delay){
+		if (msg.isInUse()) {
+			throw new IllegalStateException(msg + " This message is already in use.");
+		}
+		msg.markInUse();
+		final TeamMessageInfo info = new TeamMessageInfo(msg, teamId, policy, memberFlags);
+		synchronized (this) {
+			if(delay){
+				if(mDelayMessages == null){
+					mDelayMessages = new ArrayList<>(8);
+				}
+				mDelayMessages.add(info);
+			}else{
+				mReadyMessages.offer(info);
+			}
+		}
+	}
+
+	/** dispatch the pending messages by priority and budget. */
+	private void dispatchPendingMessages(){
+		if(mTempInfos == null){
+			mTempInfos = new ArrayList<>(8);
+		}
+		final List<TeamMessageInfo> infos = this.mTempInfos;
+		final long now = System.currentTimeMillis();
+		synchronized (this) {
+			if(mDelayMessages != null){
+				final Iterator<TeamMessageInfo> it = mDelayMessages.iterator();
+				TeamMessageInfo info;
+				for (; it.hasNext();) {
+					info = it.next();
+					if(info.msg.when <= now){
+						// the timeouts of requests are not bounded by budget.
+						if(info.msg.isRequestTimeout()){
+							infos.add(info);
+						}else{
+							mReadyMessages.offer(info);
+						}
+						it.remove();
+					}
+				}
+			}
+			mReadyMessages.drain(infos);
+		}
+		TeamMessageInfo info;
+		for(int i = 0, size = infos.size() ; i < size ; i++){
+			info = infos.get(i);
+			if(info.msg.isRequestTimeout()){
+				mRequests.onTimeout(info.msg);
+				continue;
+			}
+			// members will mark it in use.
+			info.msg.markInUse(false);
+			dispatchMessage0(info.teamId, info.msg, info.policy, info.memberFlags);
+			info.msg.recycleUnchecked();
+		}
+		infos.clear();
+	}
+	
+	/**
+	 * delete the member states which is indicated by target controller and
+	 * states.
+	 * 
+	 * @param teamId
+	 *            the team id.
+	 * @param controller
+	 *            the controller
+	 * @param targetStates
+	 *            the target states to delete. must >0
+	 * @param memberFlags
+	 *            the member flags .see
+	 *            {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL} and
+	 *            {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}.
+	 * @return true of delete member state success. or false if don't have.
+	 */
+	private boolean deleteMembeStates(int teamId, IController<? extends AbstractState<P>, P> controller,
+			int targetStates, byte memberFlags) {
+		Throwables.checkNull(controller);
+		if (targetStates <= 0) {
+			throw new IllegalArgumentException("targetStates must be positive.");
+		}
+		Team<P> team = mMap.get(teamId);
+		if (team == null) {
+			return false;
+		}
+		final boolean result = team.deleteMember(controller, targetStates, memberFlags);
+		onMembershipChanged(result);
+		return result;
+	}
+	
+	/**
+	 * delete the member which is indicated by target controller.
+	 * 
+	 * @param teamId
+	 *            the team id.
+	 * @param controller
+	 *            the controller
 	 * @param memberFlags
 	 *            the member flags .see
 	 *            {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL} and
 	 *            {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}.
 	 * @return true of delete member success. or false if don't have.
 	 */
-	private boolean deleteMember(int teamId, IController<? extends AbstractState<P>, P> controller, byte memberFlags) {
-		Throwables.checkNull(controller);
-		Team<P> team = mMap.get(teamId);
-		if (team == null) {
-			return false;
+	private boolean deleteMember(int teamId, IController<? extends AbstractState<P>, P> controller, byte memberFlags) {
+		Throwables.checkNull(controller);
+		Team<P> team = mMap.get(teamId);
+		if (team == null) {
+			return false;
+		}
+		final boolean result = team.deleteMember(controller, -1, memberFlags);
+		onMembershipChanged(result);
+		return result;
+	}
+
+	private List<Team<P>> getTeams(Member<P> member, int memberFlags, @Nullable List<Team<P>> outList) {
+		Throwables.checkNull(member);
+
+		final boolean hasFormal = (memberFlags & FLAG_MEMBER_FORMAL) == FLAG_MEMBER_FORMAL;
+		final boolean hasOuter = (memberFlags & FLAG_MEMBER_OUTER) == FLAG_MEMBER_OUTER;
+		// no formal and no outer.
+		if (!hasFormal && !hasOuter) {
+			return null;
+		}
+		if (outList == null) {
+			outList = new ArrayList<>(5);
+		}
+		final int size = mMap.size();
+		Team<P> team;
+		for (int i = size - 1; i >= 0; i--) {
+			team = mMap.valueAt(i);
+			if (hasFormal && team.isFormalMember(member)) {
+				outList.add(team);
+			} else {
+				if (hasOuter && team.isOuterMember(member)) {
+					outList.add(team);
+				}
+			}
+		}
+		return outList;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <P> TeamMediator<P> cast(TeamMediator<?> mediator) {
+		return (TeamMediator<P>) mediator;
+	}
+
+	private int[][] getShards() {
+		if (mShards == null) {
+			mShards = computeShards();
+		}
+		return mShards;
+	}
+
+	/**
+	 * compute the shards by union-find. the teams which share a controller are united.
+	 * @return the shards. the team indexes of shard are in descending order.
+	 */
+	private int[][] computeShards() {
+		final int size = mMap.size();
+		final int[] parent = new int[size];
+		for (int i = 0; i < size; i++) {
+			parent[i] = i;
+		}
+		// the first team of controller.
+		final IdentityHashMap<Object, Integer> owners = new IdentityHashMap<>();
+		Team<P> team;
+		for (int i = 0; i < size; i++) {
+			team = mMap.valueAt(i);
+			unionMembers(team.formal.snapshot().members, i, owners, parent);
+			unionMembers(team.outer.snapshot().members, i, owners, parent);
+		}
+		// group by root. the shard is ordered by its last team.
+		final int[] counts = new int[size];
+		for (int i = 0; i < size; i++) {
+			if (mMap.valueAt(i).updatePeriod == 0) {
+				counts[find(parent, i)]++;
+			}
+		}
+		final int[][] shards = new int[size][];
+		final int[] fills = new int[size];
+		final List<int[]> result = new ArrayList<>();
+		int root;
+		for (int i = size - 1; i >= 0; i--) {
+			// the team which has update period is updated by schedule.
+			if (mMap.valueAt(i).updatePeriod != 0) {
+				continue;
+			}
+			root = find(parent, i);
+			if (shards[root] == null) {
+				shards[root] = new int[counts[root]];
+				result.add(shards[root]);
+			}
+			shards[root][fills[root]++] = i;
+		}
+		return result.toArray(new int[result.size()][]);
+	}
+
+	private static <P> void unionMembers(Member<P>[] members, int teamIndex, IdentityHashMap<Object, Integer> owners,
+			int[] parent) {
+		Object controller;
+		Integer owner;
+		for (int i = 0; i < members.length; i++) {
+			controller = members[i].getController();
+			if (controller == null) {
+				continue;
+			}
+			owner = owners.get(controller);
+			if (owner == null) {
+				owners.put(controller, teamIndex);
+			} else {
+				final int a = find(parent, owner);
+				final int b = find(parent, teamIndex);
+				if (a != b) {
+					parent[a] = b;
+				}
+			}
+		}
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	// ============ end private method =====================
+
+	/**
+	 * the subscription of topic.
+	 */
+	private static class Subscription<P> {
+		final Team<P> team;
+		final Member<P> member;
+		/** the member flag in team. */
+		final byte memberFlag;
+
+		Subscription(Team<P> team, Member<P> member, byte memberFlag) {
+			this.team = team;
+			this.member = member;
+			this.memberFlag = memberFlag;
 		}
-		return team.deleteMember(controller, -1, memberFlags);
 	}
 
-	private List<Team<P>> getTeams(Member<P> member, int memberFlags, @Nullable List<Team<P>> outList) {
-		Throwables.checkNull(member);
+	/**
+	 * a team which is notified by the propagation of cascade. ordered by the topological rank.
+	 */
+	/*public*/ static final class CascadeStep<P> implements Comparable<CascadeStep<P>> {
+		final Team<P> team;
+		final byte action;
+		final AbstractState<P> trigger;
+		final int rank;
+
+		CascadeStep(Team<P> team, byte action, AbstractState<P> trigger, int rank) {
+			this.team = team;
+			this.action = action;
+			this.trigger = trigger;
+			this.rank = rank;
+		}
 
-		final boolean hasFormal = (memberFlags & FLAG_MEMBER_FORMAL) == FLAG_MEMBER_FORMAL;
-		final boolean hasOuter = (memberFlags & FLAG_MEMBER_OUTER) == FLAG_MEMBER_OUTER;
-		// no formal and no outer.
-		if (!hasFormal && !hasOuter) {
-			return null;
+		@Override
+		public int compareTo(CascadeStep<P> o) {
+			return rank < o.rank ? -1 : (rank == o.rank ? 0 : 1);
 		}
-		if (outList == null) {
-			outList = new ArrayList<>(5);
+	}
+
+	/**
+	 * the pending transition of team which is coalesced. the triggers are snapshots of the real states. because
+	 * the exited state is detached (and may be reused by the cache) before the transitions are delivered.
+	 */
+	/*public*/ static final class PendingTransition<P> {
+		final Team<P> team;
+		int enterStates;
+		int exitStates;
+		int reenterStates;
+		AbstractState<P> enterTrigger;
+		AbstractState<P> exitTrigger;
+		AbstractState<P> reenterTrigger;
+		/** the count of recorded transitions. */
+		int count;
+
+		PendingTransition(Team<P> team) {
+			this.team = team;
 		}
-		final int size = mMap.size();
-		Team<P> team;
-		for (int i = size - 1; i >= 0; i--) {
-			team = mMap.get(i);
-			if (hasFormal && team.isFormalMember(member)) {
-				outList.add(team);
-			} else {
-				if (hasOuter && team.isOuterMember(member)) {
-					outList.add(team);
+
+		void record(byte action, int stateFlag, AbstractState<P> trigger) {
+			count++;
+			switch (action) {
+			case TRANSITION_ENTER:
+				if ((exitStates & stateFlag) != 0) {
+					// exit then enter: reenter.
+					exitStates &= ~stateFlag;
+					reenterStates |= stateFlag;
+					reenterTrigger = prefer(reenterTrigger, trigger);
+				} else {
+					enterStates |= stateFlag;
+					enterTrigger = prefer(enterTrigger, trigger);
+				}
+				break;
+
+			case TRANSITION_EXIT:
+				if ((enterStates & stateFlag) != 0) {
+					// enter then exit: nothing.
+					enterStates &= ~stateFlag;
+				} else {
+					reenterStates &= ~stateFlag;
+					exitStates |= stateFlag;
+					exitTrigger = prefer(exitTrigger, trigger);
+				}
+				break;
+
+			default:
+				if ((enterStates & stateFlag) == 0) {
+					reenterStates |= stateFlag;
+					reenterTrigger = prefer(reenterTrigger, trigger);
 				}
+				break;
 			}
 		}
-		return outList;
+
+		/** the non-mutex trigger is preferred. because the mutex trigger is ignored by base member. */
+		private static <P> AbstractState<P> prefer(AbstractState<P> old, AbstractState<P> trigger) {
+			if (old == null || old.hasFlags(AbstractState.FLAG_MUTEX) || !trigger.hasFlags(AbstractState.FLAG_MUTEX)) {
+				return new TriggerSnapshot<P>(trigger);
+			}
+			return old;
+		}
 	}
 
-	// ============ end private method =====================
+	/**
+	 * the snapshot of trigger state. which keeps the controller, id, mutex flag and parameter of the state
+	 * when the transition is recorded.
+	 */
+	/*public*/ static final class TriggerSnapshot<P> extends AbstractState<P> {
+
+		TriggerSnapshot(AbstractState<P> state) {
+			setId(state.getId());
+			onAttach(state.getController());
+			if (state.hasFlags(FLAG_MUTEX)) {
+				addFlags(FLAG_MUTEX);
+			}
+			setStateParameter(state.getStateParameter());
+			setTeamParameter(state.getTeamParameter());
+		}
+
+		@Override
+		protected void onEnter() {
+		}
+
+		@Override
+		protected void onReenter() {
+		}
+
+		@Override
+		protected void onExit() {
+		}
+	}
+
+	/**
+	 * the task to update the shards of teams. which is split until one shard per task, and joined in order.
+	 */
+	private static class ShardUpdateTask<P> extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final StateTeamManager<P> stm;
+		private final int[][] shards;
+		private final int start;
+		private final int end;
+		private final long deltaTime;
+		private final P param;
+
+		ShardUpdateTask(StateTeamManager<P> stm, int[][] shards, int start, int end, long deltaTime, P param) {
+			this.stm = stm;
+			this.shards = shards;
+			this.start = start;
+			this.end = end;
+			this.deltaTime = deltaTime;
+			this.param = param;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start == 1) {
+				final SparseArray<Team<P>> map = stm.mMap;
+				for (int index : shards[start]) {
+					map.valueAt(index).update(deltaTime, param);
+				}
+				return;
+			}
+			final int mid = (start + end) >>> 1;
+			invokeAll(new ShardUpdateTask<P>(stm, shards, start, mid, deltaTime, param),
+					new ShardUpdateTask<P>(stm, shards, mid, end, deltaTime, param));
+		}
+	}
+
+	private static class TeamMessageInfo extends MessageLanes.Entry {
+		final int teamId;
+		final byte policy;
+		final int memberFlags;
+
+		TeamMessageInfo(Message msg, int teamId, byte policy, int memberFlags) {
+			super(msg);
+			this.teamId = teamId;
+			this.policy = policy;
+			this.memberFlags = memberFlags;
+		}
+	}
+
+	/**
+	 * the weak reference of member controller. which is enqueued when the controller is collected. the teams which
+	 * own the member are recorded, so that only them are purged.
+	 */
+	private static class MemberReference<P> extends WeakReference<IController<? extends AbstractState<P>, P>> {
+		private static final Team<?>[] sEMPTY_TEAMS = new Team<?>[0];
+
+		final Member<P> member;
+		/** the owner teams. which is copied on write. */
+		private volatile Team<?>[] mTeams = sEMPTY_TEAMS;
+
+		MemberReference(IController<? extends AbstractState<P>, P> controller, ReferenceQueue<Object> queue,
+				Member<P> member) {
+			super(controller, queue);
+			this.member = member;
+		}
+
+		synchronized void addTeam(Team<?> team) {
+			final Team<?>[] teams = mTeams;
+			for (int i = 0; i < teams.length; i++) {
+				if (teams[i] == team) {
+					return;
+				}
+			}
+			final Team<?>[] newTeams = Arrays.copyOf(teams, teams.length + 1);
+			newTeams[teams.length] = team;
+			mTeams = newTeams;
+		}
+
+		Team<?>[] getTeams() {
+			return mTeams;
+		}
+	}
 
 	/**
 	 * one controller corresponding one member. But can have multi states.
@@ -781,6 +2448,16 @@ public class StateTeamManager<P>{
 			return weakController.get();
 		}
 
+		/**
+		 * get the weak reference of controller. which is enqueued to the team manager when the controller is
+		 * collected.
+		 * @return the reference of controller.
+		 * @since 1.2.1
+		 */
+		public Reference<IController<? extends AbstractState<P>, P>> getControllerReference() {
+			return weakController;
+		}
+
 		/**
 		 * get the states
 		 * 
@@ -811,11 +2488,32 @@ public class StateTeamManager<P>{
 			IController<? extends AbstractState<P>, P> controller = getController();
 			if(controller != null){
 				msg.markFromTeam();
-				return controller.dispatchMessage(states, msg, policy);
+				if(msg.getTraceId() == 0){
+					return controller.dispatchMessage(states, msg, policy);
+				}
+				final long start = System.nanoTime();
+				final boolean handled = controller.dispatchMessage(states, msg, policy);
+				MessageTracer.record(msg, MessageTracer.HOP_MEMBER, this, states, start, handled, policy);
+				return handled;
 			}
 			return false;
 		}
 
+		/**
+		 * dispatch the messages of batch to this member in one pass.
+		 * @param batch the message batch which is began by team.
+		 * @param policy the policy . see {@linkplain IController#POLICY_BROADCAST} or {@linkplain IController#POLICY_CONSUME}.
+		 * @return the count of handled messages of the batch.
+		 * @since 1.2.1
+		 */
+		public int dispatchMessages(MessageBatch batch, @PolicyType byte policy) {
+			IController<? extends AbstractState<P>, P> controller = getController();
+			if(controller != null){
+				return controller.dispatchMessages(states, batch, policy);
+			}
+			return batch.getHandledCount();
+		}
+
 		void update(long deltaTime, P param) {
 			IController<? extends AbstractState<P>, P> controller = getController();
 			if (controller != null) {
@@ -823,6 +2521,21 @@ public class StateTeamManager<P>{
 			}
 		}
 
+		/**
+		 * track the controller by the queue of team manager, and record the owner team. the member which is
+		 * tracked by other manager is not tracked again.
+		 */
+		void track(ReferenceQueue<Object> queue, Team<P> team) {
+			if (!(weakController instanceof MemberReference)) {
+				final IController<? extends AbstractState<P>, P> controller = weakController.get();
+				if (controller == null) {
+					return;
+				}
+				weakController = new MemberReference<P>(controller, queue, this);
+			}
+			((MemberReference<P>) weakController).addTeam(team);
+		}
+
 		@SuppressWarnings("unchecked")
 		@Override
 		public boolean equals(Object obj) {
@@ -873,16 +2586,101 @@ public class StateTeamManager<P>{
 	 * @see {@linkplain Member}
 	 */
 	public static class Team<P> {
-		/** the formal members */
-		List<Member<P>> formal;
-		/** the outer members */
-		List<Member<P>> outer;
+		/** the formal members. copy-on-write. */
+		MemberArray<P> formal;
+		/** the outer members. copy-on-write. */
+		MemberArray<P> outer;
 		/** the callback of team*/
 		TeamCallback<P> callback;
+		/** the manager which registered this team. */
+		StateTeamManager<P> manager;
+		/** the parent team. which is changed with the lock of this team and the states lock of manager. */
+		volatile Team<P> parent;
+		/** the sub teams. guarded by the states lock of manager. lazy load. */
+		List<Team<P>> children;
+		/** the member count of every state bit. only the formal members of this team. guarded by this team. */
+		final int[] ownCounts = new int[Integer.SIZE];
+		int ownMemberCount;
+		/** the counted states of the formal members at the index of counted snapshot. guarded by this team. */
+		private int[] countedStates = new int[0];
+		private MemberArray.Snapshot<P> countedSnapshot;
+		/** the member count of every state bit. include the sub teams. guarded by the counts lock. */
+		final int[] counts = new int[Integer.SIZE];
+		int memberCount;
+		/** the lock of counts and the aggregated states. which never holds another lock. */
+		private final Object mCountsLock = new Object();
+		private volatile int unionStates;
+		private volatile int intersectionStates;
+		/** the update period. 0 means update on every update of manager. */
+		long updatePeriod;
+		/** the clock of manager when last updated. */
+		long lastUpdateTime;
+		/** the clock of manager when next update. */
+		long nextUpdateTime;
 
 		Team() {
 		}
 
+		/**
+		 * get the update period of team.
+		 * @return the update period. 0 means update on every update of manager.
+		 * @since 1.2.1
+		 * @see StateTeamManager#setUpdatePeriod(int, long)
+		 */
+		public long getUpdatePeriod() {
+			return updatePeriod;
+		}
+
+		/**
+		 * get the union states of the formal members, include the sub teams. that is the states which any member is in.
+		 * the states are aggregated incrementally when the states of members changed. so this is O(1).
+		 * @return the union states.
+		 * @since 1.2.1
+		 */
+		public int getUnionStates() {
+			return unionStates;
+		}
+
+		/**
+		 * get the intersection states of the formal members, include the sub teams. that is the states which all
+		 * members are in. a member only counts the states which it is a member of.
+		 * @return the intersection states. 0 if no member.
+		 * @since 1.2.1
+		 */
+		public int getIntersectionStates() {
+			return intersectionStates;
+		}
+
+		/**
+		 * indicate any formal member (include the sub teams) is in the target states or not.
+		 * @param states the states
+		 * @return true if any member has any of the states.
+		 * @since 1.2.1
+		 */
+		public boolean isAnyMemberIn(int states) {
+			return (unionStates & states) != 0;
+		}
+
+		/**
+		 * indicate the all formal members (include the sub teams) are in the target states or not.
+		 * @param states the states
+		 * @return true if all members have all the states.
+		 * @since 1.2.1
+		 */
+		public boolean isAllMembersIn(int states) {
+			return states != 0 && (intersectionStates & states) == states;
+		}
+
+		/**
+		 * get the parent team.
+		 * @return the parent team. or null if this is a top team.
+		 * @since 1.2.1
+		 * @see StateTeamManager#addSubTeam(int, int)
+		 */
+		public Team<P> getParent() {
+			return parent;
+		}
+
 		/**
 		 * indicate the target member is a formal member or not.
 		 * 
@@ -902,11 +2700,13 @@ public class StateTeamManager<P>{
 		 * @return true if is outer member.
 		 */
 		public boolean isOuterMember(Member<P> member) {
-			return outer != null && outer.contains(member);
+			return outer.contains(member);
 		}
 
 		/**
-		 * get the formal members
+		 * get the formal members. the formal members should be added by
+		 * {@linkplain StateTeamManager#addFormalMember(int, Member)}, so that the reverse index of controller is updated.
+		 * the list is copy-on-write. its iterator reads a stable snapshot and doesn't support remove.
 		 * 
 		 * @return the formal members
 		 */
@@ -915,9 +2715,9 @@ public class StateTeamManager<P>{
 		}
 
 		/**
-		 * get the outer members
+		 * get the outer members. the list is copy-on-write, like {@linkplain #getFormalMembers()}.
 		 * 
-		 * @return the outer members
+		 * @return the outer members. never null since 1.2.1.
 		 */
 		public List<Member<P>> getOuterMembers() {
 			return outer;
@@ -933,6 +2733,22 @@ public class StateTeamManager<P>{
 		}
 
 		public boolean dispatchMessage(Message msg, @PolicyType byte policy, int memberFlags) {
+			final boolean handled;
+			if(msg.getTraceId() == 0){
+				handled = dispatchMessage0(msg, policy, memberFlags);
+			}else{
+				final long start = System.nanoTime();
+				handled = dispatchMessage0(msg, policy, memberFlags);
+				MessageTracer.record(msg, MessageTracer.HOP_TEAM, this, -1, start, handled, policy);
+			}
+			final TeamMetrics<P> metrics = manager != null ? manager.mMetrics : null;
+			if(metrics != null){
+				metrics.onTeamMessages(this, 1, handled ? 1 : 0, handled && policy == IController.POLICY_CONSUME);
+			}
+			return handled;
+		}
+
+		private boolean dispatchMessage0(Message msg, @PolicyType byte policy, int memberFlags) {
 			boolean handled = false;
 			if((memberFlags & FLAG_MEMBER_FORMAL) != 0){
 				handled |= dispatchMessage(msg, policy, formal);
@@ -941,27 +2757,61 @@ public class StateTeamManager<P>{
 				return true;
 			}
 			if((memberFlags & FLAG_MEMBER_OUTER) != 0){
-				if(outer != null && !outer.isEmpty()){
-				   handled |= dispatchMessage(msg, policy, outer);
-				}
+				handled |= dispatchMessage(msg, policy, outer);
 			}
 			return handled;
 		}
+		/**
+		 * dispatch the messages of batch to the members of this team in one pass.
+		 * @param batch the message batch
+		 * @param policy the policy
+		 * @param memberFlags the member flags
+		 * @return the count of handled messages of the batch.
+		 * @since 1.2.1
+		 */
+		public int dispatchMessages(MessageBatch batch, @PolicyType byte policy, int memberFlags) {
+			final TeamMetrics<P> metrics = manager != null ? manager.mMetrics : null;
+			final int dispatched = metrics != null ? batch.getDeliverableCount() : 0;
+			final int handled = metrics != null ? batch.getHandledCount() : 0;
+			if((memberFlags & FLAG_MEMBER_FORMAL) != 0){
+				dispatchMessages(batch, policy, formal);
+			}
+			if((memberFlags & FLAG_MEMBER_OUTER) != 0){
+				dispatchMessages(batch, policy, outer);
+			}
+			if(metrics != null){
+				final int count = batch.getHandledCount() - handled;
+				metrics.onTeamMessages(this, dispatched, count, count > 0 && policy == IController.POLICY_CONSUME);
+			}
+			return batch.getHandledCount();
+		}
+
+		private static <P> void dispatchMessages(MessageBatch batch, @PolicyType byte policy, 
+				MemberArray<P> array){
+			final Member<P>[] members = array.snapshot().members;
+			for(int i = 0 ; i < members.length ; i++){
+				if(!batch.hasDeliverable()){
+					break;
+				}
+				members[i].dispatchMessages(batch, policy);
+			}
+		}
+
 		private static <P> boolean dispatchMessage(Message msg, @PolicyType byte policy, 
-				List<Member<P>> members){
-			
+				MemberArray<P> array){
+			final Member<P>[] members = array.snapshot().members;
 			boolean handled = false;
 			switch (policy) {
 			case IController.POLICY_BROADCAST:
-				for(Member<P> m : members){
-					handled |= m.dispatchMessage(msg,  policy);
+				for(int i = 0 ; i < members.length ; i++){
+					handled |= members[i].dispatchMessage(msg,  policy);
 					msg.markInUse(false);
 				}
 				break;
 				
 			case IController.POLICY_CONSUME:
-				for(Member<P> m : members){
-					if(m.dispatchMessage(msg,  policy)){
+				for(int i = 0 ; i < members.length ; i++){
+					if(members[i].dispatchMessage(msg,  policy)){
 						return true;
 					}
 					msg.markInUse(false);
@@ -990,37 +2840,26 @@ public class StateTeamManager<P>{
 			boolean success = false;
 			if ((memberFlags & FLAG_MEMBER_FORMAL) == FLAG_MEMBER_FORMAL) {
 				success |= addMemberStates0(controller, states, formal);
+				refreshStates();
 			}
 			/**
 			 * formal and outer member may use same controller.
 			 */
 			if ((memberFlags & FLAG_MEMBER_OUTER) == FLAG_MEMBER_OUTER) {
-				if (outer != null && !outer.isEmpty()) {
-					success |= addMemberStates0(controller, states, outer);
-				}
+				success |= addMemberStates0(controller, states, outer);
 			}
 			return success;
 		}
 
-		private boolean addMemberStates0(IController<? extends AbstractState<P>, P> controller, int states,
-				List<Member<P>> members) {
-			IController<? extends AbstractState<P>, P> temp;
-			Member<P> member;
-
-			Iterator<Member<P>> it = members.iterator();
-			for (; it.hasNext();) {
-				member = it.next();
-				temp = member.getController();
-				// if controller is empty or controller is the target want to
-				// delete.
-				if (temp == null) {
-					it.remove();
-					continue;
-				}
-				if (temp == controller) {
+		private static <P> boolean addMemberStates0(IController<? extends AbstractState<P>, P> controller, int states,
+				MemberArray<P> array) {
+			// the collected member is purged by team manager.
+			final MemberArray.Snapshot<P> snapshot = array.snapshot();
+			for (int i = 0; i < snapshot.members.length; i++) {
+				if (snapshot.members[i].getController() == controller) {
 					//share ==0 means all states add success.
-					final int share = member.states & states;
-					member.states |= states;
+					final int share = snapshot.masks[i] & states;
+					array.setStates(snapshot.members[i], snapshot.masks[i] | states);
 					return share == 0;
 				}
 			}
@@ -1046,44 +2885,38 @@ public class StateTeamManager<P>{
 
 			boolean success = false;
 			if ((memberFlags & FLAG_MEMBER_FORMAL) == FLAG_MEMBER_FORMAL) {
-				success |= deleteMember0(controller, states, formal);
+				if (deleteMember0(controller, states, formal)) {
+					success = true;
+					refreshStates();
+					if (manager != null && !hasFormalController(controller)) {
+						unindexFormalController(controller.getTeamMediator(), manager);
+					}
+				}
 			}
 
 			/**
 			 * formal and outer member may use same controller.
 			 */
 			if ((memberFlags & FLAG_MEMBER_OUTER) == FLAG_MEMBER_OUTER) {
-				if (outer != null && !outer.isEmpty()) {
-					success |= deleteMember0(controller, states, outer);
-				}
+				success |= deleteMember0(controller, states, outer);
 			}
 			return success;
 		}
 
 		private static <P> boolean deleteMember0(IController<? extends AbstractState<P>, P> controller, int states,
-				List<Member<P>> members) {
-			IController<? extends AbstractState<P>, P> temp;
+				MemberArray<P> array) {
+			// the collected member is purged by team manager.
+			final MemberArray.Snapshot<P> snapshot = array.snapshot();
 			Member<P> member;
-
-			Iterator<Member<P>> it = members.iterator();
-			for (; it.hasNext();) {
-				member = it.next();
-				temp = member.getController();
-				// if controller is empty or controller is the target want to
-				// delete.
-				if (temp == null) {
-					it.remove();
-					continue;
-				}
-				if (temp == controller) {
+			for (int i = 0; i < snapshot.members.length; i++) {
+				member = snapshot.members[i];
+				if (member.getController() == controller) {
 					//-1. remove all
-					if (states == -1) {
-						it.remove();
+					final int left = states == -1 ? 0 : snapshot.masks[i] & ~states;
+					if (left <= 0) {
+						array.removeIdentity(member);
 					} else {
-						member.states &= ~states;
-						if (member.states <= 0) {
-							it.remove();
-						}
+						array.setStates(member, left);
 					}
 					return true;
 				}
@@ -1092,52 +2925,273 @@ public class StateTeamManager<P>{
 		}
 
 		public void update(long deltaTime, P param) {
-			for (Member<P> member : formal) {
-				member.update(deltaTime, param);
+			Member<P>[] members = formal.snapshot().members;
+			for (int i = 0; i < members.length; i++) {
+				members[i].update(deltaTime, param);
+			}
+			members = outer.snapshot().members;
+			for (int i = 0; i < members.length; i++) {
+				members[i].update(deltaTime, param);
+			}
+		}
+
+		/**
+		 * get the member flags of the target member. the member is compared by identity.
+		 * @return the member flags. 0 if not in this team.
+		 */
+		byte getMemberFlags(Member<P> member) {
+			byte flags = 0;
+			if (formal.indexOfIdentity(member) >= 0) {
+				flags |= FLAG_MEMBER_FORMAL;
+			}
+			if (outer.indexOfIdentity(member) >= 0) {
+				flags |= FLAG_MEMBER_OUTER;
+			}
+			return flags;
+		}
+
+		private boolean hasFormalController(IController<?, P> target) {
+			final Member<P>[] members = formal.snapshot().members;
+			for (int i = 0; i < members.length; i++) {
+				if (members[i].getController() == target) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean hasMember(IController<?, P> target, int state) {
+			final MemberArray.Snapshot<P> snapshot = formal.snapshot();
+			for (int i = 0; i < snapshot.members.length; i++) {
+				if (snapshot.members[i].getController() == target) {
+					return (snapshot.masks[i] & state) != 0;
+				}
+			}
+			return false;
+		}
+		void setTeamManager(StateTeamManager<P> stm) {
+			final Member<P>[] members = formal.snapshot().members;
+			if (stm != null) {
+				for (int i = 0; i < members.length; i++) {
+					checkOwner(members[i], stm);
+				}
 			}
-			if (outer != null) {
-				for (Member<P> member : outer) {
-					member.update(deltaTime, param);
+			final StateTeamManager<P> old = this.manager;
+			this.manager = stm;
+			for(int i = 0 ; i < members.length ; i++){
+				IController<? extends AbstractState<P>, P> controller = members[i].getController();
+				if(controller == null){
+					continue;
+				}
+				final TeamMediator<P> mediator = controller.getTeamMediator();
+				if(stm != null){
+					mediator.setStateTeamManager(stm);
+					mediator.addFormalTeam(this);
+				}else{
+					unindexFormalController(mediator, old);
 				}
 			}
 		}
 
-		void onEnter(int state, AbstractState<P> trigger) {
-			if (hasMember(trigger.getController(), state)) {
-				callback.onTeamEnter(this, trigger);
+		/** track the all members by the queue of team manager. */
+		void trackMembers(ReferenceQueue<Object> queue) {
+			Member<P>[] members = formal.snapshot().members;
+			for (int i = 0; i < members.length; i++) {
+				members[i].track(queue, this);
+			}
+			members = outer.snapshot().members;
+			for (int i = 0; i < members.length; i++) {
+				members[i].track(queue, this);
 			}
 		}
 
-		void onExit(int state, AbstractState<P> trigger) {
-			if (hasMember(trigger.getController(), state)) {
-				callback.onTeamExit(this, trigger);
+		/**
+		 * purge the dead members.
+		 * @return the count of purged members.
+		 */
+		int purgeMembers(Set<Member<?>> dead) {
+			final int count = formal.purge(dead);
+			if (count > 0) {
+				refreshStates();
 			}
+			return count + outer.purge(dead);
 		}
 
-		void onReenter(int state, AbstractState<P> trigger) {
-			if (hasMember(trigger.getController(), state)) {
-				callback.onTeamReenter(this, trigger);
+		/**
+		 * recount the states of the formal members. the delta is applied to this team and the ancestors.
+		 * called when the formal members changed.
+		 */
+		void refreshStates() {
+			final StateTeamManager<P> stm = manager;
+			if (stm == null) {
+				return;
+			}
+			synchronized (this) {
+				final int[] delta = new int[Integer.SIZE];
+				int count = 0;
+				final MemberArray.Snapshot<P> snapshot = formal.snapshot();
+				final int[] counted = new int[snapshot.members.length];
+				IController<? extends AbstractState<P>, P> controller;
+				for (int i = 0; i < snapshot.members.length; i++) {
+					controller = snapshot.members[i].getController();
+					if (controller == null) {
+						continue;
+					}
+					count++;
+					counted[i] = controller.getTeamMediator().mStateFlags & snapshot.masks[i];
+					for (int bits = counted[i]; bits != 0; bits &= bits - 1) {
+						delta[Integer.numberOfTrailingZeros(bits)]++;
+					}
+				}
+				// the later changes are counted against the states which are read here.
+				countedSnapshot = snapshot;
+				countedStates = counted;
+				for (int b = 0; b < Integer.SIZE; b++) {
+					delta[b] -= ownCounts[b];
+					ownCounts[b] += delta[b];
+				}
+				final int memberDelta = count - ownMemberCount;
+				ownMemberCount = count;
+				synchronized (stm.mStatesLock) {
+					addCounts(delta, memberDelta, 1);
+				}
 			}
 		}
 
-		private boolean hasMember(IController<?, P> target, int state) {
-			for (Member<P> member : formal) {
-				if (member.getController() == target) {
-					if ((member.states & state) != 0) {
-						return true;
+		/**
+		 * called when the states of a formal controller changed. the counts of this team are updated with the lock
+		 * of this team, the ancestors are updated with the states lock of manager.
+		 */
+		void onMemberStatesChanged(StateTeamManager<P> stm, IController<?, P> controller, int newFlags) {
+			synchronized (this) {
+				final MemberArray.Snapshot<P> snapshot = countedSnapshot;
+				if (snapshot == null) {
+					return;
+				}
+				for (int i = 0; i < snapshot.members.length; i++) {
+					if (snapshot.members[i].getController() != controller) {
+						continue;
+					}
+					final int oldStates = countedStates[i];
+					final int newStates = newFlags & snapshot.masks[i];
+					if (oldStates == newStates) {
+						continue;
+					}
+					countedStates[i] = newStates;
+					addBits(ownCounts, newStates & ~oldStates, oldStates & ~newStates);
+					// the parent is only attached with the lock of this team. so a top team needs no more lock.
+					if (parent == null) {
+						addBits(newStates & ~oldStates, oldStates & ~newStates);
+						continue;
+					}
+					synchronized (stm.mStatesLock) {
+						for (Team<P> t = this; t != null; t = t.parent) {
+							t.addBits(newStates & ~oldStates, oldStates & ~newStates);
+						}
 					}
-					break;
 				}
 			}
-			return false;
 		}
-		void setTeamManager(StateTeamManager<P> stm) {
-			for(Member<P> member : formal){
-				IController<? extends AbstractState<P>, P> controller = member.getController();
-				if(controller != null){
-					controller.getTeamMediator().setStateTeamManager(stm);
+
+		/**
+		 * add the counts to this team and the ancestors. called with the states lock.
+		 * @param sign 1 to add, -1 to subtract.
+		 */
+		void addCounts(int[] delta, int memberDelta, int sign) {
+			for (Team<P> t = this; t != null; t = t.parent) {
+				synchronized (t.mCountsLock) {
+					for (int b = 0; b < Integer.SIZE; b++) {
+						t.counts[b] += sign * delta[b];
+					}
+					t.memberCount += sign * memberDelta;
+					t.updateStates();
+				}
+			}
+		}
+
+		/** clear the all counts. called with the lock of this team and the states lock. */
+		void clearCounts() {
+			for (int b = 0; b < Integer.SIZE; b++) {
+				ownCounts[b] = 0;
+			}
+			ownMemberCount = 0;
+			countedSnapshot = null;
+			countedStates = new int[0];
+			synchronized (mCountsLock) {
+				for (int b = 0; b < Integer.SIZE; b++) {
+					counts[b] = 0;
+				}
+				memberCount = 0;
+				updateStates();
+			}
+		}
+
+		/** add the state bits to the counts of this team. */
+		private void addBits(int added, int removed) {
+			synchronized (mCountsLock) {
+				addBits(counts, added, removed);
+				updateStates();
+			}
+		}
+
+		private static void addBits(int[] counts, int added, int removed) {
+			for (int bits = added; bits != 0; bits &= bits - 1) {
+				counts[Integer.numberOfTrailingZeros(bits)]++;
+			}
+			for (int bits = removed; bits != 0; bits &= bits - 1) {
+				counts[Integer.numberOfTrailingZeros(bits)]--;
+			}
+		}
+
+		/** called with the counts lock. */
+		private void updateStates() {
+			int union = 0;
+			int intersection = 0;
+			for (int b = 0; b < Integer.SIZE; b++) {
+				if (counts[b] > 0) {
+					union |= 1 << b;
+					if (counts[b] == memberCount) {
+						intersection |= 1 << b;
+					}
 				}
 			}
+			this.unionStates = union;
+			this.intersectionStates = intersection;
+		}
+
+		/** remove this team from the index of controller. the controller is released if no formal team. */
+		private void unindexFormalController(TeamMediator<P> mediator, StateTeamManager<P> stm) {
+			mediator.removeFormalTeam(this);
+			// the controller may be in the other teams of the manager.
+			if (mediator.getFormalTeamCount() == 0 && mediator.getStateTeamManager() == stm) {
+				mediator.setStateTeamManager(null);
+			}
+		}
+
+		/**
+		 * check the controller of formal member is not owned by another manager.
+		 * @throws IllegalStateException if owned by another manager.
+		 */
+		void checkOwner(Member<P> member, StateTeamManager<P> stm) {
+			final IController<? extends AbstractState<P>, P> controller = member.getController();
+			if (controller == null) {
+				return;
+			}
+			final StateTeamManager<P> owner = controller.getTeamMediator().getStateTeamManager();
+			if (owner != null && owner != stm) {
+				throw new IllegalStateException("the controller is owned by another team manager. shardIndex = "
+						+ owner.getShardIndex());
+			}
+		}
+
+		/** index the new formal member. */
+		void indexFormalMember(Member<P> member) {
+			final IController<? extends AbstractState<P>, P> controller = member.getController();
+			if(manager != null && controller != null){
+				final TeamMediator<P> mediator = controller.getTeamMediator();
+				mediator.setStateTeamManager(manager);
+				mediator.addFormalTeam(this);
+			}
 		}
 	}
 
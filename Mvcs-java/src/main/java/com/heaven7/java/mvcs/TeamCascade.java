@@ -0,0 +1,187 @@
+package com.heaven7.java.mvcs;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import com.heaven7.java.base.util.Objects;
+
+/**
+ * the propagation context of a team cascade. a cascade begins when a state of controller enter/exit/reenter and
+ * the teams are notified, and ends when the all notifications are done. the context is bound to current thread, and
+ * records the notified states of every controller. so that:
+ * <ul>
+ * <li>the notified controller can't trigger the team callback again in the same cascade. (no recursion)</li>
+ * <li>the same states of a controller are notified at most once in the same cascade. (no duplicate)</li>
+ * </ul>
+ * the shared state of controller is never changed by cascade, so the cascades on multi threads are safe.
+ * <p>the notified controllers are also recorded as the frontier of cascade. so the {@linkplain StateTeamManager} can
+ * continue the cascade breadth-first to the teams of them. see {@linkplain StateTeamManager#setMaxCascadeDepth(int)}.</p>
+ * @author heaven7
+ * @since 1.2.1
+ * @see StateTeamManager.TeamCallback
+ */
+public final class TeamCascade {
+
+	private static final ThreadLocal<TeamCascade> sCascade = new ThreadLocal<TeamCascade>() {
+		@Override
+		protected TeamCascade initialValue() {
+			return new TeamCascade();
+		}
+	};
+
+	/** the notified states of controllers. key is the controller. */
+	private final IdentityHashMap<Object, Integer> mNotified = new IdentityHashMap<>();
+	/** the notifications which are not propagated yet. */
+	private final List<Notification> mFrontier = new ArrayList<>();
+	/** the nested depth. 0 means not active. */
+	private int mDepth;
+	/** the count of notifications. */
+	private int mNotifiedCount;
+	/** the action of the team callback which is running. */
+	private byte mSourceAction;
+	/** the trigger of the team callback which is running. */
+	private AbstractState<?> mSourceTrigger;
+
+	private TeamCascade() {
+	}
+
+	/**
+	 * begin the cascade on current thread. if already active, the nested depth is increased.
+	 * every begin must be paired with {@linkplain #end()}.
+	 * @return the cascade of current thread.
+	 */
+	public static TeamCascade begin() {
+		final TeamCascade cascade = sCascade.get();
+		cascade.mDepth++;
+		return cascade;
+	}
+
+	/**
+	 * get the active cascade of current thread.
+	 * @return the cascade. or null if not active.
+	 */
+	public static TeamCascade current() {
+		final TeamCascade cascade = sCascade.get();
+		return cascade.mDepth > 0 ? cascade : null;
+	}
+
+	/**
+	 * indicate the controller is notified in the active cascade of current thread or not.
+	 * @param controller the controller
+	 * @return true if notified. that means its team callback is suppressed.
+	 */
+	public static boolean isNotified(IController<?, ?> controller) {
+		final TeamCascade cascade = sCascade.get();
+		return cascade.mDepth > 0 && cascade.mNotified.containsKey(controller);
+	}
+
+	/**
+	 * end the cascade. the notified records are cleared when the outermost cascade ends.
+	 */
+	public void end() {
+		if (mDepth <= 0) {
+			throw new IllegalStateException("the cascade is not active.");
+		}
+		if (--mDepth == 0) {
+			mNotified.clear();
+			mFrontier.clear();
+			mNotifiedCount = 0;
+			mSourceTrigger = null;
+		}
+	}
+
+	/**
+	 * mark the states of controller notified.
+	 * @param controller the controller
+	 * @param states the states to notify
+	 * @return the states which are not notified before. 0 means all are notified.
+	 */
+	public int markNotified(IController<?, ?> controller, int states) {
+		final Integer old = mNotified.get(controller);
+		final int notified = old != null ? old : 0;
+		final int result = states & ~notified;
+		if (old == null || result != 0) {
+			mNotified.put(controller, notified | states);
+		}
+		if (result != 0) {
+			mNotifiedCount++;
+		}
+		if (result != 0 && mSourceTrigger != null) {
+			mFrontier.add(new Notification(controller, result, mSourceAction, mSourceTrigger));
+		}
+		return result;
+	}
+
+	/**
+	 * get the nested depth.
+	 * @return the depth.
+	 */
+	public int getDepth() {
+		return mDepth;
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("depth", mDepth)
+				.add("notified", mNotified.size())
+				.add("frontier", mFrontier.size())
+				.toString();
+	}
+
+	// ======================== start internal method =========================
+
+	/**
+	 * set the source of the notifications which are marked after this.
+	 * @param action the transition action of team callback
+	 * @param trigger the trigger state. null means the notifications are not recorded as frontier.
+	 * @return the old trigger.
+	 */
+	AbstractState<?> setSource(byte action, AbstractState<?> trigger) {
+		final AbstractState<?> old = mSourceTrigger;
+		mSourceAction = action;
+		mSourceTrigger = trigger;
+		return old;
+	}
+
+	/** get the count of notifications in this cascade. */
+	int getNotifiedCount() {
+		return mNotifiedCount;
+	}
+
+	byte getSourceAction() {
+		return mSourceAction;
+	}
+
+	/**
+	 * move the frontier to the target list.
+	 * @param out the out list
+	 * @return true if any notification is moved.
+	 */
+	boolean drainFrontier(List<Notification> out) {
+		if (mFrontier.isEmpty()) {
+			return false;
+		}
+		out.addAll(mFrontier);
+		mFrontier.clear();
+		return true;
+	}
+
+	/**
+	 * the notification of a controller in cascade.
+	 */
+	/*public*/ static final class Notification {
+		final IController<?, ?> controller;
+		final int states;
+		final byte action;
+		final AbstractState<?> trigger;
+
+		Notification(IController<?, ?> controller, int states, byte action, AbstractState<?> trigger) {
+			this.controller = controller;
+			this.states = states;
+			this.action = action;
+			this.trigger = trigger;
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package com.heaven7.java.mvcs;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import com.heaven7.java.base.anno.CalledInternal;
 import com.heaven7.java.base.anno.Hide;
 import com.heaven7.java.mvcs.impl.DefaultStateTeamManager;
@@ -17,6 +20,17 @@ import com.heaven7.java.mvcs.impl.DefaultStateTeamManager;
 public abstract class TeamMediator<P> {
 
 	private StateTeamManager<P> mStm ;
+	/**
+	 * the teams in which the controller is a formal member. the reverse index of team manager. which is copied on
+	 * write, so the state change of controller iterates it without lock. lazy load.
+	 */
+	private List<StateTeamManager.Team<P>> mFormalTeams;
+	/** the pending transitions which are coalesced by team manager. lazy load. */
+	List<StateTeamManager.PendingTransition<P>> mPendingTransitions;
+	/** the depth of state operations. */
+	int mOperationDepth;
+	/** the last known current states of controller. which is only written by the thread of controller. */
+	volatile int mStateFlags;
 	/*
 	 * the state listener
 	 * 
@@ -46,13 +60,67 @@ public abstract class TeamMediator<P> {
 	}
 	
 	/**
-	 * get the state team manager
+	 * get the state team manager which owns the controller. the state transitions of controller are routed to it.
+	 * a controller is owned by at most one manager, until it isn't a formal member of any team of the manager.
 	 * @return the team manager.
 	 */
 	public final StateTeamManager<P> getStateTeamManager(){
 		return mStm;
 	}
 
+	/**
+	 * called when the current states of controller are changed. the aggregated states of teams are updated.
+	 * @param controller the controller
+	 * @param flags the current states
+	 */
+	final void onStateFlagsChanged(IController<?, P> controller, int flags){
+		final StateTeamManager<P> stm = this.mStm;
+		// no formal team. the flags are counted when it joins a team.
+		if(stm == null || getFormalTeamCount() == 0){
+			mStateFlags = flags;
+		}else{
+			stm.onStateFlagsChanged(this, controller, flags);
+		}
+	}
+
+	/**
+	 * get the count of teams in which the controller is a formal member.
+	 * @return the count of teams.
+	 * @since 1.2.1
+	 */
+	public final int getFormalTeamCount(){
+		return mFormalTeams != null ? mFormalTeams.size() : 0;
+	}
+
+	/**
+	 * add the team to the reverse index.
+	 * @return true if added. false if already indexed.
+	 */
+	final boolean addFormalTeam(StateTeamManager.Team<P> team){
+		if(mFormalTeams == null){
+			mFormalTeams = new CopyOnWriteArrayList<>();
+		}else if(mFormalTeams.contains(team)){
+			return false;
+		}
+		return mFormalTeams.add(team);
+	}
+
+	/**
+	 * remove the team from the reverse index.
+	 * @return true if removed.
+	 */
+	final boolean removeFormalTeam(StateTeamManager.Team<P> team){
+		return mFormalTeams != null && mFormalTeams.remove(team);
+	}
+
+	/**
+	 * get the teams in which the controller is a formal member.
+	 * @return the teams. or null if none.
+	 */
+	final List<StateTeamManager.Team<P>> getFormalTeams(){
+		return mFormalTeams;
+	}
+
 	/**
 	 * notify states enter which is from a team .
 	 * 
@@ -0,0 +1,127 @@
+package com.heaven7.java.mvcs.channel;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.heaven7.java.base.util.SparseArray;
+
+/**
+ * the registry of {@linkplain ObjectCodec}s which are keyed by type id. it is used by {@linkplain MessageCodec}
+ * to encode {@linkplain com.heaven7.java.mvcs.Message#obj} and {@linkplain com.heaven7.java.mvcs.Message#data}.
+ * the type is matched by the exact class of object. the type ids in [1, 15] are reserved by
+ * {@linkplain #createDefault()}.
+ * <p>Note: register all codecs before encode or decode, this class is not thread-safe for register.</p>
+ * @author heaven7
+ * @since 1.2.1
+ */
+public final class CodecRegistry {
+
+	/** the type id of String. */
+	public static final int TYPE_STRING = 1;
+	/** the type id of Integer. */
+	public static final int TYPE_INT = 2;
+	/** the type id of Long. */
+	public static final int TYPE_LONG = 3;
+	/** the type id of Double. */
+	public static final int TYPE_DOUBLE = 4;
+	/** the type id of byte[]. */
+	public static final int TYPE_BYTES = 5;
+
+	private final SparseArray<ObjectCodec> mCodecs = new SparseArray<ObjectCodec>();
+	private final Map<Class<?>, Integer> mTypeIds = new HashMap<Class<?>, Integer>();
+
+	/**
+	 * create the registry with the codecs of String, Integer, Long, Double and byte[].
+	 * @return the registry
+	 */
+	public static CodecRegistry createDefault() {
+		final CodecRegistry registry = new CodecRegistry();
+		registry.register(TYPE_STRING, String.class, new StringCodec());
+		registry.register(TYPE_INT, Integer.class, new ObjectCodec() {
+			@Override
+			public void encode(Object obj, ByteBuffer out) {
+				Varints.writeSignedVarInt(out, (Integer) obj);
+			}
+			@Override
+			public Object decode(ByteBuffer in) {
+				return Varints.readSignedVarInt(in);
+			}
+		});
+		registry.register(TYPE_LONG, Long.class, new ObjectCodec() {
+			@Override
+			public void encode(Object obj, ByteBuffer out) {
+				Varints.writeSignedVarLong(out, (Long) obj);
+			}
+			@Override
+			public Object decode(ByteBuffer in) {
+				return Varints.readSignedVarLong(in);
+			}
+		});
+		registry.register(TYPE_DOUBLE, Double.class, new ObjectCodec() {
+			@Override
+			public void encode(Object obj, ByteBuffer out) {
+				out.putDouble((Double) obj);
+			}
+			@Override
+			public Object decode(ByteBuffer in) {
+				return in.getDouble();
+			}
+		});
+		registry.register(TYPE_BYTES, byte[].class, new ObjectCodec() {
+			@Override
+			public void encode(Object obj, ByteBuffer out) {
+				out.put((byte[]) obj);
+			}
+			@Override
+			public Object decode(ByteBuffer in) {
+				final byte[] bytes = new byte[in.remaining()];
+				in.get(bytes);
+				return bytes;
+			}
+		});
+		return registry;
+	}
+
+	/**
+	 * register the codec of the type.
+	 * @param typeId the type id. must be positive.
+	 * @param type the class of type
+	 * @param codec the codec
+	 * @return this.
+	 * @throws IllegalArgumentException if type id is not positive, or the type id or type is registered.
+	 */
+	public CodecRegistry register(int typeId, Class<?> type, ObjectCodec codec) {
+		if (typeId <= 0) {
+			throw new IllegalArgumentException("type id must be positive. typeId = " + typeId);
+		}
+		if (type == null || codec == null) {
+			throw new NullPointerException();
+		}
+		if (mCodecs.get(typeId) != null || mTypeIds.containsKey(type)) {
+			throw new IllegalArgumentException("the type is registered. typeId = " + typeId + " ,type = " + type);
+		}
+		mCodecs.put(typeId, codec);
+		mTypeIds.put(type, typeId);
+		return this;
+	}
+
+	/**
+	 * get the type id of the object.
+	 * @param obj the object
+	 * @return the type id. or 0 if the type is not registered.
+	 */
+	public int getTypeId(Object obj) {
+		final Integer id = mTypeIds.get(obj.getClass());
+		return id != null ? id : 0;
+	}
+
+	/**
+	 * get the codec of the type id.
+	 * @param typeId the type id
+	 * @return the codec. or null if not registered.
+	 */
+	public ObjectCodec getCodec(int typeId) {
+		return mCodecs.get(typeId);
+	}
+}
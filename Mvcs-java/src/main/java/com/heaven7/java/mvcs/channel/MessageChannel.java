@@ -0,0 +1,299 @@
+package com.heaven7.java.mvcs.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.heaven7.java.base.util.Disposeable;
+import com.heaven7.java.base.util.Objects;
+import com.heaven7.java.mvcs.Message;
+
+/**
+ * the single-producer/single-consumer message channel over a memory-mapped ring file. which is used to move
+ * messages between processes of the same host. the producer process and the consumer process open the same
+ * file, one calls {@linkplain #offer(Message)} and the other calls {@linkplain #poll()}.
+ * <p>the message is encoded into the ring directly by {@linkplain MessageCodec}, and decoded from the ring
+ * directly without copy. the producer (or consumer) writes the record, then a volatile write as the store fence,
+ * then the position. the other side reads the position, then a volatile read as the load fence, then the record.
+ * so the record is never read before it is written. the fence field is static, so the two sides in one process
+ * pair by the java memory model. between processes, the ordering relies on the barriers which the volatile
+ * accesses emit.</p>
+ * <p>Note: the {@linkplain Message#replier} is not transferred.</p>
+ * @author heaven7
+ * @since 1.2.1
+ * @see MessagePump
+ */
+public final class MessageChannel implements Disposeable {
+
+	private static final int MAGIC = 0x4D564353; // MVCS
+	private static final int VERSION = 2;
+
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_CAPACITY = 8;
+	private static final int OFFSET_MAX_RECORD = 12;
+	/** the read position of consumer. on its own cache line. */
+	private static final int OFFSET_HEAD = 64;
+	/** the write position of producer. on its own cache line. */
+	private static final int OFFSET_TAIL = 128;
+	private static final int HEADER_SIZE = 192;
+
+	/** the header of record: the length of record. negative means padding to the end of ring. */
+	private static final int RECORD_HEADER = 4;
+	private static final int DEFAULT_MAX_RECORD_SIZE = 1024;
+
+	private final File mFile;
+	private final MappedByteBuffer mMapped;
+	private final ByteBuffer mHeader;
+	private final ByteBuffer mData;
+	/** the view to write/read record. */
+	private final ByteBuffer mView;
+	private final int mCapacity;
+	private final int mMask;
+	private final int mMaxRecordSize;
+	private final MessageCodec mCodec;
+
+	/** the local position of producer or consumer. */
+	private long mTail;
+	private long mHead;
+	/** the cached position of the other side. */
+	private long mHeadCache;
+	private long mTailCache;
+	/** the fence of shared memory. which is shared by the all channels of this process. */
+	private static volatile long sFence;
+	private volatile boolean mDisposed;
+
+	private MessageChannel(File file, MappedByteBuffer mapped, int capacity, int maxRecordSize, MessageCodec codec) {
+		this.mFile = file;
+		this.mMapped = mapped;
+		this.mCapacity = capacity;
+		this.mMask = capacity - 1;
+		this.mMaxRecordSize = maxRecordSize;
+		this.mCodec = codec;
+
+		mapped.order(ByteOrder.nativeOrder());
+		this.mHeader = mapped.duplicate().order(ByteOrder.nativeOrder());
+		mapped.position(HEADER_SIZE);
+		this.mData = mapped.slice().order(ByteOrder.nativeOrder());
+		mapped.position(0);
+		this.mView = mData.duplicate().order(ByteOrder.nativeOrder());
+
+		this.mHead = this.mHeadCache = mHeader.getLong(OFFSET_HEAD);
+		this.mTail = this.mTailCache = mHeader.getLong(OFFSET_TAIL);
+	}
+
+	/**
+	 * open the channel with the default max record size.
+	 * @param file the ring file. which will be created if not exists.
+	 * @param capacity the capacity of ring in bytes. must be power of 2.
+	 * @param codec the codec of message. null means the codec with default registry.
+	 * @return the channel
+	 * @throws IOException if map file failed.
+	 * @see #open(File, int, int, MessageCodec)
+	 */
+	public static MessageChannel open(File file, int capacity, MessageCodec codec) throws IOException {
+		return open(file, capacity, DEFAULT_MAX_RECORD_SIZE, codec);
+	}
+
+	/**
+	 * open the channel. if the file is already initialized by other process, the capacity and max record size
+	 * must be the same. the file should be initialized by one side before the other side open it.
+	 * @param file the ring file. which will be created if not exists.
+	 * @param capacity the capacity of ring in bytes. must be power of 2.
+	 * @param maxRecordSize the max size of a message record in bytes.
+	 * @param codec the codec of message. null means the codec with default registry.
+	 * @return the channel
+	 * @throws IOException if map file failed.
+	 * @throws IllegalArgumentException if capacity or max record size is illegal, or the file is initialized
+	 *          with the other arguments.
+	 */
+	public static MessageChannel open(File file, int capacity, int maxRecordSize, MessageCodec codec)
+			throws IOException {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("capacity must be power of 2. capacity = " + capacity);
+		}
+		if (maxRecordSize < 64 || maxRecordSize > capacity / 2) {
+			throw new IllegalArgumentException("max record size must be in [64, capacity / 2]. maxRecordSize = "
+					+ maxRecordSize);
+		}
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		final MappedByteBuffer mapped;
+		try {
+			final long size = HEADER_SIZE + (long) capacity;
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// the mapping is still valid after close.
+			raf.close();
+		}
+		mapped.order(ByteOrder.nativeOrder());
+		if (mapped.getInt(OFFSET_MAGIC) != MAGIC) {
+			mapped.putInt(OFFSET_VERSION, VERSION);
+			mapped.putInt(OFFSET_CAPACITY, capacity);
+			mapped.putInt(OFFSET_MAX_RECORD, maxRecordSize);
+			mapped.putLong(OFFSET_HEAD, 0);
+			mapped.putLong(OFFSET_TAIL, 0);
+			mapped.putInt(OFFSET_MAGIC, MAGIC);
+		} else if (mapped.getInt(OFFSET_VERSION) != VERSION || mapped.getInt(OFFSET_CAPACITY) != capacity
+				|| mapped.getInt(OFFSET_MAX_RECORD) != maxRecordSize) {
+			throw new IllegalArgumentException("the file is initialized with other arguments. file = " + file);
+		}
+		return new MessageChannel(file, mapped, capacity, maxRecordSize, codec != null ? codec : new MessageCodec());
+	}
+
+	/**
+	 * offer the message to channel. only called by the producer. this never block. the message is not recycled,
+	 * so it can be recycled or reused after this.
+	 * @param msg the message
+	 * @return true if written. false if the ring is full.
+	 * @throws IllegalArgumentException if the encoded message is larger than max record size, or the type of
+	 *          obj or data is not registered.
+	 * @throws IllegalStateException if the channel is disposed.
+	 */
+	public boolean offer(Message msg) {
+		checkDisposed();
+		final int capacity = this.mCapacity;
+		final int maxRecord = this.mMaxRecordSize;
+		long tail = this.mTail;
+		int index = (int) (tail & mMask);
+		// the record never wrap. pad to the end of ring if not enough.
+		final int pad = capacity - index < maxRecord ? capacity - index : 0;
+		if (tail + pad + maxRecord - mHeadCache > capacity) {
+			mHeadCache = readPosition(OFFSET_HEAD);
+			if (tail + pad + maxRecord - mHeadCache > capacity) {
+				return false;
+			}
+		}
+		if (pad > 0) {
+			mData.putInt(index, -pad);
+			tail += pad;
+			index = 0;
+		}
+		final ByteBuffer out = this.mView;
+		out.limit(index + maxRecord).position(index + RECORD_HEADER);
+		try {
+			mCodec.encode(msg, out);
+		} catch (BufferOverflowException e) {
+			// the padding is not published, it will be written again.
+			throw new IllegalArgumentException("the message is too large. max record size = " + maxRecord, e);
+		}
+		final int len = align8(out.position() - index);
+		mData.putInt(index, len);
+		tail += len;
+		this.mTail = tail;
+		writePosition(OFFSET_TAIL, tail);
+		return true;
+	}
+
+	/**
+	 * poll a message from channel. only called by the consumer. this never block.
+	 * @return the new message which is obtained from pool. or null if the ring is empty.
+	 * @throws IllegalStateException if the channel is disposed.
+	 * @throws IllegalArgumentException if the record is malformed or the type of obj or data is not registered.
+	 *          the record is skipped.
+	 */
+	public Message poll() {
+		checkDisposed();
+		long head = this.mHead;
+		if (head == mTailCache) {
+			mTailCache = readPosition(OFFSET_TAIL);
+			if (head == mTailCache) {
+				return null;
+			}
+		}
+		int index = (int) (head & mMask);
+		int len = mData.getInt(index);
+		if (len < 0) {
+			head += -len;
+			index = 0;
+			len = mData.getInt(0);
+		}
+		final ByteBuffer in = this.mView;
+		in.limit(index + len).position(index + RECORD_HEADER);
+		try {
+			// the message is recycled by codec if failed.
+			return mCodec.decode(in);
+		} finally {
+			head += len;
+			this.mHead = head;
+			writePosition(OFFSET_HEAD, head);
+		}
+	}
+
+	/**
+	 * get the count of bytes which are written and not read.
+	 * @return the pending bytes.
+	 */
+	public long getPendingBytes() {
+		return readPosition(OFFSET_TAIL) - readPosition(OFFSET_HEAD);
+	}
+
+	/**
+	 * get the capacity of ring in bytes.
+	 * @return the capacity.
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	public File getFile() {
+		return mFile;
+	}
+
+	public boolean isDisposed() {
+		return mDisposed;
+	}
+
+	/**
+	 * dispose this channel. the file will be unmapped by gc.
+	 */
+	@Override
+	public void dispose() {
+		if (!mDisposed) {
+			mDisposed = true;
+			mMapped.force();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return Objects.toStringHelper(this)
+				.add("file", mFile)
+				.add("capacity", mCapacity)
+				.add("maxRecordSize", mMaxRecordSize)
+				.add("head", mHead)
+				.add("tail", mTail)
+				.toString();
+	}
+
+	/** read the position of the other side. the volatile read after it keeps the record loads behind it. */
+	private long readPosition(int offset) {
+		final long pos = mHeader.getLong(offset);
+		@SuppressWarnings("unused")
+		final long fence = sFence;
+		return pos;
+	}
+
+	/** publish the position. the volatile write before it keeps the record stores ahead of it. */
+	private void writePosition(int offset, long pos) {
+		sFence = pos;
+		mHeader.putLong(offset, pos);
+	}
+
+	private void checkDisposed() {
+		if (mDisposed) {
+			throw new IllegalStateException("the channel is disposed.");
+		}
+	}
+
+	private static int align8(int len) {
+		return (len + 7) & ~7;
+	}
+}
@@ -0,0 +1,178 @@
+package com.heaven7.java.mvcs.channel;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.heaven7.java.mvcs.Message;
+
+/**
+ * the compact binary codec of {@linkplain Message}. which encode into and decode from {@linkplain ByteBuffer}
+ * directly. the format is:
+ * <ul>
+ *     <li>the fields: what, arg1, arg2, priority as zigzag varint. when as zigzag varlong.</li>
+ *     <li>the slot mask as varint. then the present long slots as zigzag varlong, and the present double slots
+ *     as 8 bytes.</li>
+ *     <li>the obj and data: the type id as varint (0 means null), then the length as varint and the bytes
+ *     which are encoded by the {@linkplain ObjectCodec} of {@linkplain CodecRegistry}.</li>
+ * </ul>
+ * <p>Note: the {@linkplain Message#replier} is not encoded.</p>
+ * @author heaven7
+ * @since 1.2.1
+ */
+public final class MessageCodec {
+
+	private static final int DOUBLE_SLOT_SHIFT = 16;
+
+	private final CodecRegistry mRegistry;
+
+	/**
+	 * create the message codec with the default registry.
+	 * @see CodecRegistry#createDefault()
+	 */
+	public MessageCodec() {
+		this(CodecRegistry.createDefault());
+	}
+
+	public MessageCodec(CodecRegistry registry) {
+		if (registry == null) {
+			throw new NullPointerException();
+		}
+		this.mRegistry = registry;
+	}
+
+	public CodecRegistry getRegistry() {
+		return mRegistry;
+	}
+
+	/**
+	 * encode the message to the buffer at its position.
+	 * @param msg the message
+	 * @param out the out buffer
+	 * @throws java.nio.BufferOverflowException if the remaining of buffer is not enough.
+	 * @throws IllegalArgumentException if the type of obj or data is not registered.
+	 */
+	public void encode(Message msg, ByteBuffer out) {
+		Varints.writeSignedVarInt(out, msg.what);
+		Varints.writeSignedVarInt(out, msg.arg1);
+		Varints.writeSignedVarInt(out, msg.arg2);
+		Varints.writeSignedVarInt(out, msg.priority);
+		Varints.writeSignedVarLong(out, msg.when);
+
+		int slots = 0;
+		for (int i = 0; i < Message.LONG_SLOT_COUNT; i++) {
+			if (msg.hasLong(i)) {
+				slots |= 1 << i;
+			}
+		}
+		for (int i = 0; i < Message.DOUBLE_SLOT_COUNT; i++) {
+			if (msg.hasDouble(i)) {
+				slots |= 1 << (DOUBLE_SLOT_SHIFT + i);
+			}
+		}
+		Varints.writeVarInt(out, slots);
+		for (int i = 0; i < Message.LONG_SLOT_COUNT; i++) {
+			if ((slots & (1 << i)) != 0) {
+				Varints.writeSignedVarLong(out, msg.getLong(i));
+			}
+		}
+		for (int i = 0; i < Message.DOUBLE_SLOT_COUNT; i++) {
+			if ((slots & (1 << (DOUBLE_SLOT_SHIFT + i))) != 0) {
+				out.putDouble(msg.getDouble(i));
+			}
+		}
+		encodeObject(msg.obj, out);
+		encodeObject(msg.data, out);
+	}
+
+	/**
+	 * decode the message from the buffer at its position. the position of buffer will be moved to the end
+	 * of message.
+	 * @param in the in buffer.
+	 * @return the message which is obtained from the pool. it is recycled if decode failed.
+	 * @throws IllegalArgumentException if the type of obj or data is not registered, or the bytes is malformed.
+	 */
+	public Message decode(ByteBuffer in) {
+		final Message msg = Message.obtain();
+		try {
+			decode(in, msg);
+		} catch (RuntimeException e) {
+			msg.recycle();
+			throw e;
+		}
+		return msg;
+	}
+
+	private void decode(ByteBuffer in, Message msg) {
+		msg.what = Varints.readSignedVarInt(in);
+		msg.arg1 = Varints.readSignedVarInt(in);
+		msg.arg2 = Varints.readSignedVarInt(in);
+		msg.priority = Varints.readSignedVarInt(in);
+		msg.when = Varints.readSignedVarLong(in);
+
+		final int slots = Varints.readVarInt(in);
+		for (int i = 0; i < Message.LONG_SLOT_COUNT; i++) {
+			if ((slots & (1 << i)) != 0) {
+				msg.setLong(i, Varints.readSignedVarLong(in));
+			}
+		}
+		for (int i = 0; i < Message.DOUBLE_SLOT_COUNT; i++) {
+			if ((slots & (1 << (DOUBLE_SLOT_SHIFT + i))) != 0) {
+				msg.setDouble(i, in.getDouble());
+			}
+		}
+		msg.obj = decodeObject(in);
+		msg.data = decodeObject(in);
+	}
+
+	private void encodeObject(Object obj, ByteBuffer out) {
+		if (obj == null) {
+			out.put((byte) 0);
+			return;
+		}
+		final int typeId = mRegistry.getTypeId(obj);
+		if (typeId == 0) {
+			throw new IllegalArgumentException("no codec for type = " + obj.getClass().getName());
+		}
+		Varints.writeVarInt(out, typeId);
+		// reserve one byte for the length. and move the bytes if the length need more.
+		final int lenPos = out.position();
+		out.put((byte) 0);
+		final int start = out.position();
+		mRegistry.getCodec(typeId).encode(obj, out);
+		final int end = out.position();
+		final int len = end - start;
+		final int extra = Varints.sizeOfVarInt(len) - 1;
+		if (extra > 0) {
+			if (out.limit() - end < extra) {
+				throw new BufferOverflowException();
+			}
+			for (int i = end - 1; i >= start; i--) {
+				out.put(i + extra, out.get(i));
+			}
+		}
+		out.position(lenPos);
+		Varints.writeVarInt(out, len);
+		out.position(end + extra);
+	}
+
+	private Object decodeObject(ByteBuffer in) {
+		final int typeId = Varints.readVarInt(in);
+		if (typeId == 0) {
+			return null;
+		}
+		final ObjectCodec codec = mRegistry.getCodec(typeId);
+		if (codec == null) {
+			throw new IllegalArgumentException("no codec for type id = " + typeId);
+		}
+		final int len = Varints.readVarInt(in);
+		final int end = in.position() + len;
+		final int limit = in.limit();
+		in.limit(end);
+		try {
+			return codec.decode(in);
+		} finally {
+			in.limit(limit);
+			in.position(end);
+		}
+	}
+}
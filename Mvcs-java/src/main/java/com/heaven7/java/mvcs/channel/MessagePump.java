@@ -0,0 +1,143 @@
+package com.heaven7.java.mvcs.channel;
+
+import com.heaven7.java.base.util.SparseArray;
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.IController.PolicyType;
+import com.heaven7.java.mvcs.IController.ScopeFlags;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.StateTeamManager;
+
+/**
+ * the receiver-side pump of {@linkplain MessageChannel}. which poll the messages from channel and dispatch them
+ * into the target controllers or teams. the target is routed by {@linkplain Message#what}, or the default target
+ * if there is no route.
+ * <p>Note: this class is not thread-safe. it should be called on the consumer thread of channel. often is the
+ * thread which update the controllers.</p>
+ * @author heaven7
+ * @since 1.2.1
+ */
+public final class MessagePump {
+
+	private final MessageChannel mChannel;
+	private final SparseArray<Target> mRoutes = new SparseArray<Target>();
+	private Target mDefaultTarget;
+	/** the count of messages which have no target. */
+	private long mUnroutedCount;
+
+	/**
+	 * the target of pump.
+	 * @since 1.2.1
+	 */
+	public interface Target {
+		/**
+		 * deliver the message to the target. the message is owned by target after this.
+		 * @param msg the message
+		 */
+		void deliver(Message msg);
+	}
+
+	public MessagePump(MessageChannel channel) {
+		if (channel == null) {
+			throw new NullPointerException();
+		}
+		this.mChannel = channel;
+	}
+
+	/**
+	 * create the target which dispatch message to the controller.
+	 * @param controller the controller
+	 * @param policy the policy of dispatch
+	 * @param scope the scope flags of dispatch
+	 * @return the target
+	 */
+	public static Target controllerTarget(final IController<?, ?> controller, @PolicyType final byte policy,
+			@ScopeFlags final byte scope) {
+		return new Target() {
+			@Override
+			public void deliver(Message msg) {
+				controller.dispatchMessage(msg, policy, scope);
+			}
+		};
+	}
+
+	/**
+	 * create the target which dispatch message to the team.
+	 * @param manager the team manager
+	 * @param teamId the team id
+	 * @param policy the policy of dispatch
+	 * @param memberFlags the member flags. see {@linkplain StateTeamManager#FLAG_MEMBER_FORMAL},
+	 *               {@linkplain StateTeamManager#FLAG_MEMBER_OUTER}
+	 * @return the target
+	 */
+	public static Target teamTarget(final StateTeamManager<?> manager, final int teamId,
+			@PolicyType final byte policy, final int memberFlags) {
+		return new Target() {
+			@Override
+			public void deliver(Message msg) {
+				manager.dispatchMessage(teamId, msg, policy, memberFlags);
+			}
+		};
+	}
+
+	/**
+	 * set the default target which receive the messages without route.
+	 * @param target the target. null to drop the messages without route.
+	 * @return this.
+	 */
+	public MessagePump setDefaultTarget(Target target) {
+		this.mDefaultTarget = target;
+		return this;
+	}
+
+	/**
+	 * route the messages of the target what to the target.
+	 * @param what the what of message
+	 * @param target the target. null to remove the route.
+	 * @return this.
+	 */
+	public MessagePump route(int what, Target target) {
+		if (target == null) {
+			mRoutes.remove(what);
+		} else {
+			mRoutes.put(what, target);
+		}
+		return this;
+	}
+
+	/**
+	 * poll the messages from channel and deliver them to targets.
+	 * @param max the max count of messages to pump. <=0 means until the channel is empty.
+	 * @return the count of pumped messages.
+	 */
+	public int pump(int max) {
+		final int limit = max <= 0 ? Integer.MAX_VALUE : max;
+		int count = 0;
+		Message msg;
+		Target target;
+		for (; count < limit && (msg = mChannel.poll()) != null; count++) {
+			target = mRoutes.get(msg.what);
+			if (target == null) {
+				target = mDefaultTarget;
+			}
+			if (target != null) {
+				target.deliver(msg);
+			} else {
+				mUnroutedCount++;
+				msg.recycle();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * get the count of messages which are dropped because of no target.
+	 * @return the count
+	 */
+	public long getUnroutedCount() {
+		return mUnroutedCount;
+	}
+
+	public MessageChannel getChannel() {
+		return mChannel;
+	}
+}
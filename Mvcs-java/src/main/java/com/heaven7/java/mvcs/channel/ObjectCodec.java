@@ -0,0 +1,28 @@
+package com.heaven7.java.mvcs.channel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * the codec of {@linkplain com.heaven7.java.mvcs.Message#obj} or {@linkplain com.heaven7.java.mvcs.Message#data}
+ * which is registered to {@linkplain CodecRegistry} by type id.
+ * @author heaven7
+ * @since 1.2.1
+ */
+public interface ObjectCodec {
+
+	/**
+	 * encode the object to the buffer at its position.
+	 * @param obj the object. never null.
+	 * @param out the out buffer. the remaining of buffer is the max bytes can write.
+	 * @throws java.nio.BufferOverflowException if the remaining of buffer is not enough.
+	 */
+	void encode(Object obj, ByteBuffer out);
+
+	/**
+	 * decode the object from the buffer. the remaining of buffer is the bytes of object. the buffer is the view
+	 * of shared memory which is only valid in this call, so don't hold it.
+	 * @param in the in buffer.
+	 * @return the object.
+	 */
+	Object decode(ByteBuffer in);
+}
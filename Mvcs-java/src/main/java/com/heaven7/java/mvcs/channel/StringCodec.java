@@ -0,0 +1,72 @@
+package com.heaven7.java.mvcs.channel;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * the utf-8 string codec. which encode into and decode from the buffer directly by the charset coders, without
+ * intermediate byte array. the decoded chars are kept in a reused char buffer. the malformed bytes and unmappable
+ * chars are replaced like {@linkplain String#getBytes(Charset)}. the coders are guarded by this codec, the lock is
+ * uncontended for one producer and one consumer.
+ * @author heaven7
+ * @since 1.2.1
+ */
+public final class StringCodec implements ObjectCodec {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final CharsetEncoder mEncoder = UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final CharsetDecoder mDecoder = UTF_8.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private CharBuffer mChars = CharBuffer.allocate(64);
+
+	@Override
+	public void encode(Object obj, ByteBuffer out) {
+		final CharBuffer chars = CharBuffer.wrap(obj.toString());
+		synchronized (mEncoder) {
+			final CharsetEncoder encoder = mEncoder.reset();
+			check(encoder.encode(chars, out, true));
+			check(encoder.flush(out));
+		}
+	}
+
+	@Override
+	public Object decode(ByteBuffer in) {
+		synchronized (mDecoder) {
+			// utf-8 never decode more chars than bytes.
+			CharBuffer chars = mChars;
+			if (chars.capacity() < in.remaining()) {
+				chars = mChars = CharBuffer.allocate(in.remaining());
+			}
+			chars.clear();
+			final CharsetDecoder decoder = mDecoder.reset();
+			check(decoder.decode(in, chars, true));
+			check(decoder.flush(chars));
+			chars.flip();
+			return chars.toString();
+		}
+	}
+
+	private static void check(CoderResult result) {
+		if (result.isOverflow()) {
+			throw new BufferOverflowException();
+		}
+		if (result.isError()) {
+			try {
+				result.throwException();
+			} catch (CharacterCodingException e) {
+				throw new IllegalArgumentException("malformed string.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.heaven7.java.mvcs.channel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * the varint helper. the signed values are zigzag encoded.
+ * @author heaven7
+ * @since 1.2.1
+ */
+/* public */ final class Varints {
+
+	private Varints() {
+	}
+
+	public static void writeVarInt(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	public static int readVarInt(ByteBuffer in) {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			final byte b = in.get();
+			result |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return result;
+			}
+		}
+		throw new IllegalArgumentException("malformed varint.");
+	}
+
+	public static void writeVarLong(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	public static long readVarLong(ByteBuffer in) {
+		long result = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = in.get();
+			result |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return result;
+			}
+		}
+		throw new IllegalArgumentException("malformed varlong.");
+	}
+
+	public static void writeSignedVarInt(ByteBuffer out, int value) {
+		writeVarInt(out, (value << 1) ^ (value >> 31));
+	}
+
+	public static int readSignedVarInt(ByteBuffer in) {
+		final int raw = readVarInt(in);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	public static void writeSignedVarLong(ByteBuffer out, long value) {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	public static long readSignedVarLong(ByteBuffer in) {
+		final long raw = readVarLong(in);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	/**
+	 * get the byte count of the unsigned varint.
+	 * @param value the value
+	 * @return the byte count.
+	 */
+	public static int sizeOfVarInt(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}
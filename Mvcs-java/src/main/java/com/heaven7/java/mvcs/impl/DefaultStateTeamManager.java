@@ -14,6 +14,23 @@ public final class DefaultStateTeamManager extends StateTeamManager<PropertyBund
 		static final DefaultStateTeamManager INSTANCE = new DefaultStateTeamManager();
 	}
 	
+	/**
+	 * create the team manager of shard 0. which is same as the default.
+	 */
+	public DefaultStateTeamManager() {
+		super();
+	}
+
+	/**
+	 * create the team manager of target shard. the team ids are disjoint with the default manager if shard index &gt; 0.
+	 * @param shardIndex the shard index.
+	 * @since 1.2.1
+	 * @see StateTeamManager#StateTeamManager(int)
+	 */
+	public DefaultStateTeamManager(int shardIndex) {
+		super(shardIndex);
+	}
+
 	/**
 	 * get default team manager.
 	 * @return a team manager.
@@ -3,7 +3,6 @@ package com.heaven7.java.mvcs.impl;
 import static com.heaven7.java.mvcs.StateTeamManager.COOPERATE_METHOD_ALL;
 import static com.heaven7.java.mvcs.StateTeamManager.COOPERATE_METHOD_BASE;
 
-import java.util.Iterator;
 import java.util.List;
 
 import com.heaven7.java.mvcs.AbstractState;
@@ -11,179 +10,94 @@ import com.heaven7.java.mvcs.IController;
 import com.heaven7.java.mvcs.StateTeamManager.Member;
 import com.heaven7.java.mvcs.StateTeamManager.Team;
 import com.heaven7.java.mvcs.StateTeamManager.TeamCallback;
-import com.heaven7.java.mvcs.TeamMediator;;
+import com.heaven7.java.mvcs.TeamCascade;
+import com.heaven7.java.mvcs.TeamMediator;
 
 /**
- * a default implement of {@linkplain TeamCallback}.
+ * a default implement of {@linkplain TeamCallback}. the members of team are notified by a two-phase transition:
+ * resolve the all members, then apply them in one pass.
  * @author heaven7
  *
  * @param <P> the parameter 
  * @since 1.1.8
  */
 public class DefaultTeamCllback<P> extends TeamCallback<P> {
-	
-	@Override
-	public void onTeamEnter(Team<P> team, AbstractState<P> trigger) {
-		final boolean byMutex = trigger.hasFlags(AbstractState.FLAG_MUTEX);
 
-		enterImpl(byMutex, trigger, team.getFormalMembers());
+	private static final byte ACTION_ENTER   = 1;
+	private static final byte ACTION_EXIT    = 2;
+	private static final byte ACTION_REENTER = 3;
 
-		List<Member<P>> outers = team.getOuterMembers();
-		if (outers != null) {
-			enterImpl(byMutex, trigger, outers);
-		}
+	@Override
+	public void onTeamEnter(Team<P> team, AbstractState<P> trigger) {
+		transit(ACTION_ENTER, team, trigger);
 	}
 
 	@Override
 	public void onTeamExit(Team<P> team, AbstractState<P> trigger) {
-		final boolean byMutex = trigger.hasFlags(AbstractState.FLAG_MUTEX);
-
-		exitImpl(byMutex, trigger, team.getFormalMembers());
-
-		List<Member<P>> outers = team.getOuterMembers();
-		if (outers != null) {
-			exitImpl(byMutex, trigger, outers);
-		}
+		transit(ACTION_EXIT, team, trigger);
 	}
 
 	@Override
 	public void onTeamReenter(Team<P> team, AbstractState<P> trigger) {
-		final boolean byMutex = trigger.hasFlags(AbstractState.FLAG_MUTEX);
+		transit(ACTION_REENTER, team, trigger);
+	}
 
-		reenterImpl(byMutex, trigger, team.getFormalMembers());
+	/**
+	 * transit the members of team in two phases. first resolve the target states of every member without side
+	 * effect, then mark the all members notified and apply them in one pass. so no member can observe or re-trigger
+	 * the team before the all members are resolved. the members which are collected, team-disabled or with unknown
+	 * cooperate method are skipped by resolve, and don't stop the other members.
+	 */
+	private void transit(byte action, Team<P> team, AbstractState<P> trigger) {
+		final boolean byMutex = trigger.hasFlags(AbstractState.FLAG_MUTEX);
+		final List<Member<P>> formal = team.getFormalMembers();
+		final List<Member<P>> outers = team.getOuterMembers();
 
-		List<Member<P>> outers = team.getOuterMembers();
+		// phase 1: resolve.
+		final Transition<P> transition = new Transition<P>(formal.size() + (outers != null ? outers.size() : 0));
+		resolve(transition, byMutex, trigger, formal);
 		if (outers != null) {
-			reenterImpl(byMutex, trigger, outers);
+			resolve(transition, byMutex, trigger, outers);
 		}
-	}
-	
-	private void enterImpl(final boolean byMutex, AbstractState<P> trigger, List<Member<P>> members) {
-		
-		final IController<? extends AbstractState<P>, P> triCon =trigger.getController();
-		final Iterator<Member<P>> it = members.iterator();
-		
-		TeamMediator<P> mediator;
-		IController<? extends AbstractState<P>, P> controller;
-		Member<P> member;
-
-		for (; it.hasNext();) {
-			member = it.next();
-			controller = member.getController();
-			if (controller == null) {
-				// trim
-				it.remove();
-				continue;
-			} else if (controller == triCon || !controller.isTeamEnabled()) {
-				// same controller . ignore
-				continue;
-			}
-
-			mediator = controller.getTeamMediator();
-			// disable dispatch recursion callback
-			controller.setTeamEnabled(false);
-
-			switch (member.getCooperateMethod()) {
-			case COOPERATE_METHOD_BASE:
-				// in base: mutex trigger do nothing.
-				if (byMutex) {
-					break;
-				}
-				
-			case COOPERATE_METHOD_ALL:
-				onNotifyStateEnter(mediator, member.getStates(), trigger.getStateParameter());
-				break;
-
-			default:
-				System.err.println("unknown cooperate method: " + member.getCooperateMethod());
-			}
-			controller.setTeamEnabled(true);
+		if (transition.size == 0) {
+			return;
 		}
-	}
-	
-	private void exitImpl(final boolean byMutex, AbstractState<P> trigger, List<Member<P>> members) {
-		
-		final IController<? extends AbstractState<P>, P> triCon =trigger.getController();
-		final Iterator<Member<P>> it = members.iterator();
-		
-		TeamMediator<P> mediator;
-		IController<? extends AbstractState<P>, P> controller;
-		Member<P> member;
-		
-		for (; it.hasNext();) {
-			member = it.next();
-			controller = member.getController();
-			if (controller == null) {
-				// trim
-				it.remove();
-				continue;
-			} else if (controller == triCon || !controller.isTeamEnabled()) {
-				// same controller . ignore
-				continue;
-			}
-			mediator = controller.getTeamMediator();
-			// disable dispatch recursion callback
-			controller.setTeamEnabled(false);
-			
-			switch (member.getCooperateMethod()) {
-			case COOPERATE_METHOD_BASE:
-				// in base: mutex trigger do nothing.
-				if (byMutex) {
-					break;
-				}
-				
-			case COOPERATE_METHOD_ALL:
-				onNotifyStateExit(mediator, member.getStates(), trigger.getStateParameter());
-				break;
-				
-			default:
-				System.err.println("unknown cooperate method: " + member.getCooperateMethod());
-			}
-			controller.setTeamEnabled(true);
+		// phase 2: apply.
+		final TeamCascade cascade = TeamCascade.begin();
+		try {
+			transition.apply(this, cascade, action, trigger.getStateParameter());
+		} finally {
+			cascade.end();
 		}
 	}
-	private void reenterImpl(final boolean byMutex, AbstractState<P> trigger, List<Member<P>> members) {
-		final IController<? extends AbstractState<P>, P> triCon =trigger.getController();
-		final Iterator<Member<P>> it = members.iterator();
-		
-		TeamMediator<P> mediator;
+
+	private static <P> void resolve(Transition<P> transition, boolean byMutex, AbstractState<P> trigger,
+			List<Member<P>> members) {
+		final IController<? extends AbstractState<P>, P> triCon = trigger.getController();
 		IController<? extends AbstractState<P>, P> controller;
-		Member<P> member;
-		
-		for (; it.hasNext();) {
-			member = it.next();
+		for (Member<P> member : members) {
 			controller = member.getController();
-			if (controller == null) {
-				// trim
-				it.remove();
-				continue;
-			} else if (controller == triCon || !controller.isTeamEnabled()) {
-				// same controller . ignore
+			// the collected member is purged by team manager.
+			if (controller == null || controller == triCon || !controller.isTeamEnabled()) {
 				continue;
 			}
-			
-			mediator = controller.getTeamMediator();
-			// disable dispatch recursion callback
-			controller.setTeamEnabled(false);
-			
 			switch (member.getCooperateMethod()) {
 			case COOPERATE_METHOD_BASE:
 				// in base: mutex trigger do nothing.
 				if (byMutex) {
 					break;
 				}
-				
+
 			case COOPERATE_METHOD_ALL:
-				onNotifyStateReenter(mediator, member.getStates(), trigger.getStateParameter());
+				transition.add(controller, member.getStates());
 				break;
-				
+
 			default:
 				System.err.println("unknown cooperate method: " + member.getCooperateMethod());
 			}
-			controller.setTeamEnabled(true);
 		}
 	}
-	
+
 	/**
 	 * called on notify team state exit.
 	 * @param mediator the team mediator.
@@ -211,4 +125,55 @@ public class DefaultTeamCllback<P> extends TeamCallback<P> {
 	protected void onNotifyStateReenter(TeamMediator<P> mediator, int states, P param){
 		mediator.notifyStateReenter(states, param);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * the resolved transition of team members. the states of same controller are merged.
+	 */
+	private static final class Transition<P> {
+		final IController<?, P>[] controllers;
+		final int[] states;
+		int size;
+
+		@SuppressWarnings("unchecked")
+		Transition(int capacity) {
+			this.controllers = (IController<?, P>[]) new IController<?, ?>[capacity];
+			this.states = new int[capacity];
+		}
+
+		void add(IController<?, P> controller, int memberStates) {
+			for (int i = 0; i < size; i++) {
+				if (controllers[i] == controller) {
+					states[i] |= memberStates;
+					return;
+				}
+			}
+			controllers[size] = controller;
+			states[size++] = memberStates;
+		}
+
+		void apply(DefaultTeamCllback<P> callback, TeamCascade cascade, byte action, P param) {
+			// the notified states in the cascade are never notified again. so no recursion.
+			for (int i = 0; i < size; i++) {
+				states[i] = cascade.markNotified(controllers[i], states[i]);
+			}
+			TeamMediator<P> mediator;
+			for (int i = 0; i < size; i++) {
+				if (states[i] == 0) {
+					continue;
+				}
+				mediator = controllers[i].getTeamMediator();
+				switch (action) {
+				case ACTION_ENTER:
+					callback.onNotifyStateEnter(mediator, states[i], param);
+					break;
+				case ACTION_EXIT:
+					callback.onNotifyStateExit(mediator, states[i], param);
+					break;
+				default:
+					callback.onNotifyStateReenter(mediator, states[i], param);
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.heaven7.java.mvcs.impl;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.heaven7.java.base.util.Objects;
+import com.heaven7.java.mvcs.StateTeamManager.Team;
+import com.heaven7.java.mvcs.StateTeamManager.TeamMetrics;
+
+/**
+ * a default implement of {@linkplain TeamMetrics}. which counts the transitions, notified members, cascade depth,
+ * callback latency and messages per team. the latency is recorded into a histogram whose bucket i contains the
+ * latencies in [2^(i-1), 2^i) microseconds (bucket 0 is less than 1 microsecond). the teams are weakly referenced.
+ * @author heaven7
+ *
+ * @param <P> the parameter
+ * @since 1.2.1
+ */
+public class DefaultTeamMetrics<P> extends TeamMetrics<P> {
+
+	/** the bucket count of latency histogram. */
+	public static final int LATENCY_BUCKET_COUNT = 32;
+
+	private final Map<Team<P>, TeamStats> mStats = new WeakHashMap<>();
+
+	@Override
+	public void onTeamTransition(Team<P> team, int depth, int notifiedMembers, long latencyNanos) {
+		synchronized (mStats) {
+			final TeamStats stats = obtainStats(team);
+			stats.transitions++;
+			stats.notifiedMembers += notifiedMembers;
+			stats.totalDepth += depth;
+			if (depth > stats.maxDepth) {
+				stats.maxDepth = depth;
+			}
+			stats.latencyHistogram[bucketOf(latencyNanos)]++;
+		}
+	}
+
+	@Override
+	public void onTeamMessages(Team<P> team, int dispatched, int handled, boolean consumed) {
+		synchronized (mStats) {
+			final TeamStats stats = obtainStats(team);
+			stats.dispatchedMessages += dispatched;
+			stats.handledMessages += handled;
+			if (consumed) {
+				stats.consumedMessages += handled;
+			}
+		}
+	}
+
+	/**
+	 * get the stats of team.
+	 * @param team the team
+	 * @return the copy of stats. or null if the team has no metrics.
+	 */
+	public TeamStats getStats(Team<P> team) {
+		synchronized (mStats) {
+			final TeamStats stats = mStats.get(team);
+			return stats != null ? stats.copy() : null;
+		}
+	}
+
+	/**
+	 * reset the all stats.
+	 */
+	public void reset() {
+		synchronized (mStats) {
+			mStats.clear();
+		}
+	}
+
+	private TeamStats obtainStats(Team<P> team) {
+		TeamStats stats = mStats.get(team);
+		if (stats == null) {
+			stats = new TeamStats();
+			mStats.put(team, stats);
+		}
+		return stats;
+	}
+
+	private static int bucketOf(long latencyNanos) {
+		final long micros = latencyNanos / 1000;
+		if (micros <= 0) {
+			return 0;
+		}
+		return Math.min(LATENCY_BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/**
+	 * the stats of a team.
+	 * @author heaven7
+	 * @since 1.2.1
+	 */
+	public static final class TeamStats {
+		long transitions;
+		long notifiedMembers;
+		long totalDepth;
+		int maxDepth;
+		long dispatchedMessages;
+		long handledMessages;
+		long consumedMessages;
+		final long[] latencyHistogram = new long[LATENCY_BUCKET_COUNT];
+
+		TeamStats() {
+		}
+
+		/**
+		 * get the count of transitions which are observed by team.
+		 * @return the count of transitions.
+		 */
+		public long getTransitionCount() {
+			return transitions;
+		}
+
+		/**
+		 * get the count of member notifications of the all transitions.
+		 * @return the count of notified members.
+		 */
+		public long getNotifiedMemberCount() {
+			return notifiedMembers;
+		}
+
+		/**
+		 * get the max cascade depth at which the team is notified.
+		 * @return the max depth. 0 if no transition.
+		 */
+		public int getMaxCascadeDepth() {
+			return maxDepth;
+		}
+
+		/**
+		 * get the average cascade depth at which the team is notified.
+		 * @return the average depth. 0 if no transition.
+		 */
+		public double getAverageCascadeDepth() {
+			return transitions != 0 ? (double) totalDepth / transitions : 0;
+		}
+
+		/**
+		 * get the latency histogram of team callback.
+		 * @return the copy of histogram. see {@linkplain DefaultTeamMetrics#LATENCY_BUCKET_COUNT}.
+		 */
+		public long[] getLatencyHistogram() {
+			return latencyHistogram.clone();
+		}
+
+		public long getDispatchedMessageCount() {
+			return dispatchedMessages;
+		}
+
+		public long getHandledMessageCount() {
+			return handledMessages;
+		}
+
+		public long getConsumedMessageCount() {
+			return consumedMessages;
+		}
+
+		TeamStats copy() {
+			final TeamStats stats = new TeamStats();
+			stats.transitions = transitions;
+			stats.notifiedMembers = notifiedMembers;
+			stats.totalDepth = totalDepth;
+			stats.maxDepth = maxDepth;
+			stats.dispatchedMessages = dispatchedMessages;
+			stats.handledMessages = handledMessages;
+			stats.consumedMessages = consumedMessages;
+			System.arraycopy(latencyHistogram, 0, stats.latencyHistogram, 0, LATENCY_BUCKET_COUNT);
+			return stats;
+		}
+
+		@Override
+		public String toString() {
+			return Objects.toStringHelper(this)
+					.add("transitions", transitions)
+					.add("notifiedMembers", notifiedMembers)
+					.add("maxDepth", maxDepth)
+					.add("averageDepth", getAverageCascadeDepth())
+					.add("dispatchedMessages", dispatchedMessages)
+					.add("handledMessages", handledMessages)
+					.add("consumedMessages", consumedMessages)
+					.toString();
+		}
+	}
+}
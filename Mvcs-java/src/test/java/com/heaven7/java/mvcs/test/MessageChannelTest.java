@@ -0,0 +1,239 @@
+package com.heaven7.java.mvcs.test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.heaven7.java.mvcs.IController;
+import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.SimpleController;
+import com.heaven7.java.mvcs.SimpleState;
+import com.heaven7.java.mvcs.channel.CodecRegistry;
+import com.heaven7.java.mvcs.channel.MessageChannel;
+import com.heaven7.java.mvcs.channel.MessagePump;
+import com.heaven7.java.mvcs.channel.MessageCodec;
+import com.heaven7.java.mvcs.channel.ObjectCodec;
+
+import junit.framework.TestCase;
+
+/**
+ * the test of {@linkplain MessageChannel}.
+ */
+public class MessageChannelTest extends TestCase {
+
+	private static final int CAPACITY = 4096;
+	private static final int COUNT = 500;
+
+	private File mFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("mvcs-channel", ".ring");
+		mFile.deleteOnExit();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mFile.delete();
+		super.tearDown();
+	}
+
+	public void testMessageCodec() {
+		CodecRegistry registry = CodecRegistry.createDefault().register(100, StringBuilder.class, new ObjectCodec() {
+			@Override
+			public void encode(Object obj, ByteBuffer out) {
+				out.put(obj.toString().getBytes());
+			}
+			@Override
+			public Object decode(ByteBuffer in) {
+				final StringBuilder sb = new StringBuilder();
+				while (in.hasRemaining()) {
+					sb.append((char) in.get());
+				}
+				return sb;
+			}
+		});
+		MessageCodec codec = new MessageCodec(registry);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			large.append((char) ('a' + i % 26));
+		}
+		Message msg = newMessage(-5);
+		msg.data = large;
+		msg.when = System.currentTimeMillis();
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+		codec.encode(msg, buffer);
+		codec.encode(newMessage(3), buffer);
+		buffer.flip();
+		Message decoded = codec.decode(buffer);
+		assertMessage(-5, decoded);
+		assertEquals(msg.when, decoded.when);
+		assertEquals(large.toString(), decoded.data.toString());
+		assertMessage(3, codec.decode(buffer));
+		assertFalse(buffer.hasRemaining());
+
+		// the multi-byte chars, and more chars than the reused buffer.
+		final String text = "h\u00e9llo-\u4e16\u754c-" + large;
+		msg = newMessage(4);
+		msg.obj = text;
+		buffer.clear();
+		codec.encode(msg, buffer);
+		buffer.flip();
+		assertEquals(text, codec.decode(buffer).obj);
+
+		msg.data = new Object();
+		buffer.clear();
+		try {
+			codec.encode(msg, buffer);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testOfferAndPoll() throws Exception {
+		MessageChannel producer = MessageChannel.open(mFile, CAPACITY, 256, new MessageCodec());
+		MessageChannel consumer = MessageChannel.open(mFile, CAPACITY, 256, new MessageCodec());
+		// wrap around the ring many times.
+		for (int i = 0; i < COUNT; i++) {
+			assertTrue(producer.offer(newMessage(i)));
+			Message msg = consumer.poll();
+			assertMessage(i, msg);
+			msg.recycle();
+		}
+		assertNull(consumer.poll());
+
+		int written = 0;
+		while (producer.offer(newMessage(written))) {
+			written++;
+		}
+		assertTrue(written > 0);
+		assertTrue(producer.getPendingBytes() > 0);
+		for (int i = 0; i < written; i++) {
+			assertMessage(i, consumer.poll());
+		}
+		assertEquals(0, consumer.getPendingBytes());
+		producer.dispose();
+		consumer.dispose();
+	}
+
+	public void testPollMalformedRecord() throws Exception {
+		CodecRegistry registry = CodecRegistry.createDefault().register(100, Boolean.class, new ObjectCodec() {
+			@Override
+			public void encode(Object obj, ByteBuffer out) {
+				out.put((byte) ((Boolean) obj ? 1 : 0));
+			}
+			@Override
+			public Object decode(ByteBuffer in) {
+				return in.get() != 0;
+			}
+		});
+		MessageChannel producer = MessageChannel.open(mFile, CAPACITY, 256, new MessageCodec(registry));
+		MessageChannel consumer = MessageChannel.open(mFile, CAPACITY, 256, new MessageCodec());
+		Message msg = newMessage(1);
+		msg.data = Boolean.TRUE;
+		assertTrue(producer.offer(msg));
+		assertTrue(producer.offer(newMessage(2)));
+		try {
+			consumer.poll();
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// the malformed record is skipped.
+		assertMessage(2, consumer.poll());
+		assertNull(consumer.poll());
+		producer.dispose();
+		consumer.dispose();
+	}
+
+	public void testPump() throws Exception {
+		final List<Message> received = new ArrayList<>();
+		SimpleController<SimpleState<String>, String> controller = new SimpleController<>();
+		controller.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
+			@Override
+			public SimpleState<String> createState(int stateKey, String p) {
+				return new SimpleState<String>() {
+					@Override
+					public boolean handleMessage(Message msg) {
+						received.add(Message.obtain(msg));
+						return true;
+					}
+				};
+			}
+		});
+		controller.setParameterMerger(new ParamepterMergerImpl());
+		controller.addState(1);
+
+		MessageChannel producer = MessageChannel.open(mFile, CAPACITY, new MessageCodec());
+		MessageChannel consumer = MessageChannel.open(mFile, CAPACITY, new MessageCodec());
+		MessagePump pump = new MessagePump(consumer).route(1, MessagePump.controllerTarget(controller,
+				IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT));
+		assertTrue(producer.offer(newMessage(1)));
+		assertTrue(producer.offer(newMessage(2)));
+		assertEquals(2, pump.pump(0));
+		assertEquals(1, received.size());
+		assertMessage(1, received.get(0));
+		assertEquals(1, pump.getUnroutedCount());
+	}
+
+	public void testTwoProcesses() throws Exception {
+		MessageChannel consumer = MessageChannel.open(mFile, CAPACITY, 256, new MessageCodec());
+		final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				Producer.class.getName(), mFile.getAbsolutePath()).inheritIO().start();
+		int received = 0;
+		final long deadline = System.currentTimeMillis() + 20000;
+		while (received < COUNT && System.currentTimeMillis() < deadline) {
+			Message msg = consumer.poll();
+			if (msg == null) {
+				Thread.yield();
+				continue;
+			}
+			assertMessage(received++, msg);
+			msg.recycle();
+		}
+		assertEquals(0, process.waitFor());
+		assertEquals(COUNT, received);
+	}
+
+	private static Message newMessage(int i) {
+		Message msg = Message.obtain(i, i * 2, "msg-" + i, null);
+		msg.arg2 = -i;
+		msg.priority = Message.PRIORITY_HIGH;
+		msg.setLong(1, i * 1000L).setDouble(3, i + 0.5);
+		return msg;
+	}
+
+	private static void assertMessage(int i, Message msg) {
+		assertNotNull(msg);
+		assertEquals(i, msg.what);
+		assertEquals(i * 2, msg.arg1);
+		assertEquals(-i, msg.arg2);
+		assertEquals(Message.PRIORITY_HIGH, msg.priority);
+		assertEquals("msg-" + i, msg.obj);
+		assertFalse(msg.hasLong(0));
+		assertEquals(i * 1000L, msg.getLong(1));
+		assertEquals(i + 0.5, msg.getDouble(3));
+	}
+
+	/**
+	 * the producer process of {@linkplain MessageChannelTest#testTwoProcesses()}.
+	 */
+	public static class Producer {
+		public static void main(String[] args) throws Exception {
+			MessageChannel producer = MessageChannel.open(new File(args[0]), CAPACITY, 256, new MessageCodec());
+			for (int i = 0; i < COUNT; i++) {
+				Message msg = newMessage(i);
+				while (!producer.offer(msg)) {
+					Thread.yield();
+				}
+				msg.recycle();
+			}
+			producer.dispose();
+		}
+	}
+}
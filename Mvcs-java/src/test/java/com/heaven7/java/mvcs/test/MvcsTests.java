@@ -1,9 +1,18 @@
 package com.heaven7.java.mvcs.test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.heaven7.java.mvcs.DispatchSelector;
 import com.heaven7.java.mvcs.IController;
 import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.MessageBatch;
+import com.heaven7.java.mvcs.MessageFuture;
+import com.heaven7.java.mvcs.MessageTracer;
+import com.heaven7.java.mvcs.ScheduledMessage;
 import com.heaven7.java.mvcs.SimpleController;
 import com.heaven7.java.mvcs.SimpleState;
 import com.heaven7.java.mvcs.StateTeamManager;
@@ -23,11 +32,18 @@ public class MvcsTests extends TestCase {
     
     static final int STATE_UNKNOWN  = 32;
     private SimpleController<SimpleState<String>,String> mController;
+    /** the time of periodic messages. 0 means the wall clock. */
+    private long mNow;
 
     @Override
     protected void setUp() throws Exception {
         super.setUp();
-        mController = new SimpleController<SimpleState<String>, String>();
+        mController = new SimpleController<SimpleState<String>, String>(){
+        	@Override
+        	protected long currentTimeMillis() {
+        		return mNow != 0 ? mNow : super.currentTimeMillis();
+        	}
+        };
         mController.setStateFactory(new IController.StateFactory<SimpleState<String>, String>() {
             @Override
             public SimpleState<String> createState(int stateKey, String s) {
@@ -70,6 +86,532 @@ public class MvcsTests extends TestCase {
 		}
     }
     
+    public void testCoalesceMessage(){
+    	final int what = 100;
+    	final int[] counts = new int[2];
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				counts[0]++;
+			}
+		};
+    	mController.addState(STATE_EAT);
+    	mController.setMessageCoalescePolicy(what, IController.COALESCE_MERGE, new Message.MessageMerger() {
+			@Override
+			public void merge(Message pending, Message incoming) {
+				pending.arg1 += incoming.arg1;
+				counts[1] = pending.arg1;
+			}
+		});
+    	for(int i = 0 ; i < 5 ; i++){
+    		assertFalse(mController.dispatchMessage(Message.obtain(what, 1, null, replier),
+    				IController.POLICY_BROADCAST));
+    	}
+    	assertTrue(mController.hasMessage(what));
+    	assertEquals(0, counts[0]);
+    	assertEquals(5, counts[1]);
+
+    	mController.update(0);
+    	assertEquals(1, counts[0]);
+    	assertFalse(mController.hasMessage(what));
+
+    	mController.removeMessageCoalescePolicy(what);
+    	assertTrue(mController.dispatchMessage(Message.obtain(what, 1, null, replier),
+				IController.POLICY_BROADCAST));
+    	assertEquals(2, counts[0]);
+    }
+
+    public void testCoalesceMessageOverBudget(){
+    	final List<String> received = new ArrayList<>();
+    	mController.addState(STATE_EAT);
+    	mController.setMessageDeliveryPolicy(IController.DRAIN_STRICT, 1);
+    	mController.setMessageCoalescePolicy(103, IController.COALESCE_KEEP_LATEST, null);
+    	mController.setMessageCoalescePolicy(104, IController.COALESCE_KEEP_LATEST, null);
+    	assertFalse(mController.dispatchMessage(newRecordMessage(103, "stale", Message.PRIORITY_NORMAL, received),
+    			IController.POLICY_BROADCAST));
+    	assertFalse(mController.dispatchMessage(newRecordMessage(104, "high", Message.PRIORITY_HIGH, received),
+    			IController.POLICY_BROADCAST));
+    	// the budget is used by the high one.
+    	mController.update(0);
+    	assertEquals(Arrays.asList("high"), received);
+    	assertTrue(mController.hasMessage(103));
+
+    	// the pending one which is cut off by budget still coalesces.
+    	assertFalse(mController.dispatchMessage(newRecordMessage(103, "latest", Message.PRIORITY_NORMAL, received),
+    			IController.POLICY_BROADCAST));
+    	mController.update(0);
+    	mController.update(0);
+    	assertEquals(Arrays.asList("high", "latest"), received);
+    	assertFalse(mController.hasMessage(103));
+
+    	// the queued one is removed once.
+    	assertFalse(mController.dispatchMessage(newRecordMessage(104, "removed", Message.PRIORITY_HIGH, received),
+    			IController.POLICY_BROADCAST));
+    	assertFalse(mController.dispatchMessage(newRecordMessage(103, "removed", Message.PRIORITY_NORMAL, received),
+    			IController.POLICY_BROADCAST));
+    	mController.update(0);
+    	mController.removeMessage(103);
+    	assertFalse(mController.hasMessage(103));
+    	mController.update(0);
+    	assertEquals(Arrays.asList("high", "latest", "removed"), received);
+    }
+
+    private static Message newRecordMessage(int what, final String name, int priority, final List<String> received){
+    	Message msg = Message.obtain(what, 0, null, new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				received.add(name);
+			}
+		});
+    	msg.priority = priority;
+    	return msg;
+    }
+
+    public void testMessagePriority() throws InterruptedException{
+    	final List<Integer> order = new ArrayList<>();
+    	mController.addState(STATE_EAT);
+    	mController.setMessageDeliveryPolicy(IController.DRAIN_STRICT, 2);
+    	final int[] priorities = { Message.PRIORITY_LOW, Message.PRIORITY_NORMAL, Message.PRIORITY_HIGH };
+    	for(final int priority : priorities){
+    		Message msg = Message.obtain(101, null, new Message.MessageReplier() {
+				@Override
+				public void reply(Message msg) {
+					order.add(priority);
+				}
+			});
+    		msg.priority = priority;
+    		msg.setDelay(10);
+    		assertFalse(mController.dispatchMessage(msg, IController.POLICY_BROADCAST));
+    	}
+    	Thread.sleep(30);
+    	mController.update(0);
+    	assertEquals(Arrays.asList(Message.PRIORITY_HIGH, Message.PRIORITY_NORMAL), order);
+    	assertTrue(mController.hasMessage(101));
+
+    	mController.update(0);
+    	assertEquals(Arrays.asList(Message.PRIORITY_HIGH, Message.PRIORITY_NORMAL, Message.PRIORITY_LOW), order);
+    	assertFalse(mController.hasMessage(101));
+    }
+
+    public void testUpdateHandlerThrows(){
+    	final List<Integer> received = new ArrayList<>();
+    	mController.addState(STATE_EAT);
+    	for(int i = 130 ; i <= 132 ; i++){
+    		final int what = i;
+    		mController.setMessageCoalescePolicy(what, IController.COALESCE_KEEP_LATEST, null);
+    		assertFalse(mController.dispatchMessage(Message.obtain(what, 0, null, new Message.MessageReplier() {
+				@Override
+				public void reply(Message msg) {
+					received.add(what);
+					if(what == 131){
+						throw new IllegalStateException("testUpdateHandlerThrows");
+					}
+				}
+			}), IController.POLICY_BROADCAST));
+    	}
+    	try{
+    		mController.update(0);
+    		fail();
+    	}catch (IllegalStateException e){
+    		//expected
+    	}
+    	assertEquals(Arrays.asList(130, 131), received);
+    	// the delivered messages are not delivered again.
+    	assertTrue(mController.hasMessage(132));
+    	mController.update(0);
+    	assertEquals(Arrays.asList(130, 131, 132), received);
+    	mController.update(0);
+    	assertEquals(3, received.size());
+    }
+
+    public void testMessageSlots(){
+    	Message msg = Message.obtain(102, null).setLong(0, 123456789L).setDouble(2, 1.5);
+    	assertTrue(msg.hasLong(0));
+    	assertFalse(msg.hasLong(1));
+    	assertTrue(msg.hasDouble(2));
+    	assertEquals(1.5, msg.getDouble(2));
+
+    	Message copy = Message.obtain(msg);
+    	assertEquals(msg, copy);
+    	copy.setDouble(2, 2.5);
+    	assertFalse(msg.equals(copy));
+    	try {
+			msg.setLong(Message.LONG_SLOT_COUNT, 1);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			//expected
+		}
+    	copy.recycle();
+    	msg.recycle();
+    	msg = Message.obtain();
+    	assertFalse(msg.hasLong(0));
+    	assertEquals(0, msg.getLong(0));
+    }
+
+    public void testDispatchMessages(){
+    	final int[] count = new int[1];
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				count[0]++;
+			}
+		};
+    	mController.addState(STATE_EAT | STATE_MOVING);
+    	MessageBatch batch = new MessageBatch(2);
+    	for(int i = 0 ; i < 3 ; i++){
+    		batch.add(Message.obtain(103, i, null, replier));
+    	}
+    	Message delayed = Message.obtain(104, null);
+    	delayed.setDelay(2000);
+    	batch.add(delayed);
+    	assertEquals(4, batch.size());
+
+    	assertEquals(3, mController.dispatchMessages(batch, IController.POLICY_CONSUME,
+    			IController.FLAG_SCOPE_CURRENT));
+    	assertEquals(3, count[0]);
+    	assertEquals(0, batch.size());
+    	assertTrue(mController.hasMessage(104));
+    	assertFalse(mController.hasMessage(103));
+    }
+
+    public void testRequestMessage() throws Exception{
+    	mController.addState(STATE_EAT);
+    	MessageFuture future = mController.request(Message.obtain(105, null), IController.POLICY_CONSUME,
+    			IController.FLAG_SCOPE_CURRENT, 1000);
+    	assertTrue(future.isDone());
+    	assertEquals("EatState", future.get().obj);
+    	assertEquals(future.getId(), future.get().getCorrelationId());
+    	// the timeout of replied request is removed.
+    	assertEquals(0, mController.getDelayedMessageCount());
+
+    	mController.setState(STATE_MOVING);
+    	future = mController.request(Message.obtain(105, null), IController.POLICY_CONSUME,
+    			IController.FLAG_SCOPE_CURRENT, 10);
+    	assertFalse(future.isDone());
+    	assertFalse(mController.hasMessage(0));
+    	Thread.sleep(30);
+    	mController.update(0);
+    	assertTrue(future.isTimeout());
+    	assertEquals(0, mController.getDelayedMessageCount());
+
+    	future = mController.request(Message.obtain(105, null), IController.POLICY_CONSUME,
+    			IController.FLAG_SCOPE_CURRENT, 10000);
+    	assertEquals(1, mController.getDelayedMessageCount());
+    	future.cancel(false);
+    	assertEquals(0, mController.getDelayedMessageCount());
+
+    	future = mController.request(Message.obtain(105, null), IController.POLICY_CONSUME,
+    			IController.FLAG_SCOPE_CURRENT, 0);
+    	mController.dispose();
+    	assertTrue(future.isCancelled());
+    }
+
+    public void testActorMode() throws InterruptedException{
+    	final int count = 100;
+    	final List<Thread> replyThreads = new ArrayList<>();
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				replyThreads.add(Thread.currentThread());
+			}
+		};
+    	mController.addState(STATE_EAT);
+    	mController.setActorModeEnabled(true);
+    	assertTrue(mController.isActorModeEnabled());
+    	Thread[] threads = new Thread[4];
+    	for(int i = 0 ; i < threads.length ; i++){
+    		threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int j = 0 ; j < count ; j++){
+						mController.dispatchMessage(Message.obtain(106, null, replier), IController.POLICY_BROADCAST);
+					}
+				}
+			});
+    		threads[i].start();
+    	}
+    	for(Thread t : threads){
+    		t.join();
+    	}
+    	assertTrue(replyThreads.isEmpty());
+    	mController.update(0);
+    	assertEquals(count * threads.length, replyThreads.size());
+    	for(Thread t : replyThreads){
+    		assertSame(Thread.currentThread(), t);
+    	}
+    	mController.setActorModeEnabled(false);
+    	assertFalse(mController.isActorModeEnabled());
+    }
+
+    public void testDisableActorModeWhileOffering() throws InterruptedException{
+    	final AtomicInteger sent = new AtomicInteger();
+    	final AtomicInteger replies = new AtomicInteger();
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				replies.incrementAndGet();
+			}
+		};
+    	mController.addState(STATE_EAT);
+    	mController.setActorModeEnabled(true);
+    	final CountDownLatch started = new CountDownLatch(100);
+    	// only one producer. because the controller is not thread-safe without actor mode.
+    	Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(mController.isActorModeEnabled()){
+					mController.dispatchMessage(Message.obtain(106, null, replier), IController.POLICY_BROADCAST);
+					sent.incrementAndGet();
+					started.countDown();
+				}
+			}
+		});
+    	producer.start();
+    	started.await();
+    	mController.setActorModeEnabled(false);
+    	producer.join();
+    	// the offers which arrive after closed are pending.
+    	mController.update(0);
+    	assertEquals(sent.get(), replies.get());
+    	assertEquals(0, mController.getMailboxDepth());
+    }
+
+    public void testBoundedMailbox() throws InterruptedException{
+    	final List<Integer> handled = new ArrayList<>();
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				handled.add(msg.arg1);
+			}
+		};
+    	final int[] results = new int[4];
+    	mController.addState(STATE_EAT);
+    	mController.setMailboxCapacity(2, IController.OVERFLOW_COALESCE);
+    	mController.setActorModeEnabled(true);
+    	Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final int[] whats = { 107, 108, 107, 109 };
+				for(int i = 0 ; i < whats.length ; i++){
+					results[i] = mController.offerMessage(Message.obtain(whats[i], null, replier),
+							IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT);
+				}
+			}
+		});
+    	producer.start();
+    	producer.join();
+    	assertEquals(IController.OFFER_ACCEPTED, results[1]);
+    	assertEquals(IController.OFFER_COALESCED, results[2]);
+    	assertEquals(IController.OFFER_REJECTED, results[3]);
+    	assertEquals(2, mController.getMailboxDepth());
+    	assertEquals(2, mController.getMailboxDropCount());
+    	try {
+    		mController.setMailboxCapacity(4, IController.OVERFLOW_FAIL);
+			fail();
+		} catch (IllegalStateException e) {
+			//expected
+		}
+    	mController.update(0);
+    	assertEquals(2, handled.size());
+    	assertEquals(0, mController.getMailboxDepth());
+    }
+
+    public void testBoundedMailboxFailBatch() throws InterruptedException{
+    	final Throwable[] errors = new Throwable[1];
+    	mController.addState(STATE_EAT);
+    	mController.setMailboxCapacity(1, IController.OVERFLOW_FAIL);
+    	mController.setActorModeEnabled(true);
+    	Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				MessageBatch batch = new MessageBatch();
+				batch.add(Message.obtain(107, null));
+				batch.add(Message.obtain(108, null));
+				batch.add(Message.obtain(109, null));
+				try{
+					mController.dispatchMessages(batch, IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT);
+				}catch (IllegalStateException e) {
+					errors[0] = e;
+				}
+			}
+		});
+    	producer.start();
+    	producer.join();
+    	assertTrue(errors[0] instanceof IllegalStateException);
+    	assertEquals(1, mController.getMailboxDepth());
+    	assertEquals(1, mController.getMailboxDropCount());
+    	mController.update(0);
+    	assertEquals(0, mController.getMailboxDepth());
+    }
+
+    public void testMessageTracer(){
+    	mController.addState(STATE_EAT | STATE_MOVING);
+    	MessageTracer tracer = new MessageTracer(6, 1);
+    	assertEquals(8, tracer.getCapacity());
+    	MessageTracer.install(tracer);
+    	try{
+    		assertTrue(mController.dispatchMessage(Message.obtain(108, null), IController.POLICY_BROADCAST));
+    	}finally{
+    		MessageTracer.install(null);
+    	}
+    	List<MessageTracer.TraceRecord> records = tracer.snapshot();
+    	assertEquals(3, records.size());
+    	int stateHops = 0;
+    	for(MessageTracer.TraceRecord record : records){
+    		assertEquals(records.get(0).traceId, record.traceId);
+    		assertEquals(108, record.what);
+    		if(record.hop == MessageTracer.HOP_STATE){
+    			stateHops++;
+    		}
+    	}
+    	assertEquals(2, stateHops);
+    	MessageTracer.TraceRecord last = records.get(2);
+    	assertEquals(MessageTracer.HOP_CONTROLLER, last.hop);
+    	assertEquals(MessageTracer.OUTCOME_HANDLED, last.outcome);
+    	assertTrue(tracer.toJson().contains("\"hop\":\"controller\""));
+
+    	// not installed
+    	assertTrue(mController.dispatchMessage(Message.obtain(108, null), IController.POLICY_BROADCAST));
+    	assertEquals(3, tracer.snapshot().size());
+    	tracer.clear();
+    	assertEquals(0, tracer.snapshot().size());
+    }
+
+    public void testDispatchSelector(){
+    	final int[] count = new int[1];
+    	final Message.MessageReplier replier = new Message.MessageReplier() {
+			@Override
+			public void reply(Message msg) {
+				count[0]++;
+			}
+		};
+    	DispatchSelector selector = mController.obtainDispatchSelector(-1, IController.POLICY_BROADCAST,
+    			IController.FLAG_SCOPE_CURRENT);
+    	DispatchSelector moving = mController.obtainDispatchSelector(STATE_MOVING, IController.POLICY_BROADCAST,
+    			IController.FLAG_SCOPE_CURRENT);
+    	assertFalse(selector.dispatchMessage(Message.obtain(109, null)));
+
+    	// the state changed, so the handlers are resolved again.
+    	mController.addState(STATE_EAT | STATE_MOVING);
+    	assertTrue(selector.dispatchMessage(Message.obtain(109, 0, null, replier)));
+    	assertTrue(selector.dispatchMessage(Message.obtain(109, 1, null, replier)));
+    	assertEquals(2, count[0]);
+    	assertFalse(moving.dispatchMessage(Message.obtain(109, 2, null, replier)));
+    	assertEquals(2, count[0]);
+
+    	mController.removeState(STATE_EAT);
+    	assertFalse(selector.dispatchMessage(Message.obtain(109, 3, null, replier)));
+    	assertEquals(2, count[0]);
+
+    	// the delayed message is still pending.
+    	Message delayed = Message.obtain(109, null);
+    	delayed.setDelay(2000);
+    	assertFalse(selector.dispatchMessage(delayed));
+    	assertTrue(mController.hasMessage(109));
+    }
+
+    public void testScheduleAtFixedRate(){
+    	mNow = 1000;
+    	final int[] count = new int[2];
+    	mController.addState(STATE_EAT);
+    	ScheduledMessage coalesce = mController.scheduleAtFixedRate(Message.obtain(110, 0, null,
+    			new Message.MessageReplier() {
+					@Override
+					public void reply(Message msg) {
+						count[0]++;
+					}
+				}), 0, 10, IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT,
+    			IController.CATCH_UP_COALESCE);
+    	ScheduledMessage fireAll = mController.scheduleAtFixedRate(Message.obtain(111, 0, null,
+    			new Message.MessageReplier() {
+					@Override
+					public void reply(Message msg) {
+						count[1]++;
+					}
+				}), 0, 10, IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT,
+    			IController.CATCH_UP_FIRE_ALL);
+    	mController.update(0);
+    	assertEquals(1, count[0]);
+    	assertEquals(1, count[1]);
+    	// not due
+    	mNow += 9;
+    	mController.update(0);
+    	assertEquals(1, coalesce.getFireCount());
+    	assertEquals(1, fireAll.getFireCount());
+
+    	// stall 3 periods. the firings of 1010, 1020 and 1030.
+    	mNow += 21;
+    	mController.update(0);
+    	assertEquals(2, count[0]);
+    	assertEquals(4, count[1]);
+    	assertEquals(count[1], fireAll.getFireCount());
+
+    	assertTrue(coalesce.cancel());
+    	assertFalse(coalesce.cancel());
+    	assertTrue(coalesce.isCancelled());
+    	mNow += 10;
+    	mController.update(0);
+    	assertEquals(5, count[1]);
+    	assertEquals(2, count[0]);
+    	mController.dispose();
+    	assertTrue(fireAll.isCancelled());
+    }
+
+    public void testScheduleHandlerThrows(){
+    	mNow = 1000;
+    	final int[] count = new int[1];
+    	mController.addState(STATE_EAT);
+    	ScheduledMessage sm = mController.scheduleAtFixedRate(Message.obtain(113, 0, null,
+    			new Message.MessageReplier() {
+					@Override
+					public void reply(Message msg) {
+						count[0]++;
+						throw new IllegalStateException("testScheduleHandlerThrows");
+					}
+				}), 0, 10, IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT,
+    			IController.CATCH_UP_COALESCE);
+    	for(int i = 1 ; i <= 2 ; i++){
+    		try{
+    			mController.update(0);
+    			fail();
+    		}catch (IllegalStateException e){
+    			//expected
+    		}
+    		// the failed firing is not fired again.
+    		assertEquals(i, count[0]);
+    		mNow += 10;
+    	}
+    	assertTrue(sm.cancel());
+    	mController.update(0);
+    	assertEquals(2, count[0]);
+    }
+
+    public void testScheduleCatchUpCap(){
+    	mNow = 1000;
+    	final int[] count = new int[1];
+    	mController.addState(STATE_EAT);
+    	ScheduledMessage fireAll = mController.scheduleAtFixedRate(Message.obtain(112, 0, null,
+    			new Message.MessageReplier() {
+					@Override
+					public void reply(Message msg) {
+						count[0]++;
+					}
+				}), 0, 1, IController.POLICY_BROADCAST, IController.FLAG_SCOPE_CURRENT,
+    			IController.CATCH_UP_FIRE_ALL);
+    	mController.update(0);
+    	assertEquals(1, count[0]);
+
+    	// stall far more periods than the cap.
+    	mNow += IController.MAX_CATCH_UP_FIRES * 4;
+    	mController.update(0);
+    	assertEquals(1 + IController.MAX_CATCH_UP_FIRES, count[0]);
+    	// the dropped firings are not fired later.
+    	mController.update(0);
+    	assertEquals(1 + IController.MAX_CATCH_UP_FIRES, count[0]);
+    	assertEquals(count[0], fireAll.getFireCount());
+    	mController.dispose();
+    }
+
     public void testMessage1(){
     	mController.setStateCacheEnabled(true);
     	mController.addState(STATE_EAT);
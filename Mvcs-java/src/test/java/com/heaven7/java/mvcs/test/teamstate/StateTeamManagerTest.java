@@ -1,14 +1,24 @@
 package com.heaven7.java.mvcs.test.teamstate;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import com.heaven7.java.base.util.PropertyBundle;
 import com.heaven7.java.mvcs.IController;
 import com.heaven7.java.mvcs.Message;
+import com.heaven7.java.mvcs.MessageBatch;
+import com.heaven7.java.mvcs.AbstractState;
 import com.heaven7.java.mvcs.StateTeamManager.Member;
+import com.heaven7.java.mvcs.StateTeamManager.Team;
+import com.heaven7.java.mvcs.StateTeamManager.TeamCallback;
+import com.heaven7.java.mvcs.TeamCascade;
+import com.heaven7.java.mvcs.TeamMediator;
 import com.heaven7.java.mvcs.impl.DefaultController;
 import com.heaven7.java.mvcs.impl.DefaultStateTeamManager;
+import com.heaven7.java.mvcs.impl.DefaultTeamCllback;
+import com.heaven7.java.mvcs.impl.DefaultTeamMetrics;
 
 import junit.framework.TestCase;
 
@@ -69,6 +79,15 @@ public class StateTeamManagerTest extends TestCase {
 				DefaultStateTeamManager.FLAG_MEMBER_FORMAL);
 		assertTrue(result); //consumed by class Team3Consume state.
 	}
+
+	public void testInvalidTeamId(){
+		final int flags = DefaultStateTeamManager.FLAG_MEMBER_FORMAL;
+		assertFalse(mJsTm.dispatchMessage(0, Message.obtain(5, null), IController.POLICY_BROADCAST, flags));
+		assertFalse(mJsTm.dispatchMessage(-1, Message.obtain(5, null), IController.POLICY_BROADCAST, flags));
+		assertFalse(mJsTm.postMessage(0, Message.obtain(5, null), IController.POLICY_BROADCAST, flags));
+		assertEquals(0, mJsTm.dispatchMessages(0, new MessageBatch(), IController.POLICY_BROADCAST, flags));
+		assertTrue(mJsTm.request(0, Message.obtain(5, null), IController.POLICY_BROADCAST, flags, 0).isCancelled());
+	}
 	
 	public void testTeamUpdate(){
 		mJC1.addState(STATE_MOVE);
@@ -104,6 +123,555 @@ public class StateTeamManagerTest extends TestCase {
 	public void testUnregisterTeam(){
 		mJsTm.unregisterTeam(mTeamId);
 	}
+
+	public void testFormalTeamIndex(){
+		assertEquals(1, mJC1.getTeamMediator().getFormalTeamCount());
+		List<Member<PropertyBundle>> list = new ArrayList<>();
+		list.add(DefaultStateTeamManager.createMember(mJC1, STATE_EAT));
+		int teamId = mJsTm.registerTeam(list);
+		assertEquals(2, mJC1.getTeamMediator().getFormalTeamCount());
+		assertEquals(1, mJC2.getTeamMediator().getFormalTeamCount());
+
+		// still a formal member of the other team.
+		mJsTm.unregisterTeam(teamId);
+		assertEquals(1, mJC1.getTeamMediator().getFormalTeamCount());
+		assertSame(mJsTm, mJC1.getTeamMediator().getStateTeamManager());
+
+		assertTrue(mJsTm.deleteFormalMember(mTeamId, mJC2));
+		assertEquals(0, mJC2.getTeamMediator().getFormalTeamCount());
+		assertTrue(mJsTm.addFormalMember(mTeamId, DefaultStateTeamManager.createMember(mJC2, STATE_EAT)));
+		assertEquals(1, mJC2.getTeamMediator().getFormalTeamCount());
+
+		mJsTm.unregisterAllTeam();
+		assertEquals(0, mJC1.getTeamMediator().getFormalTeamCount());
+		assertNull(mJC1.getTeamMediator().getStateTeamManager());
+	}
+	
+	public void testPurgeCollectedMembers(){
+		final long purged = mJsTm.getPurgedMemberCount();
+		final Member<PropertyBundle> outer = DefaultStateTeamManager.createMember(newController(), STATE_EAT);
+		final Member<PropertyBundle> formal = DefaultStateTeamManager.createMember(newController(), STATE_EAT);
+		assertTrue(mJsTm.addOuterMember(mTeamId, outer));
+		assertTrue(mJsTm.addFormalMember(mTeamId, formal));
+		assertEquals(4, mJsTm.getTeam(mTeamId).getFormalMembers().size());
+		// the reference is enqueued as the controller is collected.
+		assertTrue(outer.getControllerReference().enqueue());
+		assertTrue(formal.getControllerReference().enqueue());
+		mJsTm.update(16, null);
+		assertEquals(2, mJsTm.getPurgedMemberCount() - purged);
+		assertEquals(3, mJsTm.getTeam(mTeamId).getFormalMembers().size());
+		assertTrue(mJsTm.getTeam(mTeamId).getOuterMembers().isEmpty());
+	}
+
+	public void testTeamCascade(){
+		mJsTm.unregisterTeam(mTeamId);
+		final RecordingCallback callback = new RecordingCallback();
+		final List<TeamMediator<PropertyBundle>> notified = callback.notified;
+		// jc2 is in both teams.
+		mJsTm.registerTeam(createMembers(), null, callback);
+		List<Member<PropertyBundle>> list = new ArrayList<>();
+		list.add(DefaultStateTeamManager.createMember(mJC1, STATE_ALL));
+		list.add(DefaultStateTeamManager.createMember(mJC2, STATE_ALL));
+		mJsTm.registerTeam(list, null, callback);
+		setTeamEnabled(true);
+
+		mJC1.addState(STATE_EAT);
+		assertEquals(2, notified.size());
+		assertTrue(notified.contains(mJC2.getTeamMediator()));
+		assertTrue(notified.contains(mJC3.getTeamMediator()));
+		assertTrue(mJC2.isTeamEnabled());
+		assertNull(TeamCascade.current());
+
+		// the disabled member keeps disabled.
+		notified.clear();
+		mJC3.setTeamEnabled(false);
+		mJC1.removeState(STATE_EAT);
+		mJC1.addState(STATE_SLEEP);
+		assertEquals(1, notified.size());
+		assertFalse(mJC3.isTeamEnabled());
+	}
+
+	public void testCopyOnWriteMembers(){
+		Team<PropertyBundle> team = mJsTm.getTeam(mTeamId);
+		List<Member<PropertyBundle>> formal = team.getFormalMembers();
+		DefaultController c4 = newController();
+		// add member during iteration. the iterator reads a stable snapshot.
+		int count = 0;
+		for(Member<PropertyBundle> member : formal){
+			if(count++ == 0){
+				assertTrue(mJsTm.addFormalMember(mTeamId, DefaultStateTeamManager.createMember(c4, STATE_EAT)));
+			}
+			assertNotNull(member);
+		}
+		assertEquals(3, count);
+		assertEquals(4, formal.size());
+		try{
+			formal.iterator().remove();
+			fail();
+		}catch (UnsupportedOperationException e){
+			//expected
+		}
+		// the states of member are copied on write.
+		assertTrue(mJsTm.addFormalMemberStates(mTeamId, c4, STATE_SLEEP));
+		assertEquals(STATE_EAT | STATE_SLEEP, formal.get(3).getStates());
+		assertTrue(mJsTm.deleteFormalMember(mTeamId, c4));
+		assertEquals(3, formal.size());
+		assertNotNull(team.getOuterMembers());
+	}
+
+	public void testTwoPhaseTransition(){
+		mJsTm.unregisterTeam(mTeamId);
+		final RecordingCallback callback = new RecordingCallback() {
+			@Override
+			protected void onNotifyStateEnter(TeamMediator<PropertyBundle> mediator, int s,
+					PropertyBundle param) {
+				// the all members are resolved before apply.
+				assertTrue(TeamCascade.isNotified(mJC2));
+				assertTrue(TeamCascade.isNotified(mJC3));
+				super.onNotifyStateEnter(mediator, s, param);
+			}
+		};
+		final List<TeamMediator<PropertyBundle>> notified = callback.notified;
+		final List<Integer> states = callback.states;
+		List<Member<PropertyBundle>> outers = new ArrayList<>();
+		outers.add(DefaultStateTeamManager.createMember(mJC2, STATE_CONSUME));
+		List<Member<PropertyBundle>> formal = createMembers(mJC1, mJC3);
+		formal.add(DefaultStateTeamManager.createMember(mJC2, STATE_EAT));
+		mJsTm.registerTeam(formal, outers, callback);
+		setTeamEnabled(true);
+
+		mJC1.addState(STATE_EAT);
+		assertEquals(2, notified.size());
+		// the states of jc2 are merged into one notification.
+		assertEquals(STATE_EAT | STATE_CONSUME, (int) states.get(notified.indexOf(mJC2.getTeamMediator())));
+	}
+
+	public void testCascadeDepth(){
+		mJsTm.unregisterTeam(mTeamId);
+		final RecordingCallback callback = new RecordingCallback();
+		final List<TeamMediator<PropertyBundle>> notified = callback.notified;
+		// jc1 -> jc2 -> jc3
+		mJsTm.registerTeam(createMembers(mJC1), createMembers(mJC2), callback);
+		int teamId = mJsTm.registerTeam(createMembers(mJC2), createMembers(mJC3), callback);
+		assertFalse(mJsTm.hasCascadeCycle());
+		setTeamEnabled(true);
+
+		mJC1.addState(STATE_EAT);
+		assertEquals(1, notified.size());
+		assertTrue(notified.contains(mJC2.getTeamMediator()));
+
+		notified.clear();
+		mJsTm.setMaxCascadeDepth(2);
+		try{
+			mJC1.addState(STATE_SLEEP);
+			assertEquals(2, notified.size());
+			assertEquals(mJC2.getTeamMediator(), notified.get(0));
+			assertEquals(mJC3.getTeamMediator(), notified.get(1));
+			assertNull(TeamCascade.current());
+
+			// jc2 -> jc1 makes a cycle. every controller is still notified once.
+			mJsTm.addOuterMember(teamId, DefaultStateTeamManager.createMember(mJC1, STATE_ALL));
+			assertTrue(mJsTm.hasCascadeCycle());
+			notified.clear();
+			mJC1.addState(STATE_MOVE);
+			assertEquals(2, notified.size());
+		}finally{
+			mJsTm.setMaxCascadeDepth(1);
+		}
+		try{
+			mJsTm.setMaxCascadeDepth(0);
+			fail();
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testShardManager(){
+		DefaultStateTeamManager shard = new DefaultStateTeamManager(1);
+		assertEquals(0, DefaultStateTeamManager.getShardIndex(mTeamId));
+		assertFalse(shard.isOwnedTeamId(mTeamId));
+
+		DefaultController c4 = newController();
+		int teamId = shard.registerTeam(createMembers(c4));
+		assertEquals(1, DefaultStateTeamManager.getShardIndex(teamId));
+		assertTrue(shard.isOwnedTeamId(teamId));
+		assertNull(mJsTm.getTeam(teamId));
+		assertEquals(shard, c4.getTeamMediator().getStateTeamManager());
+
+		// jc1 is owned by the default manager.
+		try{
+			shard.addFormalMember(teamId, DefaultStateTeamManager.createMember(mJC1, STATE_ALL));
+			fail();
+		}catch (IllegalStateException e){
+			//expected
+		}
+		assertEquals(1, shard.getTeam(teamId).getFormalMembers().size());
+		// the outer member is not routed.
+		Member<PropertyBundle> outer = DefaultStateTeamManager.createMember(mJC1, STATE_ALL);
+		assertTrue(shard.addOuterMember(teamId, outer));
+		// the teams are looked up by index, not the id of shard.
+		assertTrue(shard.isFormalMember(DefaultStateTeamManager.createMember(c4, STATE_ALL)));
+		assertTrue(shard.isOuterMember(outer));
+		assertEquals(1, shard.getTeams(outer, null).size());
+
+		shard.unregisterAllTeam();
+		assertNull(c4.getTeamMediator().getStateTeamManager());
+		try{
+			new DefaultStateTeamManager(-1);
+			fail();
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+	}
+
+	public void testTeamMetrics(){
+		DefaultTeamMetrics<PropertyBundle> metrics = new DefaultTeamMetrics<>();
+		Team<PropertyBundle> team = mJsTm.getTeam(mTeamId);
+		setTeamEnabled(true);
+		mJsTm.setTeamMetrics(metrics);
+		try{
+			mJC1.addState(STATE_EAT);
+			mJC3.addState(STATE_CONSUME);
+			mJsTm.dispatchMessage(mTeamId, Message.obtain(5, null), IController.POLICY_CONSUME,
+					DefaultStateTeamManager.FLAG_MEMBER_FORMAL);
+		}finally{
+			mJsTm.setTeamMetrics(null);
+		}
+		DefaultTeamMetrics.TeamStats stats = metrics.getStats(team);
+		assertEquals(2, stats.getTransitionCount());
+		// jc1 notifies jc2 and jc3. jc3 notifies jc1 and jc2.
+		assertEquals(4, stats.getNotifiedMemberCount());
+		assertEquals(1, stats.getMaxCascadeDepth());
+		assertEquals(1.0, stats.getAverageCascadeDepth());
+		assertEquals(1, stats.getDispatchedMessageCount());
+		assertEquals(1, stats.getConsumedMessageCount());
+		long total = 0;
+		for(long count : stats.getLatencyHistogram()){
+			total += count;
+		}
+		assertEquals(2, total);
+
+		// disabled.
+		mJC1.removeState(STATE_EAT);
+		assertEquals(2, metrics.getStats(team).getTransitionCount());
+	}
+
+	public void testSubTeamStates(){
+		int squad1 = mJsTm.registerTeam(createMembers(mJC1));
+		int squad2 = mJsTm.registerTeam(createMembers(mJC2));
+		int army = mJsTm.registerTeam(createMembers(mJC3));
+		assertTrue(mJsTm.addSubTeam(army, squad1));
+		assertTrue(mJsTm.addSubTeam(army, squad2));
+		Team<PropertyBundle> armyTeam = mJsTm.getTeam(army);
+		assertEquals(armyTeam, mJsTm.getTeam(squad1).getParent());
+
+		mJC1.addState(STATE_EAT);
+		assertTrue(armyTeam.isAnyMemberIn(STATE_EAT));
+		assertFalse(armyTeam.isAllMembersIn(STATE_EAT));
+		assertTrue(mJsTm.getTeam(mTeamId).isAnyMemberIn(STATE_EAT));
+
+		mJC2.addState(STATE_EAT);
+		mJC3.addState(STATE_EAT | STATE_SLEEP);
+		assertTrue(armyTeam.isAllMembersIn(STATE_EAT));
+		assertEquals(STATE_EAT, armyTeam.getIntersectionStates());
+		assertEquals(STATE_EAT | STATE_SLEEP, armyTeam.getUnionStates());
+
+		mJC1.removeState(STATE_EAT);
+		assertFalse(armyTeam.isAllMembersIn(STATE_EAT));
+		assertTrue(mJsTm.removeSubTeam(army, squad1));
+		assertTrue(armyTeam.isAllMembersIn(STATE_EAT));
+
+		// no cycle.
+		assertTrue(mJsTm.addSubTeam(squad2, squad1));
+		try{
+			mJsTm.addSubTeam(squad1, army);
+			fail();
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+		mJsTm.unregisterTeam(squad2);
+		assertNull(mJsTm.getTeam(squad1).getParent());
+		assertEquals(STATE_EAT | STATE_SLEEP, armyTeam.getUnionStates());
+	}
+
+	public void testConcurrentSubTeamStates() throws InterruptedException{
+		final DefaultController c4 = newController();
+		final DefaultController c5 = newController();
+		DefaultController c6 = newController();
+		int squad1 = mJsTm.registerTeam(createMembers(c4));
+		int squad2 = mJsTm.registerTeam(createMembers(c5));
+		int army = mJsTm.registerTeam(createMembers(c6));
+		assertTrue(mJsTm.addSubTeam(army, squad1));
+		assertTrue(mJsTm.addSubTeam(army, squad2));
+		c6.addState(STATE_EAT);
+		// every controller changes its states on its own thread.
+		Thread[] threads = new Thread[2];
+		final DefaultController[] controllers = {c4, c5};
+		for(int i = 0 ; i < threads.length ; i++){
+			final DefaultController controller = controllers[i];
+			threads[i] = new Thread(){
+				@Override
+				public void run() {
+					for(int k = 0 ; k < 2000 ; k++){
+						controller.addState(STATE_EAT);
+						controller.removeState(STATE_EAT);
+					}
+					controller.addState(STATE_EAT);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread thread : threads){
+			thread.join();
+		}
+		Team<PropertyBundle> armyTeam = mJsTm.getTeam(army);
+		assertEquals(STATE_EAT, armyTeam.getIntersectionStates());
+		assertEquals(STATE_EAT, armyTeam.getUnionStates());
+		assertEquals(STATE_EAT, mJsTm.getTeam(squad1).getIntersectionStates());
+
+		c4.removeState(STATE_EAT);
+		assertFalse(armyTeam.isAllMembersIn(STATE_EAT));
+		assertTrue(armyTeam.isAnyMemberIn(STATE_EAT));
+	}
+
+	public void testParallelUpdate(){
+		final List<String> updates = Collections.synchronizedList(new ArrayList<String>());
+		final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+		DefaultController c4 = newRecordingController("c4", updates, null);
+		DefaultController c5 = newRecordingController("c5", updates, threads);
+		DefaultController c6 = newRecordingController("c6", updates, null);
+		// c5 is in two teams. the member states tell the teams apart.
+		List<Member<PropertyBundle>> list = createMembers(c4);
+		list.add(DefaultStateTeamManager.createMember(c5, STATE_EAT));
+		mJsTm.registerTeam(list);
+		list = new ArrayList<>();
+		list.add(DefaultStateTeamManager.createMember(c5, STATE_SLEEP));
+		int teamId = mJsTm.registerTeam(list);
+		mJsTm.registerTeam(createMembers(c6));
+		assertEquals(3, mJsTm.getUpdateShardCount());
+		// jc1 join the team of c5.
+		mJsTm.addOuterMember(teamId, DefaultStateTeamManager.createMember(mJC1, STATE_EAT));
+		assertEquals(2, mJsTm.getUpdateShardCount());
+
+		mJC1.addState(STATE_MOVE);
+		c4.addState(STATE_EAT);
+		c6.addState(STATE_SLEEP);
+		// the serial order.
+		mJsTm.update(8, new PropertyBundle());
+		final List<String> serial = new ArrayList<>(updates);
+		updates.clear();
+		threads.clear();
+
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try{
+			mJsTm.setParallelUpdatePool(pool);
+			mJsTm.update(16, new PropertyBundle());
+		}finally{
+			mJsTm.setParallelUpdatePool(null);
+			pool.shutdown();
+		}
+		// every team is updated once with the delta.
+		assertEquals(4, updates.size());
+		assertTrue(updates.contains("c4:" + STATE_ALL + ":16"));
+		assertTrue(updates.contains("c5:" + STATE_EAT + ":16"));
+		assertTrue(updates.contains("c5:" + STATE_SLEEP + ":16"));
+		assertTrue(updates.contains("c6:" + STATE_ALL + ":16"));
+		// the conflicting teams run in one shard by the serial order.
+		assertEquals(2, threads.size());
+		assertSame(threads.get(0), threads.get(1));
+		assertEquals(filter(serial, "c5:").toString().replace(":8", ":16"), filter(updates, "c5:").toString());
+	}
+
+	public void testTeamUpdatePeriod(){
+		final List<Long> deltas = new ArrayList<>();
+		DefaultController c4 = new DefaultController(){
+			@Override
+			public void updateActiveStates(int activeStates, long deltaTime, PropertyBundle param) {
+				deltas.add(deltaTime);
+				super.updateActiveStates(activeStates, deltaTime, param);
+			}
+		};
+		c4.setStateFactory(new CommonFactory(1));
+		int teamId = mJsTm.registerTeam(createMembers(c4));
+		assertTrue(mJsTm.setUpdatePeriod(teamId, 50));
+		assertEquals(50, mJsTm.getTeam(teamId).getUpdatePeriod());
+		assertFalse(mJsTm.setUpdatePeriod(-1, 50));
+		try{
+			mJsTm.setUpdatePeriod(teamId, -1);
+			fail();
+		}catch (IllegalArgumentException e){
+			//expected
+		}
+		for(int i = 0 ; i < 7 ; i++){
+			mJsTm.update(16, null);
+		}
+		// due at 64 and 112.
+		assertEquals(2, deltas.size());
+		assertEquals(64, deltas.get(0).longValue());
+		assertEquals(48, deltas.get(1).longValue());
+
+		// back to every update.
+		assertTrue(mJsTm.setUpdatePeriod(teamId, 0));
+		mJsTm.update(16, null);
+		assertEquals(3, deltas.size());
+		assertEquals(16, deltas.get(2).longValue());
+
+		// the unregistered team is never updated.
+		mJsTm.setUpdatePeriod(teamId, 10);
+		mJsTm.unregisterTeam(teamId);
+		mJsTm.update(16, null);
+		assertEquals(3, deltas.size());
+	}
+
+	public void testCoalesceTransitions(){
+		mJsTm.unregisterTeam(mTeamId);
+		final int[] counts = new int[3];
+		mJsTm.registerTeam(createMembers(), null, new TeamCallback<PropertyBundle>() {
+			@Override
+			public void onTeamEnter(Team<PropertyBundle> team, AbstractState<PropertyBundle> trigger) {
+				counts[0]++;
+			}
+			@Override
+			public void onTeamExit(Team<PropertyBundle> team, AbstractState<PropertyBundle> trigger) {
+				counts[1]++;
+			}
+			@Override
+			public void onTeamReenter(Team<PropertyBundle> team, AbstractState<PropertyBundle> trigger) {
+				counts[2]++;
+			}
+		});
+		setTeamEnabled(true);
+		mJC1.addState(STATE_MOVE);
+		assertEquals(1, counts[0]);
+
+		// exit one and enter two in one operation.
+		mJsTm.setTransitionCoalesceMode(DefaultStateTeamManager.COALESCE_TRANSITION_OPERATION);
+		try{
+			mJC1.setState(STATE_EAT | STATE_SLEEP);
+			assertEquals(2, counts[0]);
+			assertEquals(1, counts[1]);
+			assertEquals(1, mJsTm.getCoalescedTransitionCount());
+
+			// enter then exit in one tick is dropped.
+			mJsTm.setTransitionCoalesceMode(DefaultStateTeamManager.COALESCE_TRANSITION_TICK);
+			mJC1.addState(STATE_MOVE);
+			mJC1.removeState(STATE_MOVE | STATE_EAT);
+			mJC1.addState(STATE_EAT);
+			assertEquals(2, counts[0]);
+			assertEquals(1, counts[1]);
+			mJsTm.update(16, null);
+			assertEquals(2, counts[0]);
+			assertEquals(1, counts[1]);
+			assertEquals(1, counts[2]);
+		}finally{
+			mJsTm.setTransitionCoalesceMode(DefaultStateTeamManager.COALESCE_TRANSITION_NONE);
+		}
+	}
+
+	public void testCoalesceExitByDefaultCallback(){
+		// the exited trigger is detached before the coalesced transition is delivered.
+		final byte[] modes = { DefaultStateTeamManager.COALESCE_TRANSITION_OPERATION,
+				DefaultStateTeamManager.COALESCE_TRANSITION_TICK };
+		try{
+			for (byte mode : modes) {
+				setTeamEnabled(false);
+				mJC1.setState(STATE_SLEEP);
+				mJC2.addState(STATE_EAT);
+				mJC3.addState(STATE_EAT);
+				setTeamEnabled(true);
+
+				mJsTm.setTransitionCoalesceMode(mode);
+				mJC1.setState(STATE_MOVE);
+				mJsTm.update(16, null);
+				assertFalse(mJC2.hasState(STATE_EAT));
+				assertFalse(mJC3.hasState(STATE_EAT));
+				mJsTm.setTransitionCoalesceMode(DefaultStateTeamManager.COALESCE_TRANSITION_NONE);
+			}
+		}finally{
+			mJsTm.setTransitionCoalesceMode(DefaultStateTeamManager.COALESCE_TRANSITION_NONE);
+		}
+	}
+
+	public void testTopicMessage(){
+		mJC3.addState(STATE_CONSUME);
+		Member<PropertyBundle> member3 = mJsTm.getTeam(mTeamId).getFormalMembers().get(2);
+		assertFalse(mJsTm.publish(Message.obtain(5, null), IController.POLICY_BROADCAST));
+		assertTrue(mJsTm.subscribe(mTeamId, member3, 5, 6));
+		assertFalse(mJsTm.subscribe(mTeamId, DefaultStateTeamManager.createMember(mJC3, STATE_ALL), 5));
+		assertEquals(1, mJsTm.getSubscriberCount(5));
+		assertTrue(mJsTm.publish(Message.obtain(5, null), IController.POLICY_BROADCAST));
+
+		mJsTm.setTopicFilterEnabled(true);
+		try{
+			assertTrue(mJsTm.dispatchMessage(mTeamId, Message.obtain(5, null), IController.POLICY_BROADCAST,
+					DefaultStateTeamManager.FLAG_MEMBER_FORMAL));
+			assertTrue(mJsTm.unsubscribe(mTeamId, member3, 5));
+			assertFalse(mJsTm.dispatchMessage(mTeamId, Message.obtain(5, null), IController.POLICY_BROADCAST,
+					DefaultStateTeamManager.FLAG_MEMBER_FORMAL));
+		}finally{
+			mJsTm.setTopicFilterEnabled(false);
+		}
+		// the subscriptions are removed with member.
+		assertEquals(1, mJsTm.getSubscriberCount(6));
+		mJsTm.deleteFormalMember(mTeamId, mJC3);
+		assertEquals(0, mJsTm.getSubscriberCount(6));
+	}
+
+	private static List<Member<PropertyBundle>> createMembers(DefaultController... controllers){
+		List<Member<PropertyBundle>> list = new ArrayList<>();
+		for(DefaultController controller : controllers){
+			list.add(DefaultStateTeamManager.createMember(controller, STATE_ALL));
+		}
+		return list;
+	}
+
+	/** the team callback which records the notified mediators and their states. */
+	private static class RecordingCallback extends DefaultTeamCllback<PropertyBundle> {
+		final List<TeamMediator<PropertyBundle>> notified = new ArrayList<>();
+		final List<Integer> states = new ArrayList<>();
+
+		@Override
+		protected void onNotifyStateEnter(TeamMediator<PropertyBundle> mediator, int s, PropertyBundle param) {
+			notified.add(mediator);
+			states.add(s);
+			super.onNotifyStateEnter(mediator, s, param);
+		}
+	}
+
+	private static List<String> filter(List<String> list, String prefix){
+		final List<String> result = new ArrayList<>();
+		synchronized (list) {
+			for(String str : list){
+				if(str.startsWith(prefix)){
+					result.add(str);
+				}
+			}
+		}
+		return result;
+	}
+
+	/** the controller which records the updates as "name:states:deltaTime". */
+	private static DefaultController newRecordingController(final String name, final List<String> updates,
+			final List<Thread> threads){
+		DefaultController controller = new DefaultController(){
+			@Override
+			public void updateActiveStates(int activeStates, long deltaTime, PropertyBundle param) {
+				updates.add(name + ":" + activeStates + ":" + deltaTime);
+				if(threads != null){
+					threads.add(Thread.currentThread());
+				}
+				super.updateActiveStates(activeStates, deltaTime, param);
+			}
+		};
+		controller.setStateFactory(new CommonFactory(1));
+		return controller;
+	}
+
+	private static DefaultController newController(){
+		DefaultController controller = new DefaultController();
+		controller.setStateFactory(new CommonFactory(1));
+		return controller;
+	}
 	
 	private List<Member<PropertyBundle>> createMembers(){
 		List<Member<PropertyBundle>> list = new ArrayList<>();